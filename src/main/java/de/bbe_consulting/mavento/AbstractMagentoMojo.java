@@ -17,14 +17,20 @@
 package de.bbe_consulting.mavento;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.BuildPluginManager;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.execution.MavenSession;
 
+import de.bbe_consulting.mavento.helper.FileUtil;
+
 /**
  * Base class for magento mojos.
  * @author Erik Dannenberg
@@ -87,6 +93,38 @@ public abstract class AbstractMagentoMojo extends AbstractMojo {
      */
     protected String magentoDeployType;
     
+    /**
+     * How magento:setup transfers the prepared instance to magento.root.local. copy|move|link|sync<br/>
+     * move renames the prepared temp dir away, link hardlinks its files. Both fall back to copy if the build
+     * directory is on a different filesystem, sync only writes changed files into the existing instance.
+     * magento:deploy always syncs unless magento.deploy.delta is false. Default: copy<br/>
+     * 
+     * @parameter expression="${magento.deploy.strategy}" default-value="copy"
+     */
+    protected String magentoDeployStrategy;
+
+    /** 
+     * Compare file contents when syncing files with same size but different modification time.<br/>
+     * 
+     * @parameter expression="${magento.sync.checksum}" default-value="false"
+     */
+    protected boolean magentoSyncChecksum;
+
+    /** 
+     * Number of threads used to copy Magento trees and extract zips.<br/>
+     * 
+     * @parameter expression="${magento.copy.threads}" default-value="8"
+     */
+    protected int magentoCopyThreads;
+
+    /** 
+     * Move large directories that are no longer needed into a trash dir and delete them in the background.
+     * The goal waits for the background deletes before it ends. Default: false<br/>
+     * 
+     * @parameter expression="${magento.delete.deferred}" default-value="false"
+     */
+    protected Boolean magentoDeleteDeferred;
+
     /** 
      * Local root directory of Magento installation.
      * 
@@ -95,6 +133,22 @@ public abstract class AbstractMagentoMojo extends AbstractMojo {
      */
     protected String magentoRootLocal;
     
+    /** 
+     * Number of releases to keep. If greater than 0 magento.root.local becomes a symlink to the current
+     * release, setup and deploy build a new release next to it and switch the symlink when done.<br/>
+     * Use magento:rollback to switch back to the previous release. 0 disables releases.<br/>
+     * 
+     * @parameter expression="${magento.releases}" default-value="0"
+     */
+    protected int magentoReleases;
+
+    /** 
+     * Directory holding the releases. Default: magento.root.local + "_releases"<br/>
+     * 
+     * @parameter expression="${magento.releases.dir}"
+     */
+    protected String magentoReleasesDir;
+
     /** 
      * Remote root directory of Magento installation.
      * 
@@ -115,5 +169,30 @@ public abstract class AbstractMagentoMojo extends AbstractMojo {
      * @parameter expression="${remote.scp.username}"
      */
     protected String remoteScpUsername;
-  
+
+    /**
+     * Manifest file of FileSynchronizer runs by the given goal, kept in the build directory.
+     * 
+     * @param name
+     * @return Path
+     */
+    protected Path getSyncManifest(String name) {
+        return Paths.get(project.getBuild().getDirectory(), "mavento", name + "-sync.tsv");
+    }
+
+    /**
+     * Deletes a file or directory, deferred to a background thread if magento.delete.deferred is set.
+     * 
+     * @param fileName
+     * @throws MojoExecutionException
+     * @throws IOException
+     */
+    protected void deleteFile(String fileName) throws MojoExecutionException, IOException {
+        if (magentoDeleteDeferred) {
+            FileUtil.deleteFileDeferred(fileName, getLog());
+        } else {
+            FileUtil.deleteFile(fileName, getLog());
+        }
+    }
+
 }
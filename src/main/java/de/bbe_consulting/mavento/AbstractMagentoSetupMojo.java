@@ -54,17 +54,22 @@ import javax.xml.xpath.XPathFactory;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.repository.RepositorySystem;
 import org.codehaus.plexus.util.FileUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import de.bbe_consulting.mavento.helper.ArtifactCache;
+import de.bbe_consulting.mavento.helper.FileSynchronizer;
 import de.bbe_consulting.mavento.helper.FileUtil;
 import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
 import de.bbe_consulting.mavento.helper.MagentoUtil;
 import de.bbe_consulting.mavento.helper.MagentoXmlUtil;
 import de.bbe_consulting.mavento.helper.MavenUtil;
-import de.bbe_consulting.mavento.helper.visitor.CopyFilesVisitor;
+import de.bbe_consulting.mavento.helper.ParallelFileCopier;
+import de.bbe_consulting.mavento.helper.ReleaseUtil;
+import de.bbe_consulting.mavento.helper.sql.SqlTemplateCache;
 import de.bbe_consulting.mavento.helper.visitor.ExtractZipVisitor;
 import de.bbe_consulting.mavento.type.MagentoVersion;
 
@@ -77,12 +82,21 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
 
     /**
      * Use a custom magento sqldump instead of generating the magento database.<br/>
-     * Dump is expected in /sqldumps of your project root.<br/>
+     * Dump is expected in /sqldumps of your project root, gzip compressed dumps (.gz) and per table dump directories
+     * are also supported.<br/>
      * 
      * @parameter expression="${magento.db.dump.file}"
      */
     protected String magentoDumpFileName;
 
+    /**
+     * Keep a pristine copy of the imported database as template schema on the mysql server.<br/>
+     * Following setups with the same artifact and dump clone the template instead of importing the dump.<br/>
+     * 
+     * @parameter expression="${magento.db.template.cache}" default-value="false"
+     */
+    protected Boolean magentoDbTemplateCache;
+
     /**
      * GroupId of a custom magento artifact for integration tests.<br/>
      * 
@@ -617,6 +631,32 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
      */
     protected String magentoFileGroup;
 
+    /**
+     * How the Magento artifact and compile dependencies are taken from the local cache of unpacked artifacts.<br/>
+     * copy|link|none, link hardlinks the cached files and is meant for throw-away instances,
+     * files edited in place after setup also change the cache. Default: none, artifacts are unpacked
+     * on every run.<br/>
+     * The cache keeps one unpacked tree per artifact and is never pruned, remove old entries
+     * from magento.artifact.cache.dir by hand.<br/>
+     * 
+     * @parameter expression="${magento.artifact.cache}" default-value="none"
+     */
+    protected String magentoArtifactCache;
+
+    /**
+     * Directory of the local cache of unpacked artifacts, shared by all builds of the user.<br/>
+     * 
+     * @parameter expression="${magento.artifact.cache.dir}" default-value="${user.home}/.m2/mavento/unpacked"
+     */
+    protected String magentoArtifactCacheDir;
+
+    /**
+     * @component
+     * @required
+     * @readonly
+     */
+    protected RepositorySystem repositorySystem;
+
     protected MagentoVersion mVersion;
     protected String magentoAdminPasswdHashed = "";
     protected String tempDir;
@@ -828,6 +868,7 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
         final File cacheConfigFiltered = new File(tempDir + "/app/etc/use_cache.ser");
         FileWriter cacheWriter = null;
         try {
+            Files.deleteIfExists(cacheConfigFiltered.toPath());
             cacheWriter = new FileWriter(cacheConfigFiltered);
             cacheWriter.write(finalCacheConfig);
         } catch (IOException e) {
@@ -843,6 +884,32 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
         }
     }
 
+    /**
+     * Clones the magento database from a template if one exists for artifact and dump,
+     * else imports the dump and creates the template.
+     * 
+     * @param dumpFileName
+     * @throws MojoExecutionException
+     */
+    private void importSqlDumpWithTemplate(String dumpFileName) throws MojoExecutionException {
+
+        final SqlTemplateCache templateCache = new SqlTemplateCache(magentoDbUser, magentoDbPasswd,
+                magentoDbHost, magentoDbPort, getLog());
+        templateCache.setThreads(magentoDbThreads);
+        final String artifactCoordinates = magentoArtifactGroupId + ":" + magentoArtifactId + ":"
+                + magentoArtifactVersion;
+        final String fingerprint = SqlTemplateCache.getFingerprint(artifactCoordinates, Paths.get(dumpFileName));
+        final String templateDb = SqlTemplateCache.getTemplateDbName(fingerprint);
+        if (templateCache.hasTemplate(templateDb, fingerprint)) {
+            templateCache.cloneTemplate(templateDb, magentoDbName);
+        } else {
+            MagentoSqlUtil.importSqlDump(dumpFileName, magentoDbUser,
+                    magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName,
+                    magentoDbImportMethod, magentoDbThreads, getLog());
+            templateCache.createTemplate(magentoDbName, templateDb, fingerprint, artifactCoordinates);
+        }
+    }
+
     /**
      * Setup an magento instance.
      * 
@@ -902,35 +969,46 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
                         + depGroupdId + ":"
                         + depVersion + "..");
                 FileUtil.createDirectories(tempDir, true);
-                // call dependency plugin to resolve and extract magento core to be used for magento:setup
-                executeMojo(
-                        plugin(
-                            groupId("org.apache.maven.plugins"),
-                            artifactId("maven-dependency-plugin"),
-                            version("2.0")
-                        ),
-                        goal("unpack"),
-                        configuration(
-                            element(name("outputDirectory"), tempDir),
-                            element(name("markersDirectory"), markerDir.toString()),
-                            element("silent", "true"),
-                            element("artifactItems",
-                                element("artifactItem", 
-                                    element("groupId", depGroupdId),
-                                    element("artifactId", depId),
-                                    element("version", depVersion),
-                                    element("type", "jar")
-                                    ))
-                        ),
-                        executionEnvironment(
-                            project,
-                            session,
-                            pluginManager
-                        )
-                    );
-                FileUtil.deleteFile(markerDir.toString(), getLog());
-                // extract all other compile deps, minus the configured magento core for testing
-                MavenUtil.extractCompileDependencies(tempDir, project, getLog());
+                if (ArtifactCache.MODE_NONE.equals(magentoArtifactCache)) {
+                    // call dependency plugin to resolve and extract magento core to be used for magento:setup
+                    executeMojo(
+                            plugin(
+                                groupId("org.apache.maven.plugins"),
+                                artifactId("maven-dependency-plugin"),
+                                version("2.0")
+                            ),
+                            goal("unpack"),
+                            configuration(
+                                element(name("outputDirectory"), tempDir),
+                                element(name("markersDirectory"), markerDir.toString()),
+                                element("silent", "true"),
+                                element("artifactItems",
+                                    element("artifactItem", 
+                                        element("groupId", depGroupdId),
+                                        element("artifactId", depId),
+                                        element("version", depVersion),
+                                        element("type", "jar")
+                                        ))
+                            ),
+                            executionEnvironment(
+                                project,
+                                session,
+                                pluginManager
+                            )
+                        );
+                    FileUtil.deleteFile(markerDir.toString(), getLog());
+                    // extract all other compile deps, minus the configured magento core for testing
+                    MavenUtil.extractCompileDependencies(tempDir, project, getLog());
+                } else {
+                    // extract once into the local cache, later runs only copy or link the files
+                    final ArtifactCache cache = new ArtifactCache(Paths.get(magentoArtifactCacheDir),
+                            magentoArtifactCache);
+                    cache.setThreads(magentoCopyThreads);
+                    final File magentoArtifact = MavenUtil.resolveArtifact(repositorySystem, session, project,
+                            depGroupdId, depId, depVersion, "jar");
+                    cache.extract(magentoArtifact.toPath(), Paths.get(tempDir), getLog());
+                    MavenUtil.extractCompileDependencies(tempDir, project, cache, getLog());
+                }
                 getLog().info("..done.");
             } catch (IOException e) {
                 throw new MojoExecutionException("Error extracting artifact: " + e.getMessage(), e);
@@ -958,9 +1036,13 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
         }
 
         // inject dump into database
-        MagentoSqlUtil.importSqlDump(dumpFileName, magentoDbUser,
-                magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName,
-                getLog());
+        if (magentoDbTemplateCache) {
+            importSqlDumpWithTemplate(dumpFileName);
+        } else {
+            MagentoSqlUtil.importSqlDump(dumpFileName, magentoDbUser,
+                    magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName,
+                    magentoDbImportMethod, magentoDbThreads, getLog());
+        }
 
         String jdbcUrl = MagentoSqlUtil.getJdbcUrl(magentoDbHost, magentoDbPort, magentoDbName);
         Map<String, String> config = null;
@@ -1051,14 +1133,11 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
             if (magentoUseSampleData && !magentoArtifactIsCustom) {
                 final Path magentoSourcePath = Paths.get(tempDir + "/mavento_setup/sample_data");
                 final Path magentoTargetPath = Paths.get(tempDir);
-                try {
-                    getLog().info("Copying sample data..");
-                    final CopyFilesVisitor cv = new CopyFilesVisitor(magentoSourcePath, magentoTargetPath, false);
-                    Files.walkFileTree(magentoSourcePath, cv);
-                    getLog().info("..done.");
-                } catch (IOException e) {
-                    throw new MojoExecutionException(e.getMessage(), e);
-                }
+                getLog().info("Copying sample data..");
+                final ParallelFileCopier copier = new ParallelFileCopier(magentoSourcePath, magentoTargetPath);
+                copier.setThreads(magentoCopyThreads);
+                copier.copy(getLog());
+                getLog().info("..done.");
             }
         }
 
@@ -1092,7 +1171,8 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
                     } else {
                         try {
                             getLog().info("Extracting " + sourceFile.getFileName());
-                            FileUtil.unzipFile(sourceFile.toAbsolutePath().toString(), tempDir);
+                            FileUtil.unzipFile(sourceFile.toAbsolutePath().toString(), tempDir, true,
+                                    magentoCopyThreads);
                         } catch (IOException e) {
                             throw new MojoExecutionException("Error: " + e.getMessage(), e);
                         }
@@ -1114,18 +1194,45 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
             // copy prepared magento to final destination unless this an integration test
             Path magentoSourcePath = Paths.get(tempDir);
             Path magentoTargetPath = Paths.get(magentoRootLocal);
-            getLog().info("Everything is prepared, copying to " + magentoRootLocal);
+            if (magentoReleases > 0) {
+                // build the new release next to the live one, the root symlink is switched when setup is done
+                magentoTargetPath = ReleaseUtil.getNewReleaseDir(
+                        ReleaseUtil.getReleasesDir(magentoRootLocal, magentoReleasesDir));
+                targetDir = magentoTargetPath.toString();
+            }
+            getLog().info("Everything is prepared, deploying to " + magentoTargetPath);
+            FileUtil.emptyTrashDeferred(magentoRootLocal);
+            FileUtil.emptyTrashDeferred(tempDir);
+            final Path syncManifest = getSyncManifest("setup");
             try {
-                FileUtil.deleteFile(magentoRootLocal, getLog());
-                FileUtil.createDirectories(magentoTargetPath.toString(), true);
-
-                final CopyFilesVisitor cv = new CopyFilesVisitor(
-                        magentoSourcePath, magentoTargetPath,
-                        magentoFilePermissions, magentoDirPermissions,
-                        magentoFileOwner, magentoFileGroup);
-
-                Files.walkFileTree(magentoSourcePath, cv);
-                FileUtil.deleteFile(tempDir, getLog());
+                if (FileUtil.DEPLOY_STRATEGY_SYNC.equals(magentoDeployStrategy) && magentoReleases == 0) {
+                    FileUtil.createDirectories(magentoRootLocal, true);
+                    final FileSynchronizer synchronizer = new FileSynchronizer(
+                            magentoTargetPath.toRealPath(), syncManifest);
+                    synchronizer.setThreads(magentoCopyThreads);
+                    synchronizer.setChecksum(magentoSyncChecksum);
+                    synchronizer.setAttributes(magentoFilePermissions, magentoDirPermissions,
+                            magentoFileOwner, magentoFileGroup);
+                    synchronizer.syncDirectory(magentoSourcePath, getLog());
+                    getLog().info("..synced " + synchronizer.getWrittenCount() + " changed files, "
+                            + synchronizer.getUnchangedCount() + " unchanged, "
+                            + synchronizer.getDeletedCount() + " deleted.");
+                } else {
+                    String strategy = magentoDeployStrategy;
+                    if (FileUtil.DEPLOY_STRATEGY_SYNC.equals(strategy)) {
+                        getLog().info("..every release is a new directory, moving instead of syncing.");
+                        strategy = FileUtil.DEPLOY_STRATEGY_MOVE;
+                    }
+                    // the instance is replaced, a sync manifest would no longer describe it
+                    Files.deleteIfExists(syncManifest);
+                    if (magentoReleases == 0) {
+                        deleteFile(magentoRootLocal);
+                    }
+                    FileUtil.deployDirectory(magentoSourcePath, magentoTargetPath, strategy,
+                            magentoFilePermissions, magentoDirPermissions,
+                            magentoFileOwner, magentoFileGroup, magentoCopyThreads, getLog());
+                }
+                deleteFile(tempDir);
             } catch (IOException e) {
                 throw new MojoExecutionException("Error while copying to: "
                         + magentoTargetPath.toAbsolutePath() + " "
@@ -1146,6 +1253,23 @@ public abstract class AbstractMagentoSetupMojo extends AbstractMagentoSqlMojo {
         // finally reindex the magento db
         indexDb();
 
+        if (magentoReleases > 0 && !isIntegrationTest) {
+            switchRelease(Paths.get(targetDir));
+        }
+    }
+
+    /**
+     * Point magento.root.local at release and delete releases exceeding magento.releases.
+     * 
+     * @param release
+     * @throws MojoExecutionException
+     */
+    private void switchRelease(Path release) throws MojoExecutionException {
+        getLog().info("Switching " + magentoRootLocal + " to release " + release.getFileName() + "..");
+        ReleaseUtil.switchRelease(Paths.get(magentoRootLocal), release, getLog());
+        ReleaseUtil.pruneReleases(ReleaseUtil.getReleasesDir(magentoRootLocal, magentoReleasesDir),
+                magentoReleases, release, getLog());
+        getLog().info("..done.");
     }
 
     /**
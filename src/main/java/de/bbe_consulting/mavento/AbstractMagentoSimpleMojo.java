@@ -18,12 +18,16 @@ package de.bbe_consulting.mavento;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
 
+import de.bbe_consulting.mavento.helper.MagentoModuleScanner;
 import de.bbe_consulting.mavento.helper.MagentoUtil;
+import de.bbe_consulting.mavento.type.MagentoModule;
 import de.bbe_consulting.mavento.type.MagentoVersion;
 
 /**
@@ -78,4 +82,20 @@ public abstract class AbstractMagentoSimpleMojo extends AbstractMojo {
 
     }
 
+    /**
+     * Index of all modules of the magento instance. Cached in the project build directory if
+     * there is a project, see MagentoModuleScanner.
+     * 
+     * @return Map<String, MagentoModule> key: module key, i.e. Mage_Core
+     * @throws MojoExecutionException
+     */
+    protected Map<String, MagentoModule> getModuleIndex() throws MojoExecutionException {
+
+        final MagentoModuleScanner scanner = new MagentoModuleScanner(Paths.get(magentoPath));
+        if (project != null && project.getFile() != null) {
+            scanner.setCacheDir(Paths.get(project.getBuild().getDirectory(), MagentoModuleScanner.CACHE_DIR_NAME));
+        }
+        return scanner.scan(getLog());
+    }
+
 }
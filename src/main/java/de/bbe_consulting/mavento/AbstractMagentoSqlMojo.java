@@ -16,6 +16,16 @@
 
 package de.bbe_consulting.mavento;
 
+import java.nio.file.Paths;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import de.bbe_consulting.mavento.helper.FileUtil;
+import de.bbe_consulting.mavento.helper.sql.JdbcConnectionManager;
+import de.bbe_consulting.mavento.helper.sql.MysqlSchemaCache;
+import de.bbe_consulting.mavento.type.MysqlSchema;
+
 /**
  * Abstract class for mojos that want to access the magento database.
  * 
@@ -56,4 +66,52 @@ public abstract class AbstractMagentoSqlMojo extends AbstractMagentoMojo {
      */
     protected String magentoDbPort;
 
+    /** 
+     * How sql dumps are imported, mysql (mysql client exec) or jdbc (no client needed).<br/>
+     * @parameter expression="${magento.db.import.method}" default-value="mysql"
+     */
+    protected String magentoDbImportMethod;
+
+    /** 
+     * Number of parallel database connections used by per table dumps and imports.<br/>
+     * @parameter expression="${magento.db.threads}" default-value="4"
+     */
+    protected int magentoDbThreads;
+
+    /**
+     * Runs executeSql() and closes the pooled database connections afterwards, the pool must
+     * not outlive the goal in a reused jvm. Background deletes are waited for even if the goal
+     * failed, so no half emptied trash dirs are left behind.
+     */
+    @Override
+    public final void execute() throws MojoExecutionException, MojoFailureException {
+        try {
+            executeSql();
+        } finally {
+            JdbcConnectionManager.closeAll();
+            FileUtil.awaitDeferredDeletes(getLog());
+        }
+    }
+
+    /**
+     * The goal itself, see execute().
+     * 
+     * @throws MojoExecutionException
+     * @throws MojoFailureException
+     */
+    protected abstract void executeSql() throws MojoExecutionException, MojoFailureException;
+
+    /**
+     * Schema of the magento database, cached in the build directory until the schema changes.
+     * 
+     * @param refresh reload to get current row estimates
+     * @return MysqlSchema
+     * @throws MojoExecutionException
+     */
+    protected MysqlSchema getMysqlSchema(boolean refresh) throws MojoExecutionException {
+        return MysqlSchemaCache.getSchema(magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort,
+                magentoDbName, Paths.get(project.getBuild().getDirectory(), MysqlSchemaCache.CACHE_DIR_NAME),
+                refresh, getLog());
+    }
+
 }
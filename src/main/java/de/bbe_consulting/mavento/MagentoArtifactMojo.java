@@ -22,8 +22,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.transform.TransformerException;
@@ -41,7 +43,9 @@ import de.bbe_consulting.mavento.helper.FileUtil;
 import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
 import de.bbe_consulting.mavento.helper.MagentoUtil;
 import de.bbe_consulting.mavento.helper.MagentoXmlUtil;
-import de.bbe_consulting.mavento.helper.visitor.CopyFilesVisitor;
+import de.bbe_consulting.mavento.helper.ParallelFileCopier;
+import de.bbe_consulting.mavento.helper.sql.JdbcConnectionManager;
+import de.bbe_consulting.mavento.helper.sql.MysqlSchemaCache;
 import de.bbe_consulting.mavento.helper.visitor.MoveFilesVisitor;
 import de.bbe_consulting.mavento.type.MagentoVersion;
 import difflib.PatchFailedException;
@@ -75,7 +79,9 @@ import static org.twdata.maven.mojoexecutor.MojoExecutor.version;
  * Use -DtruncateLogs to prune all log tables. Enabled per default.<br/>
  * Use -DincludeViewedProduct to also truncate report_viewed_product_index. Disabled per default.<br/>
  * Use -DtruncateCustomers to prune all customer/order data. Disabled per default.<br/>
- * Use -DtempDb to specify the temporary db name, default is source db name + "_temp"<br/><br/> 
+ * Use -DtempDb to specify the temporary db name, default is source db name + "_temp"<br/>
+ * Use -DsinglePassDump to skip the temporary db, truncated tables are then dumped without data
+ * straight from the source db. Disabled per default.<br/><br/> 
  *
  * To create a dependency artifact from a vanilla Magento zip:<br/>
  * 
@@ -242,6 +248,42 @@ public class MagentoArtifactMojo extends AbstractMojo {
      * @parameter expression="${truncateCustomers}" default-value="false"
      */
     protected Boolean truncateCustomers;
+
+    /**
+     * Dump the source db in one pass, tables that would be truncated are dumped without data.<br/>
+     * No temporary db is needed.<br/>
+     * 
+     * @parameter expression="${singlePassDump}" default-value="false"
+     */
+    protected Boolean singlePassDump;
+
+    /**
+     * How sql dumps are imported, mysql (mysql client exec) or jdbc (no client needed).<br/>
+     * 
+     * @parameter expression="${importMethod}" default-value="mysql"
+     */
+    protected String importMethod;
+
+    /**
+     * Number of threads used to copy, extract and jar the Magento snapshot.<br/>
+     * 
+     * @parameter expression="${copyThreads}" default-value="8"
+     */
+    protected int copyThreads;
+
+    /**
+     * Deflate level of the jar entries, 0 stores them uncompressed.<br/>
+     * 
+     * @parameter expression="${compressionLevel}" default-value="0"
+     */
+    protected int compressionLevel;
+
+    /**
+     * Sort jar entries and use fixed timestamps, the same snapshot always gives the same jar.<br/>
+     * 
+     * @parameter expression="${reproducible}" default-value="false"
+     */
+    protected Boolean reproducible;
     
     /**
      * Working dir.
@@ -250,6 +292,14 @@ public class MagentoArtifactMojo extends AbstractMojo {
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
+        try {
+            executeSql();
+        } finally {
+            JdbcConnectionManager.closeAll();
+        }
+    }
+
+    private void executeSql() throws MojoExecutionException, MojoFailureException {
 
         if (tempDir != null && !tempDir.isEmpty()) {
             tempDirPath = Paths.get(tempDir);
@@ -281,7 +331,7 @@ public class MagentoArtifactMojo extends AbstractMojo {
     private void createVanillaArtifact() throws MojoExecutionException {
         getLog().info("Working directory is: " + tempDirPath);
         try {
-            FileUtil.unzipFile(magentoZip, tempDirPath.toString());
+            FileUtil.unzipFile(magentoZip, tempDirPath.toString(), false, copyThreads);
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
@@ -342,7 +392,8 @@ public class MagentoArtifactMojo extends AbstractMojo {
         }
         // import sample data dump
         MagentoSqlUtil.recreateMagentoDb(dbUser, dbPassword, dbHost, dbPort, dbName, getLog());
-        MagentoSqlUtil.importSqlDump(sampleDataPre.toString(), dbUser, dbPassword, dbHost, dbPort, dbName, getLog());
+        MagentoSqlUtil.importSqlDump(sampleDataPre.toString(), dbUser, dbPassword, dbHost, dbPort, dbName,
+                importMethod, getLog());
         // run magento setup and indexer
         MagentoUtil.execMagentoInstall(tempDirPath, dbUser, dbPassword, dbHost+":"+dbPort, dbName, getLog());
         if (mageVersion.getMajorVersion() >= 1 && mageVersion.getMinorVersion() >= 4) {
@@ -354,7 +405,7 @@ public class MagentoArtifactMojo extends AbstractMojo {
         MagentoSqlUtil.recreateMagentoDb(dbUser, dbPassword, dbHost, dbPort, dbName, getLog());
         try {
             FileUtil.deleteFile(tempDirPath.toString()+"/magento", getLog());
-            FileUtil.unzipFile(magentoZip, tempDirPath.toString());
+            FileUtil.unzipFile(magentoZip, tempDirPath.toString(), false, copyThreads);
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
@@ -397,7 +448,8 @@ public class MagentoArtifactMojo extends AbstractMojo {
             artifactFile = "magento-"+mageVersion+".jar";
         }
         getLog().info("Creating jar file: " + artifactFile + "..");
-        FileUtil.createJar(artifactFile, tempDirPath.toString());
+        FileUtil.createJar(artifactFile, tempDirPath.toString(), compressionLevel, reproducible, copyThreads,
+                getLog());
         getLog().info("..done.");
         
         // clean up
@@ -473,16 +525,11 @@ public class MagentoArtifactMojo extends AbstractMojo {
         
         // copy magento source to tmp dir
         getLog().info("Creating snapshot..");
-        final CopyFilesVisitor cv = new CopyFilesVisitor(Paths.get(magentoPath), tempDirPath, true);
-        try {
-            Files.walkFileTree(Paths.get(magentoPath),
-                    EnumSet.of(FileVisitOption.FOLLOW_LINKS),
-                    Integer.MAX_VALUE, cv);
-        } catch (IOException e) {
-            throw new MojoExecutionException("Error copying to tmp dir. " + e.getMessage(), e);
-        } catch (Exception e) {
-            throw new MojoExecutionException("Error copying to tmp dir. " + e.getMessage(), e);
-        }
+        final ParallelFileCopier copier = new ParallelFileCopier(Paths.get(magentoPath), tempDirPath);
+        copier.setThreads(copyThreads);
+        copier.setPreserveAttributes(true);
+        copier.setFollowLinks(true);
+        copier.copy(getLog());
         getLog().info("..done.");
 
         // prepare db dump
@@ -503,18 +550,27 @@ public class MagentoArtifactMojo extends AbstractMojo {
         if (skipTempDb) {
             tempDb = dbSettings.get("dbname");
         }
-        if (truncateLogs || truncateCustomers) {
-            truncateTables(dbSettings, dumpFile);
-        }
-        // final dump
-        MagentoSqlUtil.dumpSqlDb(dumpFile, dbSettings.get("user"),
-                dbSettings.get("password"), dbSettings.get("host"),
-                dbSettings.get("port"), tempDb, getLog());
-        // drop temp db if we created one
-        if (!skipTempDb && truncateLogs || truncateCustomers) {
-        MagentoSqlUtil.dropMagentoDb(dbSettings.get("user"),
-                dbSettings.get("password"), dbSettings.get("host"),
-                dbSettings.get("port"), tempDb, getLog());
+        if (singlePassDump && (truncateLogs || truncateCustomers)) {
+            // dump cleaned tables without data, straight from the source db
+            final Path schemaCacheDir = project != null && project.getFile() != null
+                    ? Paths.get(project.getBuild().getDirectory(), MysqlSchemaCache.CACHE_DIR_NAME) : null;
+            MagentoSqlUtil.dumpSqlDbFiltered(dumpFile, getTruncatedTableNames(), dbSettings.get("user"),
+                    dbSettings.get("password"), dbSettings.get("host"),
+                    dbSettings.get("port"), dbSettings.get("dbname"), schemaCacheDir, getLog());
+        } else {
+            if (truncateLogs || truncateCustomers) {
+                truncateTables(dbSettings, dumpFile);
+            }
+            // final dump
+            MagentoSqlUtil.dumpSqlDb(dumpFile, dbSettings.get("user"),
+                    dbSettings.get("password"), dbSettings.get("host"),
+                    dbSettings.get("port"), tempDb, getLog());
+            // drop temp db if we created one
+            if (!skipTempDb && (truncateLogs || truncateCustomers)) {
+                MagentoSqlUtil.dropMagentoDb(dbSettings.get("user"),
+                        dbSettings.get("password"), dbSettings.get("host"),
+                        dbSettings.get("port"), tempDb, getLog());
+            }
         }
 
         // scramble db settings in local.xml
@@ -550,7 +606,8 @@ public class MagentoArtifactMojo extends AbstractMojo {
             artifactFile += "-" + defaultVersion + ".jar";
         }
         getLog().info("Creating jar file: " + artifactFile + "..");
-        FileUtil.createJar(artifactFile, tempDirPath.toString());
+        FileUtil.createJar(artifactFile, tempDirPath.toString(), compressionLevel, reproducible, copyThreads,
+                getLog());
         getLog().info("..done.");
 
         // clean up
@@ -571,6 +628,28 @@ public class MagentoArtifactMojo extends AbstractMojo {
         getLog().info("..to install the jar into your local maven repository.");
     }
 
+    /**
+     * Tables cleaned by truncateLogs/truncateCustomers.
+     * 
+     * @return List<String> table names
+     */
+    private List<String> getTruncatedTableNames() {
+
+        final List<String> tableNames = new ArrayList<String>();
+        if (truncateLogs) {
+            tableNames.addAll(MagentoSqlUtil.getLogTableNames(includeViewedProduct));
+        }
+        if (truncateCustomers) {
+            tableNames.addAll(MagentoSqlUtil.getSalesTableNames());
+            for (String tableName : MagentoSqlUtil.getCustomerTableNames()) {
+                if (!tableNames.contains(tableName)) {
+                    tableNames.add(tableName);
+                }
+            }
+        }
+        return tableNames;
+    }
+
     /**
      * Handle table truncating.
      * 
@@ -588,7 +667,7 @@ public class MagentoArtifactMojo extends AbstractMojo {
             MagentoSqlUtil.recreateMagentoDb(dbSettings.get("user"), dbSettings.get("password"),
                     dbSettings.get("host"), dbSettings.get("port"), tempDb, getLog());
             MagentoSqlUtil.importSqlDump(dumpFile, dbSettings.get("user"), dbSettings.get("password"),
-                    dbSettings.get("host"), dbSettings.get("port"), tempDb, getLog());
+                    dbSettings.get("host"), dbSettings.get("port"), tempDb, importMethod, getLog());
         }
         final String jdbcUrlTempDb = MagentoSqlUtil.getJdbcUrl(dbSettings.get("host"),
                 dbSettings.get("port"), tempDb);
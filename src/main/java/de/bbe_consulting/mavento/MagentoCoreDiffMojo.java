@@ -0,0 +1,160 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.repository.RepositorySystem;
+
+import de.bbe_consulting.mavento.helper.CoreDiffScanner;
+import de.bbe_consulting.mavento.helper.MavenUtil;
+
+/**
+ * Find core modifications of a magento instance by comparing it with the pristine magento
+ * artifact created by magento:artifact. Does not need a active Maven project.<br/><br/>
+ * 
+ * Reports modified, added and missing core files. Use -DcoreDiffPatch=/path/to/core.diff to
+ * also write a patch of the modifications, it can be applied to a pristine instance with
+ * magento:patch.<br/>
+ * 
+ * <pre>
+ * mvn magento:core-diff -DmagentoPath=/path/to/magento/folder
+ * </pre>
+ * 
+ * @goal core-diff
+ * @aggregator false
+ * @requiresProject false
+ * @author Erik Dannenberg
+ */
+public class MagentoCoreDiffMojo extends AbstractMagentoSimpleMojo {
+
+    /**
+     * Version of the com.varien:magento artifact to compare with, default is the version of the instance.<br/>
+     * 
+     * @parameter expression="${magentoVersion}"
+     */
+    protected String magentoVersion;
+
+    /**
+     * Compare with this jar instead of the com.varien:magento artifact.<br/>
+     * 
+     * @parameter expression="${artifactFile}"
+     */
+    protected String artifactFile;
+
+    /**
+     * Comma separated paths relative to the magento root that are compared.<br/>
+     * Default: CoreDiffScanner.DEFAULT_INCLUDES, app/code/core, js, lib, the base themes, etc.
+     * 
+     * @parameter expression="${coreDiffIncludes}"
+     */
+    protected String coreDiffIncludes;
+
+    /**
+     * Write a unified diff of all modified text files to this file.<br/>
+     * 
+     * @parameter expression="${coreDiffPatch}"
+     */
+    protected String coreDiffPatch;
+
+    /**
+     * Number of threads computing checksums.<br/>
+     * 
+     * @parameter expression="${coreDiffThreads}" default-value="8"
+     */
+    protected int coreDiffThreads;
+
+    /**
+     * @parameter expression="${session}"
+     * @required
+     * @readonly
+     */
+    protected MavenSession session;
+
+    /**
+     * @component
+     * @required
+     * @readonly
+     */
+    protected RepositorySystem repositorySystem;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+
+        initMojo();
+        final Path artifact;
+        if (artifactFile != null && !artifactFile.isEmpty()) {
+            artifact = Paths.get(artifactFile);
+            if (!Files.isRegularFile(artifact)) {
+                throw new MojoExecutionException("Could not find artifact file " + artifactFile);
+            }
+        } else {
+            if (magentoVersion == null || magentoVersion.isEmpty()) {
+                if (mVersion == null) {
+                    throw new MojoExecutionException("Could not find Magento version, use -DmagentoVersion=1.x.x.x");
+                }
+                magentoVersion = mVersion.toString();
+            }
+            artifact = MavenUtil.resolveArtifact(repositorySystem, session, project, "com.varien", "magento",
+                    magentoVersion, "jar").toPath();
+        }
+
+        getLog().info("Comparing " + magentoPath + " with " + artifact.getFileName() + "..");
+        final CoreDiffScanner scanner = new CoreDiffScanner(artifact, Paths.get(magentoPath));
+        scanner.setThreads(coreDiffThreads);
+        if (coreDiffIncludes != null && !coreDiffIncludes.isEmpty()) {
+            scanner.setIncludes(Arrays.asList(coreDiffIncludes.split(",")));
+        }
+        try {
+            scanner.scan(getLog());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error comparing with " + artifact + " " + e.getMessage(), e);
+        }
+        logFiles("modified", scanner.getModified());
+        logFiles("added", scanner.getAdded());
+        logFiles("missing", scanner.getMissing());
+        getLog().info("..done. " + scanner.getModified().size() + " modified, " + scanner.getAdded().size()
+                + " added, " + scanner.getMissing().size() + " missing.");
+
+        if (coreDiffPatch != null && !coreDiffPatch.isEmpty()) {
+            getLog().info("");
+            getLog().info("Writing patch " + coreDiffPatch + "..");
+            try {
+                final int count = scanner.writePatch(Paths.get(coreDiffPatch), getLog());
+                getLog().info("..done. " + count + " files.");
+            } catch (IOException e) {
+                throw new MojoExecutionException("Error writing patch " + coreDiffPatch + " " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void logFiles(String status, Set<String> files) {
+        for (String file : files) {
+            getLog().info(String.format("..%-8s %s", status, file));
+        }
+    }
+
+}
@@ -18,14 +18,19 @@ package de.bbe_consulting.mavento;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
+import de.bbe_consulting.mavento.helper.FileSynchronizer;
 import de.bbe_consulting.mavento.helper.FileUtil;
 import de.bbe_consulting.mavento.helper.MagentoUtil;
+import de.bbe_consulting.mavento.helper.ReleaseUtil;
 
 /**
  * Deploy current build artifact to Magento instance.<br/>
@@ -35,51 +40,108 @@ import de.bbe_consulting.mavento.helper.MagentoUtil;
  * mvn package magento:deploy
  * </pre>
  * 
+ * With magento.releases set the artifact is deployed into a new release, created from the current one
+ * with hardlinks, and magento.root.local is switched to it when done.<br/>
+ * 
  * @goal deploy
  * @requiresDependencyResolution compile
  * @author Erik Dannenberg
  */
 public final class MagentoDeployMojo extends AbstractMagentoMojo {
 
+    /**
+     * Only extract artifact entries whose crc changed since the last deploy and delete entries that are gone.<br/>
+     * The crcs of the last deploy are kept in a manifest in target/mavento, false always extracts everything.<br/>
+     * 
+     * @parameter expression="${magento.deploy.delta}" default-value="true"
+     */
+    protected Boolean magentoDeployDelta;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
 
         final File buildArtifact = new File(project.getBuild().getDirectory() + "/"
                 + project.getArtifactId() + "-" + project.getVersion() + ".zip");
         if (buildArtifact.exists()) {
             if (magentoDeployType.equals("local")) {
-                getLog().info("Checking for symlinks..");
-                final String srcDirName = project.getBasedir().getAbsolutePath() + "/src/main/php";
                 final File f = new File(magentoRootLocal + "/app/etc/local.xml");
                 if (!f.exists()) {
                     throw new MojoExecutionException(
                             "Could not find Magento root, did you forget to run 'mvn magento:install'? ;)");
                 }
+                String deployRoot = magentoRootLocal;
+                if (magentoReleases > 0) {
+                    final Path currentRelease = ReleaseUtil.getCurrentRelease(Paths.get(magentoRootLocal));
+                    if (currentRelease == null) {
+                        throw new MojoExecutionException(magentoRootLocal
+                                + " is not a release symlink, run magento:setup with magento.releases first.");
+                    }
+                    final Path release = ReleaseUtil.getNewReleaseDir(
+                            ReleaseUtil.getReleasesDir(magentoRootLocal, magentoReleasesDir));
+                    getLog().info("Creating release " + release.getFileName() + " from "
+                            + currentRelease.getFileName() + "..");
+                    ReleaseUtil.createRelease(currentRelease, release, magentoCopyThreads, getLog());
+                    deployRoot = release.toString();
+                    getLog().info("..done.");
+                }
+
+                getLog().info("Checking for symlinks..");
+                final String srcDirName = project.getBasedir().getAbsolutePath() + "/src/main/php";
                 Map<String, String> linkMap = new HashMap<String, String>();
                 try {
-                    linkMap = MagentoUtil.collectSymlinks(srcDirName, magentoRootLocal);
+                    linkMap = MagentoUtil.collectSymlinks(srcDirName, deployRoot);
                 } catch (IOException e) {
                     throw new MojoExecutionException(e.getMessage(), e);
                 }
 
+                // links of magento:symlink, extracting would write through them into the sources
                 for (Map.Entry<String, String> fileNames : linkMap.entrySet()) {
-                    File t = new File(fileNames.getValue());
-                    if (t.exists()) {
+                    final Path t = Paths.get(fileNames.getValue());
+                    if (Files.isSymbolicLink(t)) {
                         getLog().info("..deleting: " + fileNames.getValue());
-                        t.delete();
+                        try {
+                            Files.delete(t);
+                        } catch (IOException e) {
+                            throw new MojoExecutionException("Error deleting symlink " + t + " " + e.getMessage(), e);
+                        }
                     }
                 }
                 getLog().info("..done.");
 
-                getLog().info("Deploying local to: " + magentoRootLocal);
+                getLog().info("Deploying local to: " + deployRoot);
+                final Path syncManifest = getSyncManifest("deploy");
                 try {
-                    FileUtil.unzipFile(buildArtifact.getAbsolutePath(), magentoRootLocal);
+                    if (magentoDeployDelta || FileUtil.DEPLOY_STRATEGY_SYNC.equals(magentoDeployStrategy)) {
+                        getLog().info("..extracting changes of: " + buildArtifact.getName());
+                        final FileSynchronizer synchronizer = new FileSynchronizer(
+                                Paths.get(deployRoot).toRealPath(), syncManifest);
+                        // releases share one manifest, the new release starts as a copy of the current one
+                        synchronizer.setManifestKey(magentoRootLocal);
+                        synchronizer.setThreads(magentoCopyThreads);
+                        synchronizer.setChecksum(magentoSyncChecksum);
+                        synchronizer.syncZip(buildArtifact.toPath(), getLog());
+                        getLog().info("..extracted " + synchronizer.getWrittenCount() + " changed files, "
+                                + synchronizer.getUnchangedCount() + " unchanged, "
+                                + synchronizer.getDeletedCount() + " deleted.");
+                    } else {
+                        Files.deleteIfExists(syncManifest);
+                        getLog().info("..extracting: " + buildArtifact.getName());
+                        FileUtil.unzipFile(buildArtifact.getAbsolutePath(), deployRoot, magentoReleases > 0,
+                                magentoCopyThreads);
+                    }
                 } catch (IOException e) {
                     throw new MojoExecutionException(e.getMessage(), e);
                 }
-
-                getLog().info("..extracting: " + buildArtifact.getName());
                 getLog().info("..done.");
 
+                if (magentoReleases > 0) {
+                    getLog().info("Switching " + magentoRootLocal + " to release "
+                            + Paths.get(deployRoot).getFileName() + "..");
+                    ReleaseUtil.switchRelease(Paths.get(magentoRootLocal), Paths.get(deployRoot), getLog());
+                    ReleaseUtil.pruneReleases(ReleaseUtil.getReleasesDir(magentoRootLocal, magentoReleasesDir),
+                            magentoReleases, Paths.get(deployRoot), getLog());
+                    getLog().info("..done.");
+                }
+
             } else {
                 getLog().info("Deploying remote to: " + magentoRootRemote);
                 throw new MojoExecutionException("oops, remote deploy not implemented yet :(");
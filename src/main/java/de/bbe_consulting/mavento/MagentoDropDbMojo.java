@@ -23,6 +23,7 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
 import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
+import de.bbe_consulting.mavento.type.MysqlSchema;
 
 /**
  * Drop the current Magento database.
@@ -62,14 +63,20 @@ public final class MagentoDropDbMojo extends AbstractMagentoSqlMojo {
      */
     private boolean skipEntityTableCompletion;
 
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    protected void executeSql() throws MojoExecutionException, MojoFailureException {
 
         // drop some tables or whole db?
         if (magentoTables != null && !magentoTables.isEmpty()) {
             ArrayList<String> tableNames = new ArrayList<String>(Arrays.asList(magentoTables.split(",")));
+            final MysqlSchema schema = getMysqlSchema(false);
+            for (String tableName : tableNames) {
+                if (!schema.hasTable(tableName)) {
+                    throw new MojoExecutionException("Table " + tableName + " does not exist in database "
+                            + magentoDbName);
+                }
+            }
             if (!skipEntityTableCompletion) {
-                tableNames = MagentoSqlUtil.getEntityDataTables(tableNames,
-                        magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName);
+                tableNames = MagentoSqlUtil.getEntityDataTables(tableNames, schema);
             }
             MagentoSqlUtil.dropSqlTables(tableNames, magentoDeleteCondition, magentoDropTables, magentoDbUser, magentoDbPasswd,
                     magentoDbHost, magentoDbPort, magentoDbName, getLog());
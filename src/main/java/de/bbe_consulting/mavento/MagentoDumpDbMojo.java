@@ -17,6 +17,7 @@
 package de.bbe_consulting.mavento;
 
 import java.io.File;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,6 +28,8 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
 import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
+import de.bbe_consulting.mavento.helper.sql.ParallelSqlDumper;
+import de.bbe_consulting.mavento.type.MysqlSchema;
 
 /**
  * Dump current Magento database timestamped to sqldumps/ of project base dir.<br/>
@@ -36,6 +39,8 @@ import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
  * mvn magento:dump-db -Dout=mydump.sql
  * </pre>
  * 
+ * Dump files ending with .gz are gzip compressed on the fly.<br/>
+ * 
  * To only dump certain tables use -Dtables, -Dwhere is optional and takes mysql syntax.<br/>
  * The plugin will check for eav type tables and include them per default unless -DskipTableCompletion is set.<br/>
  * 
@@ -43,7 +48,22 @@ import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
  * mvn magento:dump-db -Dtables=catalog_category_entity -Dwhere='entity_id > 2931'
  * </pre>
  * 
- * This would dump all category data, including the eav tables (_int,_text, etc), where entity_id is greater than 2931.
+ * This would dump all category data, including the eav tables (_int,_text, etc), where entity_id is greater than 2931.<br/>
+ * 
+ * Big databases can be dumped table by table into a directory with several connections in parallel.
+ * All tables are read from the same snapshot, a manifest.tsv with row counts, sizes and checksums is
+ * written alongside:<br/>
+ * 
+ * <pre>
+ * mvn magento:dump-db -Dparallel -Dmagento.db.threads=8
+ * </pre>
+ * 
+ * If the given directory name ends with .gz the table data files are gzip compressed, the extension
+ * is dropped from the directory name:<br/>
+ * 
+ * <pre>
+ * mvn magento:dump-db -Dparallel -Dout=mydump.gz
+ * </pre>
  * 
  * @goal dump-db
  * @aggregator false
@@ -53,7 +73,7 @@ import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
 public class MagentoDumpDbMojo extends AbstractMagentoSqlMojo {
 
     /**
-     * Output file. Default: sqldumps/$dbname+timestamp
+     * Output file, use .gz extension for a compressed dump. Default: sqldumps/$dbname+timestamp
      * 
      * @parameter expression="${out}"
      */
@@ -80,7 +100,15 @@ public class MagentoDumpDbMojo extends AbstractMagentoSqlMojo {
      */
     private boolean skipEntityTableCompletion;
 
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    /**
+     * Dump each table into its own file inside a dump directory, using magento.db.threads connections.
+     * Default: false
+     * 
+     * @parameter expression="${parallel}" default-value="false"
+     */
+    private boolean parallelDump;
+
+    protected void executeSql() throws MojoExecutionException, MojoFailureException {
 
         final File f = new File(project.getBasedir() + "/sqldumps");
         if (!f.exists()) {
@@ -90,18 +118,40 @@ public class MagentoDumpDbMojo extends AbstractMagentoSqlMojo {
             final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmm", new Locale("en", "EN"));
             final String dumpDate = format.format(new Date());
             magentoDumpFile = project.getBasedir() + "/sqldumps/"
-                    + magentoDbName + "-" + dumpDate + ".sql";
+                    + magentoDbName + "-" + dumpDate + (parallelDump ? "" : ".sql");
         } else {
             magentoDumpFile = project.getBasedir() + "/sqldumps/" + magentoDumpFile;
         }
 
-        // dump some tables or whole db?
+        ArrayList<String> tableNames = null;
         if (magentoTables != null && !magentoTables.isEmpty()) {
-            ArrayList<String> tableNames = new ArrayList<String>(Arrays.asList(magentoTables.split(",")));
+            tableNames = new ArrayList<String>(Arrays.asList(magentoTables.split(",")));
+            final MysqlSchema schema = getMysqlSchema(false);
+            for (String tableName : tableNames) {
+                if (!schema.hasTable(tableName)) {
+                    throw new MojoExecutionException("Table " + tableName + " does not exist in database "
+                            + magentoDbName);
+                }
+            }
             if (!skipEntityTableCompletion) {
-                tableNames = MagentoSqlUtil.getEntityDataTables(tableNames,
-                        magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName);
+                tableNames = MagentoSqlUtil.getEntityDataTables(tableNames, schema);
+            }
+        }
+
+        // per table dump, some tables or whole db?
+        if (parallelDump) {
+            final ParallelSqlDumper dumper = new ParallelSqlDumper(magentoDbUser, magentoDbPasswd,
+                    magentoDbHost, magentoDbPort, magentoDbName, getLog());
+            dumper.setThreads(magentoDbThreads);
+            dumper.setTableNames(tableNames);
+            dumper.setWhereCondition(magentoDumpCondition);
+            if (MagentoSqlUtil.isGzipFile(magentoDumpFile)) {
+                dumper.setCompress(true);
+                magentoDumpFile = magentoDumpFile.substring(0,
+                        magentoDumpFile.length() - MagentoSqlUtil.GZIP_EXTENSION.length());
             }
+            dumper.dump(Paths.get(magentoDumpFile));
+        } else if (tableNames != null) {
             MagentoSqlUtil.dumpSqlTables(tableNames, magentoDumpCondition, magentoDumpFile, magentoDbUser, magentoDbPasswd,
                     magentoDbHost, magentoDbPort, magentoDbName, getLog());
         } else {
@@ -31,6 +31,10 @@ import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
  * mvn magento:import-db -Dmagento.db.dump.file=mydump.sql
  * </pre>
  * 
+ * Dump files ending with .gz are decompressed on the fly.<br/>
+ * Directories written by magento:dump-db -Dparallel are imported table by table using
+ * magento.db.threads connections.<br/>
+ * 
  * @goal import-db
  * @aggregator false
  * @requiresDependencyResolution compile
@@ -39,14 +43,14 @@ import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
 public class MagentoImportDbMojo extends AbstractMagentoSqlMojo {
 
     /**
-     * Mysql dump filename, dump is expected in /sqldumps of your project root.<br/>
+     * Mysql dump filename or per table dump directory, dump is expected in /sqldumps of your project root.<br/>
      * 
      * @parameter expression="${magento.db.dump.file}"
      * @required
      */
     private String magentoDumpFile;
 
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    protected void executeSql() throws MojoExecutionException, MojoFailureException {
 
         File f = null;
         if (magentoDumpFile.startsWith("sqldumps/")) {
@@ -59,7 +63,7 @@ public class MagentoImportDbMojo extends AbstractMagentoSqlMojo {
                     "Could not find dump file. Make sure it is placed in /sqldumps of your project root.");
         }
         MagentoSqlUtil.importSqlDump(f.getAbsolutePath(), magentoDbUser, magentoDbPasswd,
-                magentoDbHost, magentoDbPort, magentoDbName, getLog());
+                magentoDbHost, magentoDbPort, magentoDbName, magentoDbImportMethod, magentoDbThreads, getLog());
 
     }
 
@@ -18,12 +18,12 @@ package de.bbe_consulting.mavento;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import org.apache.commons.lang.mutable.MutableLong;
@@ -33,10 +33,13 @@ import org.w3c.dom.Document;
 
 import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
 import de.bbe_consulting.mavento.helper.MagentoXmlUtil;
+import de.bbe_consulting.mavento.helper.sql.JdbcConnectionManager;
+import de.bbe_consulting.mavento.helper.sql.MysqlSchemaCache;
 import de.bbe_consulting.mavento.helper.visitor.FileSizeVisitor;
 import de.bbe_consulting.mavento.type.MagentoCoreConfig;
 import de.bbe_consulting.mavento.type.MagentoModule;
 import de.bbe_consulting.mavento.type.MagentoModuleComperator;
+import de.bbe_consulting.mavento.type.MysqlSchema;
 import de.bbe_consulting.mavento.type.MysqlTable;
 
 /**
@@ -75,6 +78,14 @@ public class MagentoInfoMojo extends AbstractMagentoSimpleMojo {
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
+        try {
+            executeSql();
+        } finally {
+            JdbcConnectionManager.closeAll();
+        }
+    }
+
+    private void executeSql() throws MojoExecutionException, MojoFailureException {
 
         initMojo();
         getLog().info("Scanning: " + magentoPath);
@@ -137,14 +148,23 @@ public class MagentoInfoMojo extends AbstractMagentoSimpleMojo {
                     + String.format("%,8d", rootSizeTotal.toLong()).trim() + " bytes");
             if (SQL_CONNECTION_VALID.equals(sqlError)) {
                 try {
-                    final Map<String, Integer> dbDetails = MagentoSqlUtil.getDbSize(dbSettings.get("dbname"), dbSettings.get("user"),
-                            dbSettings.get("password"), jdbcUrl, getLog());
-                    final List<MysqlTable> logTableDetails = MagentoSqlUtil.getLogTablesSize(dbSettings.get("dbname"), dbSettings.get("user"),
-                            dbSettings.get("password"), jdbcUrl, getLog());
-                    getLog().info("Database total: " + String.format("%,8d", dbDetails.get("totalRows")).trim() +
-                            " entries / " + String.format("%,8d", dbDetails.get("totalSize")).trim() + "mb");
-                    int logSizeTotal = 0;
-                    int logRowsTotal = 0;
+                    // current row estimates, also refreshes the schema cache of the project if there is one
+                    final Path schemaCacheDir = project != null && project.getFile() != null
+                            ? Paths.get(project.getBuild().getDirectory(), MysqlSchemaCache.CACHE_DIR_NAME) : null;
+                    final MysqlSchema schema = MysqlSchemaCache.getSchema(dbSettings.get("user"),
+                            dbSettings.get("password"), dbSettings.get("host"), dbSettings.get("port"),
+                            dbSettings.get("dbname"), schemaCacheDir, true, getLog());
+                    final List<MysqlTable> logTableDetails = schema.getTablesByPrefix("log_", "report_");
+                    Collections.sort(logTableDetails, new Comparator<MysqlTable>() {
+                        @Override
+                        public int compare(MysqlTable a, MysqlTable b) {
+                            return Long.compare(b.getTableRows(), a.getTableRows());
+                        }
+                    });
+                    getLog().info("Database total: " + String.format("%,8d", schema.getTotalRows()).trim() +
+                            " entries / " + String.format("%,8d", schema.getTotalSizeInMb()).trim() + "mb");
+                    long logSizeTotal = 0;
+                    long logRowsTotal = 0;
                     for (MysqlTable t : logTableDetails) {
                         logSizeTotal += t.getTableSizeInMb();
                         logRowsTotal += t.getTableRows();
@@ -162,34 +182,16 @@ public class MagentoInfoMojo extends AbstractMagentoSimpleMojo {
             getLog().info("");
         }
         // parse modules
-        final Path modulesXmlPath = Paths.get(magentoPath + "/app/etc/modules");
-        if (!Files.exists(modulesXmlPath)) {
-            throw new MojoExecutionException("Could not find /app/etc/modules directory.");
-        }
-
-        DirectoryStream<Path> files = null;
         final ArrayList<MagentoModule> localModules = new ArrayList<MagentoModule>();
         final ArrayList<MagentoModule> communityModules = new ArrayList<MagentoModule>();
-        try {
-            files = Files.newDirectoryStream(modulesXmlPath);
-            for (Path path : files) {
-                if (!path.getFileName().toString().startsWith("Mage")) {
-                    MagentoModule m = new MagentoModule(path);
-                    if (m.getCodePool().equals("local")) {
-                        localModules.add(m);
-                    } else {
-                        communityModules.add(m);
-                    }
+        for (MagentoModule m : getModuleIndex().values()) {
+            if (!Paths.get(m.getDeclarationFile()).getFileName().toString().startsWith("Mage")) {
+                if ("local".equals(m.getCodePool())) {
+                    localModules.add(m);
+                } else {
+                    communityModules.add(m);
                 }
             }
-        } catch (IOException e) {
-            throw new MojoExecutionException("Could not read modules directory. " + e.getMessage(), e);
-        } finally {
-            try {
-                files.close();
-            } catch (IOException e) {
-                throw new MojoExecutionException("Error closing directory stream. " + e.getMessage(), e);
-            }
         }
 
         // print module sorted module list
@@ -203,6 +205,7 @@ public class MagentoInfoMojo extends AbstractMagentoSimpleMojo {
         for (MagentoModule m : localModules) {
             getLog().info(m.getNamespace() + "_" + m.getName() + " version: "
                             + m.getVersion() + " active: " + m.isActive());
+            logModuleDetails(m);
         }
         if (localModules.size() == 0) {
             getLog().info("--none--");
@@ -213,6 +216,7 @@ public class MagentoInfoMojo extends AbstractMagentoSimpleMojo {
         for (MagentoModule m : communityModules) {
             getLog().info(m.getNamespace() + "_" + m.getName() + " version: "
                             + m.getVersion() + " active: " + m.isActive());
+            logModuleDetails(m);
         }
         if (communityModules.size() == 0) {
             getLog().info("--none--");
@@ -244,4 +248,19 @@ public class MagentoInfoMojo extends AbstractMagentoSimpleMojo {
 
     }
 
+    private void logModuleDetails(MagentoModule m) {
+        if (!showDetails) {
+            return;
+        }
+        if (!m.getDepends().isEmpty()) {
+            getLog().info(" depends: " + m.getDepends());
+        }
+        for (Map.Entry<String, String> rewrite : m.getRewrites().entrySet()) {
+            getLog().info(" rewrite: " + rewrite.getKey() + " -> " + rewrite.getValue());
+        }
+        if (!m.getSetupResources().isEmpty()) {
+            getLog().info(" setup: " + m.getSetupResources());
+        }
+    }
+
 }
@@ -16,11 +16,8 @@
 
 package de.bbe_consulting.mavento;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
 import javax.xml.transform.TransformerException;
 
 import org.apache.maven.plugin.MojoExecutionException;
@@ -28,6 +25,7 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.w3c.dom.Document;
 
 import de.bbe_consulting.mavento.helper.MagentoXmlUtil;
+import de.bbe_consulting.mavento.type.MagentoModule;
 
 /**
  * Disable a Magento Module. This goal does not need an active Maven project. <br/>
@@ -64,18 +62,15 @@ public class MagentoModOffMojo extends AbstractMagentoSimpleMojo {
             getLog().info("Version: Magento " + mVersion.toString());
         }
 
-        // read module.xml from app/etc/modules/
-        final Path moduleXmlPath = Paths.get(magentoPath + "/app/etc/modules/" + modKey + ".xml");
-        Document moduleXml = null;
-        if (Files.exists(moduleXmlPath)) {
-            moduleXml = MagentoXmlUtil.readXmlFile(moduleXmlPath.toAbsolutePath().toString());
-        } else {
-            throw new MojoExecutionException("Could not read or parse /app/etc/modules/" + modKey + ".xml" +
+        // find the app/etc/modules file declaring the module
+        final MagentoModule module = getModuleIndex().get(modKey);
+        if (module == null) {
+            throw new MojoExecutionException("Could not find module " + modKey + " in /app/etc/modules." +
                     " Use -DmagentoPath= to set Magento dir.");
         }
-        final Map<String, String> xmlNodes = new HashMap<String, String>();
-        xmlNodes.put("active", "false");
-        MagentoXmlUtil.updateXmlValues(xmlNodes, moduleXml);
+        final Path moduleXmlPath = Paths.get(magentoPath).resolve(module.getDeclarationFile());
+        final Document moduleXml = MagentoXmlUtil.readXmlFile(moduleXmlPath.toAbsolutePath().toString());
+        MagentoXmlUtil.setModuleActive(moduleXml, modKey, false);
         
         try {
             MagentoXmlUtil.writeXmlFile(
@@ -20,7 +20,9 @@ import java.io.IOException;
 import java.nio.file.Paths;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
-import de.bbe_consulting.mavento.helper.DiffUtil;
+import de.bbe_consulting.mavento.helper.FileUtil;
+import de.bbe_consulting.mavento.helper.PatchRegistry;
+import de.bbe_consulting.mavento.helper.StagedPatcher;
 import difflib.PatchFailedException;
 
 /**
@@ -28,8 +30,10 @@ import difflib.PatchFailedException;
  * It will however honor the properties in your pom.xml if called from a project root.
  * Use -DmagentoPath=/path/to/magento to override.<br/><br/>
  * 
- * Per default the plugin will start a dry run to see if all files can be patched successfully.
- * Use -DskipDryRun to disable. Not recommended on production systems. <br/>
+ * All files are patched into staging files first, the magento instance is only changed if
+ * every file could be patched successfully. The staged files are then renamed over the
+ * originals.<br/>
+ * Applied patches are recorded in app/etc/mavento.patches, see magento:patch-status.<br/>
  * 
  * <pre>
  * mvn magento:patch -DpatchFile=/path/to/patch.diff -DmagentoPath=/path/to/magento/folder
@@ -51,12 +55,21 @@ public class MagentoPatchMojo extends AbstractMagentoSimpleMojo {
     protected String patchFile;
     
     /**
-     * Run all patches without a complete test run. Not recommended for production systems.<br/> 
+     * No longer used, patches are always staged and only applied if all files patch cleanly.<br/> 
      * 
      * @parameter expression="${skipDryRun}"
+     * @deprecated
      */
+    @Deprecated
     protected boolean skipDryRun = false;
 
+    /**
+     * Number of threads patching files.<br/>
+     * 
+     * @parameter expression="${patchThreads}" default-value="4"
+     */
+    protected int patchThreads;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
 
@@ -72,13 +85,16 @@ public class MagentoPatchMojo extends AbstractMagentoSimpleMojo {
         getLog().info("");
 
         try {
-            if (!skipDryRun) {
-                getLog().info("Starting dry run, no changes will be written to disk..");
-                DiffUtil.patchDirectory(patchFile, magentoPath, true, false, getLog());
-                getLog().info("");
+            final PatchRegistry registry = new PatchRegistry(Paths.get(magentoPath));
+            registry.load();
+            if (registry.isUnchanged(FileUtil.getFileSha1(Paths.get(patchFile)))) {
+                getLog().info("..patch is already applied, nothing to do.");
+                return;
             }
-            getLog().info("Dry run successfull, applying patch..");
-            DiffUtil.patchDirectory(patchFile, magentoPath, false, false, getLog());
+            final StagedPatcher patcher = new StagedPatcher(patchFile, magentoPath);
+            patcher.setThreads(patchThreads);
+            patcher.setRegistry(registry);
+            patcher.apply(false, false, getLog());
         } catch (PatchFailedException | IOException e) {
             throw new MojoExecutionException("Error applying patch: " + e.getMessage(), e);
         }
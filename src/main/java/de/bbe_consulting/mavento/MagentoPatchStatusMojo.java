@@ -0,0 +1,110 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import de.bbe_consulting.mavento.helper.PatchRegistry;
+import de.bbe_consulting.mavento.helper.PatchStatusChecker;
+
+/**
+ * List which diff style patches of a directory are applied to a magento instance. Does not need
+ * a active Maven project, see magento:patch.<br/><br/>
+ * 
+ * Patches applied by magento:patch are recognized by the hashes in app/etc/mavento.patches,
+ * all others are probed without writing anything. Each patch is reported as applied, partial,
+ * pending or conflict.<br/>
+ * 
+ * <pre>
+ * mvn magento:patch-status -DpatchDir=/path/to/patches -DmagentoPath=/path/to/magento/folder
+ * </pre>
+ * 
+ * @goal patch-status
+ * @aggregator false
+ * @requiresProject false
+ * @author Erik Dannenberg
+ */
+public class MagentoPatchStatusMojo extends AbstractMagentoSimpleMojo {
+
+    /**
+     * Directory with the patch files, all *.diff and *.patch files are checked.<br/>
+     * 
+     * @parameter expression="${patchDir}"
+     * @required
+     */
+    protected String patchDir;
+
+    /**
+     * Number of patches checked at the same time.<br/>
+     * 
+     * @parameter expression="${patchThreads}" default-value="4"
+     */
+    protected int patchThreads;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+
+        initMojo();
+        final List<Path> patchFiles = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(patchDir), "*.{diff,patch}")) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    patchFiles.add(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading patch directory " + patchDir + " " + e.getMessage(), e);
+        }
+        Collections.sort(patchFiles);
+        if (patchFiles.isEmpty()) {
+            throw new MojoExecutionException("No *.diff or *.patch files found in " + patchDir);
+        }
+
+        getLog().info("Checking " + patchFiles.size() + " patches against " + magentoPath + "..");
+        final PatchRegistry registry = new PatchRegistry(Paths.get(magentoPath));
+        try {
+            registry.load();
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        final PatchStatusChecker checker = new PatchStatusChecker(Paths.get(magentoPath), registry);
+        checker.setThreads(patchThreads);
+        final Map<Path, String> status = checker.check(patchFiles);
+
+        int applied = 0;
+        for (Map.Entry<Path, String> entry : status.entrySet()) {
+            getLog().info(String.format("..%-8s %s", entry.getValue(), entry.getKey().getFileName()));
+            if (PatchStatusChecker.STATUS_APPLIED.equals(entry.getValue())) {
+                ++applied;
+            }
+        }
+        getLog().info("..done. " + applied + " of " + status.size() + " patches applied.");
+    }
+
+}
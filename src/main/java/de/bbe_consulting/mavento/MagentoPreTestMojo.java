@@ -56,7 +56,7 @@ public class MagentoPreTestMojo extends AbstractMagentoSetupMojo {
     protected Boolean magentoTestInstanceReuse;
 
     @Override
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    protected void executeSql() throws MojoExecutionException, MojoFailureException {
 
         if (skipTests) {
             return;
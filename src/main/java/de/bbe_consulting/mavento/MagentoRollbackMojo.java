@@ -0,0 +1,80 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import de.bbe_consulting.mavento.helper.ReleaseUtil;
+
+/**
+ * Switch magento.root.local back to the previous release. Requires magento.releases.<br/>
+ * Only the files are switched, the database stays as it is.<br/>
+ * Use -Drelease=name to switch to a specific release.
+ * 
+ * @goal rollback
+ * @author Erik Dannenberg
+ */
+public class MagentoRollbackMojo extends AbstractMagentoMojo {
+
+    /**
+     * Name of the release to switch to. Default: the release before the current one
+     * 
+     * @parameter expression="${release}"
+     */
+    protected String release;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+
+        final Path root = Paths.get(magentoRootLocal);
+        final Path currentRelease = ReleaseUtil.getCurrentRelease(root);
+        if (currentRelease == null) {
+            throw new MojoExecutionException(magentoRootLocal + " is not a release symlink.");
+        }
+        final List<Path> releases = ReleaseUtil.getReleases(
+                ReleaseUtil.getReleasesDir(magentoRootLocal, magentoReleasesDir));
+
+        Path targetRelease = null;
+        if (release != null && !release.isEmpty()) {
+            for (Path r : releases) {
+                if (r.getFileName().toString().equals(release)) {
+                    targetRelease = r;
+                }
+            }
+            if (targetRelease == null) {
+                throw new MojoExecutionException("Could not find release " + release);
+            }
+        } else {
+            final int current = releases.indexOf(currentRelease);
+            if (current < 1) {
+                throw new MojoExecutionException("No release older than " + currentRelease.getFileName()
+                        + " left.");
+            }
+            targetRelease = releases.get(current - 1);
+        }
+
+        getLog().info("Switching " + magentoRootLocal + " from " + currentRelease.getFileName()
+                + " to " + targetRelease.getFileName() + "..");
+        ReleaseUtil.switchRelease(root, targetRelease, getLog());
+        getLog().info("..done.");
+    }
+
+}
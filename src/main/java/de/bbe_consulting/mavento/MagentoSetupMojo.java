@@ -29,7 +29,7 @@ import org.apache.maven.plugin.MojoFailureException;
  */
 public final class MagentoSetupMojo extends AbstractMagentoSetupMojo {
 
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    protected void executeSql() throws MojoExecutionException, MojoFailureException {
         tempDir = "target/magento_setup";
         targetDir = magentoRootLocal;
         setupMagento();
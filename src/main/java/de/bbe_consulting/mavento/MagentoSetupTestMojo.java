@@ -166,7 +166,7 @@ public class MagentoSetupTestMojo extends AbstractMagentoSetupMojo {
     protected Boolean magentoTestDumpSuppliedByArtifact;
 
     @Override
-    public void execute() throws MojoExecutionException, MojoFailureException {
+    protected void executeSql() throws MojoExecutionException, MojoFailureException {
 
         final List<String> l = session.getGoals();
         if (l.get(0).equals("eclipse:eclipse") || skipTests) {
@@ -310,9 +310,9 @@ public class MagentoSetupTestMojo extends AbstractMagentoSetupMojo {
         final Path moduleTestSource = Paths.get(project.getBuild().getTestSourceDirectory());
         final Path moduleTestOutput = Paths.get(project.getBuild().getTestOutputDirectory());
         final Path buildDir = Paths.get(tempDir);
-        FileUtil.copyFile(moduleSource, buildDir);
-        FileUtil.copyFile(moduleTestSource, buildDir);
-        FileUtil.copyFile(moduleTestOutput, buildDir);
+        FileUtil.copyFile(moduleSource, buildDir, magentoCopyThreads);
+        FileUtil.copyFile(moduleTestSource, buildDir, magentoCopyThreads);
+        FileUtil.copyFile(moduleTestOutput, buildDir, magentoCopyThreads);
         
         // make http request to init possible db changes by the module
         String backendUrl = MagentoUtil.validateBaseUrl(magentoUrlBase, false) + magentoBackendFrontendName;
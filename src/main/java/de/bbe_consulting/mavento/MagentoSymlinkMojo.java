@@ -26,8 +26,8 @@ import java.util.Map;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
-import de.bbe_consulting.mavento.helper.FileUtil;
 import de.bbe_consulting.mavento.helper.MagentoUtil;
+import de.bbe_consulting.mavento.helper.SymlinkReconciler;
 
 /**
  * Symlink source files to local Magento instance.
@@ -74,11 +74,13 @@ public class MagentoSymlinkMojo extends AbstractMagentoMojo {
                 }
             }
             getLog().info("Linking project source to: " + magentoRootLocal);
-            try {
-                FileUtil.symlinkFiles(linkMap, getLog());
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            }
+            final SymlinkReconciler reconciler = new SymlinkReconciler(srcDirName,
+                    Paths.get(project.getBuild().getDirectory(), "mavento", "symlinks.txt"));
+            reconciler.setThreads(magentoCopyThreads);
+            reconciler.reconcile(linkMap, getLog());
+            getLog().info("..created " + reconciler.getCreatedCount() + ", updated " + reconciler.getUpdatedCount()
+                    + ", removed " + reconciler.getRemovedCount() + ", unchanged " + reconciler.getUnchangedCount()
+                    + " links.");
             getLog().info("..done.");
         } else {
             throw new MojoExecutionException("Symlinking for remote deploy not implemented.");
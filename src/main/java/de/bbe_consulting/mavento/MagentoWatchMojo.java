@@ -0,0 +1,65 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import de.bbe_consulting.mavento.helper.SourceWatcher;
+
+/**
+ * Copy changed project source files to the local Magento instance until stopped with Ctrl+C.<br/>
+ * For setups that can not use magento:symlink, i.e. docker bind mounts or dev/template/allow_symlink disabled.
+ * 
+ * @goal watch
+ * @author Erik Dannenberg
+ */
+public class MagentoWatchMojo extends AbstractMagentoMojo {
+
+    /**
+     * Milliseconds without further changes before changed files are copied.<br/>
+     * 
+     * @parameter expression="${magento.watch.debounce}" default-value="300"
+     */
+    protected long magentoWatchDebounce;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+
+        final String srcDirName = project.getBasedir().getAbsolutePath() + "/src/main/php";
+        if (!magentoDeployType.equals("local")) {
+            throw new MojoExecutionException("Watching for remote deploy not implemented.");
+        }
+        if (Files.notExists(Paths.get(magentoRootLocal + "/app/etc/local.xml"))) {
+            throw new MojoExecutionException(
+                    "Could not find Magento root, did you forget to run 'mvn magento:install'? ;)");
+        }
+        final SourceWatcher watcher = new SourceWatcher(Paths.get(srcDirName), Paths.get(magentoRootLocal));
+        watcher.setDebounce(magentoWatchDebounce);
+        watcher.setThreads(magentoCopyThreads);
+
+        getLog().info("Syncing project source to: " + magentoRootLocal);
+        watcher.syncAll(getLog());
+        getLog().info("..done.");
+        getLog().info("Watching " + srcDirName + " for changes, press Ctrl+C to stop.");
+        watcher.watch(getLog());
+    }
+
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.visitor.LinkFilesVisitor;
+
+/**
+ * Local cache of unpacked artifacts, keyed by the sha1 of the artifact file.<br/>
+ * A cache entry is extracted once into a temp directory and renamed into place, an existing entry
+ * is therefore always complete and used without locking. Extraction is guarded by a lock file, so
+ * concurrent builds on the same host extract each artifact only once.<br/>
+ * Entries are hardlinked or copied into their target. Hardlinked files share their content with
+ * the cache, files edited in place afterwards change the cache entry too.
+ *
+ * @author Erik Dannenberg
+ */
+public class ArtifactCache {
+
+    public static final String MODE_COPY = "copy";
+    public static final String MODE_LINK = "link";
+    public static final String MODE_NONE = "none";
+
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp-";
+
+    /**
+     * FileLock is held per jvm, threads of the same build wait on a monitor per entry instead.
+     */
+    private static final ConcurrentMap<String, Object> MONITORS = new ConcurrentHashMap<String, Object>();
+
+    private final Path cacheDir;
+    private final String mode;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+
+    /**
+     * @param cacheDir
+     * @param mode copy or link
+     * @throws MojoExecutionException
+     */
+    public ArtifactCache(Path cacheDir, String mode) throws MojoExecutionException {
+        if (!MODE_COPY.equals(mode) && !MODE_LINK.equals(mode)) {
+            throw new MojoExecutionException("Unsupported artifact cache mode: " + mode + "."
+                    + " Use one of: " + MODE_COPY + ", " + MODE_LINK + ", " + MODE_NONE);
+        }
+        this.cacheDir = cacheDir.toAbsolutePath().normalize();
+        this.mode = mode;
+    }
+
+    /**
+     * Number of threads used to extract and copy.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Extracts an artifact into targetDir, using the cached tree if there is one.
+     *
+     * @param artifactFile
+     * @param targetDir
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public void extract(Path artifactFile, Path targetDir, Log logger) throws MojoExecutionException {
+
+        final Path entry = getEntry(artifactFile, logger);
+        try {
+            Files.createDirectories(targetDir);
+            if (MODE_LINK.equals(mode) && Files.getFileStore(entry).equals(Files.getFileStore(targetDir))) {
+                Files.walkFileTree(entry, new LinkFilesVisitor(entry, targetDir));
+                return;
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error linking " + entry + " to " + targetDir + " " + e.getMessage(), e);
+        }
+        final ParallelFileCopier copier = new ParallelFileCopier(entry, targetDir);
+        copier.setThreads(threads);
+        copier.setPreserveAttributes(true);
+        copier.copy(null);
+    }
+
+    /**
+     * Returns the cached tree of an artifact, extracting it first if needed.
+     *
+     * @param artifactFile
+     * @param logger
+     * @return Path
+     * @throws MojoExecutionException
+     */
+    public Path getEntry(Path artifactFile, Log logger) throws MojoExecutionException {
+
+        final String key;
+        try {
+            key = FileUtil.getFileSha1(artifactFile);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading " + artifactFile + " " + e.getMessage(), e);
+        }
+        final Path shardDir = cacheDir.resolve(key.substring(0, 2));
+        final Path entry = shardDir.resolve(key);
+        if (Files.isDirectory(entry)) {
+            return entry;
+        }
+
+        final Path lockFile = shardDir.resolve(key + LOCK_SUFFIX);
+        MONITORS.putIfAbsent(lockFile.toString(), new Object());
+        synchronized (MONITORS.get(lockFile.toString())) {
+            try {
+                Files.createDirectories(shardDir);
+                try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    final FileLock lock = channel.lock();
+                    try {
+                        if (Files.isDirectory(entry)) {
+                            return entry;
+                        }
+                        deleteStaleTempDirs(shardDir, key);
+                        if (logger != null) {
+                            logger.info("..caching " + artifactFile.getFileName() + " in " + entry);
+                        }
+                        final Path tempDir = shardDir.resolve(key + TEMP_SUFFIX + System.nanoTime());
+                        FileUtil.unzipFile(artifactFile.toString(), tempDir.toString(), false, threads);
+                        try {
+                            Files.move(tempDir, entry, StandardCopyOption.ATOMIC_MOVE);
+                        } catch (AtomicMoveNotSupportedException e) {
+                            Files.move(tempDir, entry);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                }
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // written by a process not honoring the lock, its entry is just as complete
+            } catch (IOException e) {
+                throw new MojoExecutionException("Error caching " + artifactFile + " in " + cacheDir + " "
+                        + e.getMessage(), e);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Leftovers of extractions that were killed, only called while holding the lock.
+     */
+    private static void deleteStaleTempDirs(Path shardDir, String key) throws IOException {
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(shardDir, key + TEMP_SUFFIX + "*")) {
+            for (Path dir : stale) {
+                new ParallelFileDeleter(dir).delete();
+            }
+        }
+    }
+}
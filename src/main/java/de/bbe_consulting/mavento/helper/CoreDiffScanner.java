@@ -0,0 +1,366 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Compares a magento instance with the pristine magento artifact to find core modifications.<br/>
+ * Crc32 and size of the original files are read from the central directory of the artifact jar,
+ * nothing is extracted. Live files with the same size are crc'ed in parallel. Only paths below
+ * the include paths are compared, see setIncludes().
+ *
+ * @author Erik Dannenberg
+ */
+public class CoreDiffScanner {
+
+    /**
+     * Core code and the default themes, custom themes and local modules are not compared.
+     */
+    public static final String DEFAULT_INCLUDES = "app/Mage.php,app/code/core,app/design/adminhtml/default/default,"
+            + "app/design/frontend/base/default,app/locale/en_US,index.php,js,lib,"
+            + "skin/adminhtml/default/default,skin/frontend/base/default";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path artifactFile;
+    private final Path magentoRoot;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+    private List<String> includes = Arrays.asList(DEFAULT_INCLUDES.split(","));
+
+    private final Set<String> modified = new TreeSet<String>();
+    private final Set<String> added = new TreeSet<String>();
+    private final Set<String> missing = new TreeSet<String>();
+    private int checkedCount = 0;
+
+    public CoreDiffScanner(Path artifactFile, Path magentoRoot) {
+        this.artifactFile = artifactFile;
+        this.magentoRoot = magentoRoot;
+    }
+
+    /**
+     * Number of threads computing checksums of live files.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Paths relative to the magento root to compare, files or directories.
+     *
+     * @param includes
+     */
+    public void setIncludes(List<String> includes) {
+        final List<String> cleaned = new ArrayList<String>();
+        for (String include : includes) {
+            include = include.trim();
+            while (include.endsWith("/")) {
+                include = include.substring(0, include.length() - 1);
+            }
+            if (!include.isEmpty()) {
+                cleaned.add(include);
+            }
+        }
+        this.includes = cleaned;
+    }
+
+    public Set<String> getModified() {
+        return Collections.unmodifiableSet(modified);
+    }
+
+    public Set<String> getAdded() {
+        return Collections.unmodifiableSet(added);
+    }
+
+    public Set<String> getMissing() {
+        return Collections.unmodifiableSet(missing);
+    }
+
+    /**
+     * Number of artifact files that were compared.
+     *
+     * @return int
+     */
+    public int getCheckedCount() {
+        return checkedCount;
+    }
+
+    /**
+     * Compares the artifact with the magento root.
+     *
+     * @param logger may be null
+     * @throws IOException
+     */
+    public void scan(Log logger) throws IOException {
+
+        final long startTime = System.currentTimeMillis();
+        modified.clear();
+        added.clear();
+        missing.clear();
+
+        // key: path value: {crc, size}
+        final Map<String, long[]> original = new HashMap<String, long[]>();
+        try (ZipFile zip = new ZipFile(artifactFile.toFile())) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (!entry.isDirectory() && isIncluded(entry.getName())) {
+                    original.put(entry.getName(), new long[] {entry.getCrc(), entry.getSize()});
+                }
+            }
+        }
+        final Map<String, Long> live = collectLiveFiles();
+        checkedCount = original.size();
+
+        final List<String> sameSize = new ArrayList<String>();
+        for (Map.Entry<String, long[]> entry : original.entrySet()) {
+            final Long size = live.get(entry.getKey());
+            if (size == null) {
+                missing.add(entry.getKey());
+            } else if (size != entry.getValue()[1]) {
+                modified.add(entry.getKey());
+            } else {
+                sameSize.add(entry.getKey());
+            }
+        }
+        for (String path : live.keySet()) {
+            if (!original.containsKey(path)) {
+                added.add(path);
+            }
+        }
+        for (String path : crcFiles(sameSize, original)) {
+            modified.add(path);
+        }
+        if (logger != null) {
+            logger.info("..compared " + checkedCount + " files in " + (System.currentTimeMillis() - startTime)
+                    + "ms.");
+        }
+    }
+
+    /**
+     * Writes a unified diff from the artifact to the live files for all modified text files.
+     * The result can be applied with magento:patch to a pristine instance.
+     *
+     * @param patchFile
+     * @param logger may be null
+     * @return int number of files in the patch
+     * @throws IOException
+     */
+    public int writePatch(Path patchFile, Log logger) throws IOException {
+
+        int count = 0;
+        if (patchFile.getParent() != null) {
+            Files.createDirectories(patchFile.getParent());
+        }
+        try (ZipFile zip = new ZipFile(artifactFile.toFile());
+                BufferedWriter out = Files.newBufferedWriter(patchFile, Charset.defaultCharset())) {
+            for (String path : modified) {
+                final byte[] originalBytes = readEntry(zip, zip.getEntry(path));
+                final byte[] liveBytes = Files.readAllBytes(magentoRoot.resolve(path));
+                if (isBinary(originalBytes) || isBinary(liveBytes)) {
+                    if (logger != null) {
+                        logger.info("..skipping binary file " + path);
+                    }
+                    continue;
+                }
+                final List<String> diff = DiffUtil.createUnifiedDiff(path, toLines(originalBytes),
+                        toLines(liveBytes));
+                if (diff.isEmpty()) {
+                    // only line endings differ
+                    continue;
+                }
+                for (String line : diff) {
+                    out.write(line);
+                    out.newLine();
+                }
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private boolean isIncluded(String path) {
+        for (String include : includes) {
+            if (path.equals(include) || path.startsWith(include + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Map<String, Long> key: path relative to the magento root value: file size
+     */
+    private Map<String, Long> collectLiveFiles() throws IOException {
+
+        final Map<String, Long> files = new HashMap<String, Long>();
+        for (String include : includes) {
+            final Path start = magentoRoot.resolve(include);
+            if (!Files.exists(start)) {
+                continue;
+            }
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        files.put(relativePath(file), attrs.size());
+                    } else if (attrs.isSymbolicLink() && Files.isRegularFile(file)) {
+                        files.put(relativePath(file), Files.size(file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return files;
+    }
+
+    private String relativePath(Path file) {
+        return magentoRoot.relativize(file).toString().replace('\\', '/');
+    }
+
+    /**
+     * @return List<String> paths whose crc differs from the artifact
+     */
+    private List<String> crcFiles(List<String> paths, final Map<String, long[]> original) throws IOException {
+
+        final List<String> changed = new ArrayList<String>();
+        if (paths.isEmpty()) {
+            return changed;
+        }
+        final int partitionCount = Math.min(threads, paths.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(partitionCount);
+        try {
+            final List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < partitionCount; i++) {
+                final List<String> partition = paths.subList(i * paths.size() / partitionCount,
+                        (i + 1) * paths.size() / partitionCount);
+                results.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws IOException {
+                        final List<String> changedInPartition = new ArrayList<String>();
+                        final byte[] buffer = new byte[BUFFER_SIZE];
+                        for (String path : partition) {
+                            if (crc(magentoRoot.resolve(path), buffer) != original.get(path)[0]) {
+                                changedInPartition.add(path);
+                            }
+                        }
+                        return changedInPartition;
+                    }
+                }));
+            }
+            for (Future<List<String>> result : results) {
+                try {
+                    changed.addAll(result.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while comparing " + magentoRoot, e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return changed;
+    }
+
+    private static long crc(Path file, byte[] buffer) throws IOException {
+
+        final CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(0, entry.getSize()));
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = zip.getInputStream(entry)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static boolean isBinary(byte[] bytes) {
+        for (int i = 0; i < Math.min(bytes.length, 8192); i++) {
+            if (bytes[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits like FileUtil.getFileAsLines() so the patch applies with magento:patch.
+     */
+    private static List<String> toLines(byte[] bytes) throws IOException {
+
+        final List<String> lines = new ArrayList<String>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes),
+                Charset.defaultCharset()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+}
@@ -17,9 +17,12 @@
 package de.bbe_consulting.mavento.helper;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 
@@ -41,8 +44,12 @@ public class DiffUtil {
     private DiffUtil() {
     }
 
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -(\\S+) \\+(\\S+) @@(.*)$");
+
     /**
-     * Apply diff style patchFile to targetPath. dryRun will not write any changes to disk.
+     * Apply diff style patchFile to targetPath. dryRun will not write any changes to disk.<br/>
+     * All files are patched into staging files first and only replaced if every file could be
+     * patched, see StagedPatcher.
      * 
      * @param patchFile
      * @param targetPath
@@ -56,25 +63,7 @@ public class DiffUtil {
     public static void patchDirectory (String patchFile, String targetPath, boolean dryRun, boolean silent, Log logger) 
             throws IOException, MojoExecutionException, PatchFailedException {
 
-        final List<DiffPatch> filteredPatchList = splitPatch(FileUtil.getFileAsLines(patchFile), targetPath);
-        if (filteredPatchList.isEmpty()) {
-            throw new MojoExecutionException("Patch file " + patchFile + " is not a valid diff file!");
-        }
-        for (DiffPatch patchEntry : filteredPatchList) {
-            if (!silent) {
-                logger.info(".." + patchEntry.getPatchFileName() + " " + patchEntry.getStatsLine());
-            }
-            
-            Patch patch = DiffUtils.parseUnifiedDiff(patchEntry.getDiffContent());
-            @SuppressWarnings("unchecked")
-            List<String> result = (List<String>) DiffUtils.patch(FileUtil.getFileAsLines(patchEntry.getTargetFileName()), patch);
-            if (!dryRun) {
-                FileUtil.writeFile(result, patchEntry.getTargetFileName());
-            }
-        }
-        if (!silent) {
-            logger.info("..done.");
-        }
+        new StagedPatcher(patchFile, targetPath).apply(dryRun, silent, logger);
     }
     
     /**
@@ -133,6 +122,60 @@ public class DiffUtil {
         return r;
     }
     
+    /**
+     * Unified diff of two versions of a file, in the format splitPatch() and PatchReader expect.
+     * 
+     * @param fileName path relative to the patch target directory
+     * @param original
+     * @param revised
+     * @return List<String> empty if both versions are equal
+     */
+    public static List<String> createUnifiedDiff (String fileName, List<String> original, List<String> revised) {
+
+        final Patch patch = DiffUtils.diff(original, revised);
+        final List<String> r = new ArrayList<String>();
+        if (patch.getDeltas().isEmpty()) {
+            return r;
+        }
+        r.add("Index: " + fileName);
+        r.add("===================================================================");
+        r.addAll(DiffUtils.generateUnifiedDiff(fileName, fileName, original, patch, 3));
+        return r;
+    }
+
+    /**
+     * Reverses the diff content of a single file section, applying the result undoes the patch.
+     * 
+     * @param diffContent
+     * @return List<String>
+     */
+    public static List<String> reverseDiff (List<String> diffContent) {
+
+        final List<String> r = new ArrayList<String>(diffContent.size());
+        final Matcher hunkHeader = HUNK_HEADER.matcher("");
+        String oldFileLine = null;
+        boolean inHunks = false;
+        for (String line : diffContent) {
+            if (!inHunks && line.startsWith("--- ")) {
+                oldFileLine = line;
+            } else if (!inHunks && line.startsWith("+++ ") && oldFileLine != null) {
+                r.add("--- " + line.substring(4));
+                r.add("+++ " + oldFileLine.substring(4));
+                oldFileLine = null;
+            } else if (line.startsWith("@@") && hunkHeader.reset(line).matches()) {
+                inHunks = true;
+                r.add("@@ -" + hunkHeader.group(2) + " +" + hunkHeader.group(1) + " @@" + hunkHeader.group(3));
+            } else if (inHunks && line.startsWith("-")) {
+                r.add("+" + line.substring(1));
+            } else if (inHunks && line.startsWith("+")) {
+                r.add("-" + line.substring(1));
+            } else {
+                r.add(line);
+            }
+        }
+        return r;
+    }
+
     // extract filename from Index: or --- line
     private static String getFileName (String line) {
         String fileName = "";
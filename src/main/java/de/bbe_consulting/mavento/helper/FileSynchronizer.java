@@ -0,0 +1,638 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.visitor.FileAttributesVisitor;
+
+/**
+ * Brings an existing target directory in line with a source directory or zip, writing only changed files.<br/>
+ * Files are compared by size and modification time, optionally by content hash. Zip entries are compared
+ * by their crc as well, so a rebuilt artifact with unchanged content writes nothing.<br/>
+ * The state the last sync left the target in is kept in a manifest file, including content hashes, so
+ * unchanged target files never have to be read. Only files listed in it are deleted. Without manifest a
+ * directory sync deletes everything in the target that is not in the source, a zip sync deletes nothing.
+ * 
+ * @author Erik Dannenberg
+ */
+public class FileSynchronizer {
+
+    private static final int FILES_PER_TASK = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long DIRECTORY_SIZE = -1;
+
+    private final Path targetPath;
+    private final Path manifestFile;
+    private String manifestKey;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+    private boolean checksum = false;
+    private FileAttributesVisitor attributes;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+    private final AtomicLong deletedCount = new AtomicLong();
+
+    /**
+     * @param target
+     * @param manifestFile where the state of the last sync is kept, null to always compare the target
+     */
+    public FileSynchronizer(Path target, Path manifestFile) {
+        this.targetPath = target.toAbsolutePath();
+        this.manifestFile = manifestFile;
+        this.manifestKey = targetPath.toString();
+    }
+
+    /**
+     * The manifest is only used if it was written for the same key, default is the target path.
+     * 
+     * @param manifestKey
+     */
+    public void setManifestKey(String manifestKey) {
+        this.manifestKey = manifestKey;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Compare content hashes of files with same size but different modification time.
+     * 
+     * @param checksum
+     */
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Owner, group and permissions applied to written files and all directories, null values are skipped.
+     * 
+     * @param octalFilePerms
+     * @param octalDirPerms
+     * @param newUser
+     * @param newGroup
+     * @throws MojoExecutionException
+     */
+    public void setAttributes(String octalFilePerms, String octalDirPerms, String newUser, String newGroup)
+            throws MojoExecutionException {
+        try {
+            final FileAttributesVisitor av = new FileAttributesVisitor(targetPath, octalFilePerms, octalDirPerms,
+                    newUser, newGroup);
+            this.attributes = av.hasAttributes() ? av : null;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error looking up owner/group. " + e.getMessage(), e);
+        }
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    public long getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    /**
+     * Syncs the target with a source directory.
+     * 
+     * @param source
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public void syncDirectory(final Path source, Log logger) throws MojoExecutionException {
+
+        final Map<String, ManifestEntry> manifest = readManifest();
+        final List<SourceFile> files = new ArrayList<SourceFile>();
+        final List<String> dirs = new ArrayList<String>();
+        final Map<String, Path> links = new HashMap<String, Path>();
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    dirs.add(source.relativize(dir).toString());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    final String path = source.relativize(file).toString();
+                    if (attrs.isSymbolicLink()) {
+                        links.put(path, Files.readSymbolicLink(file));
+                    } else {
+                        files.add(new TreeFile(path, attrs.size(), attrs.lastModifiedTime().toMillis(), file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading " + source + " " + e.getMessage(), e);
+        }
+
+        final Map<String, ManifestEntry> newManifest = new ConcurrentHashMap<String, ManifestEntry>();
+        try {
+            for (String dir : dirs) {
+                final Path targetDir = targetPath.resolve(dir);
+                if (Files.exists(targetDir, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(targetDir,
+                        LinkOption.NOFOLLOW_LINKS)) {
+                    Files.delete(targetDir);
+                }
+                Files.createDirectories(targetDir);
+                if (attributes != null) {
+                    attributes.setAttributes(targetDir, true);
+                }
+                newManifest.put(dir, new ManifestEntry(DIRECTORY_SIZE, 0, ""));
+            }
+            for (Map.Entry<String, Path> link : links.entrySet()) {
+                final Path targetLink = targetPath.resolve(link.getKey());
+                if (Files.isSymbolicLink(targetLink) && Files.readSymbolicLink(targetLink).equals(link.getValue())) {
+                    unchangedCount.incrementAndGet();
+                } else {
+                    FileUtil.deleteFile(targetLink.toString(), logger);
+                    Files.createSymbolicLink(targetLink, link.getValue());
+                    writtenCount.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error syncing to " + targetPath + " " + e.getMessage(), e);
+        }
+        syncFiles(files, manifest, newManifest);
+
+        final Set<String> sourcePaths = new HashSet<String>(newManifest.keySet());
+        sourcePaths.addAll(links.keySet());
+        if (manifest != null) {
+            deleteRemoved(manifest, sourcePaths);
+        } else {
+            deleteUnknown(sourcePaths, logger);
+        }
+        writeManifest(newManifest, manifest);
+    }
+
+    /**
+     * Syncs the target with the contents of a zip file. Without manifest nothing is deleted.
+     * 
+     * @param zipFile
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public void syncZip(Path zipFile, Log logger) throws MojoExecutionException {
+
+        final Map<String, ManifestEntry> manifest = readManifest();
+        final Map<String, ManifestEntry> newManifest = new ConcurrentHashMap<String, ManifestEntry>();
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            final List<SourceFile> files = new ArrayList<SourceFile>();
+            final Set<Path> targetDirs = new HashSet<Path>();
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (entry.isDirectory()) {
+                    path = path.substring(0, path.length() - 1);
+                }
+                final Path target = targetPath.resolve(path).normalize();
+                if (!target.startsWith(targetPath)) {
+                    throw new MojoExecutionException("Zip entry " + entry.getName() + " is outside of the target.");
+                }
+                if (entry.isDirectory()) {
+                    targetDirs.add(target);
+                } else {
+                    targetDirs.add(target.getParent());
+                    files.add(new ZipFileEntry(path, entry.getSize(), entry.getTime(), zip, entry));
+                }
+            }
+            for (Path dir : targetDirs) {
+                if (!Files.isDirectory(dir)) {
+                    Files.createDirectories(dir);
+                    if (attributes != null) {
+                        attributes.setAttributes(dir, true);
+                    }
+                }
+            }
+            syncFiles(files, manifest, newManifest);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error syncing " + zipFile + " to " + targetPath + " "
+                    + e.getMessage(), e);
+        }
+        if (manifest != null) {
+            deleteRemoved(manifest, newManifest.keySet());
+        }
+        writeManifest(newManifest, manifest);
+    }
+
+    private void syncFiles(List<SourceFile> files, final Map<String, ManifestEntry> manifest,
+            final Map<String, ManifestEntry> newManifest) throws MojoExecutionException {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int start = 0; start < files.size(); start += FILES_PER_TASK) {
+                final List<SourceFile> chunk = files.subList(start, Math.min(files.size(), start + FILES_PER_TASK));
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (SourceFile file : chunk) {
+                            syncFile(file, manifest == null ? null : manifest.get(file.path), newManifest);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted while syncing to " + targetPath, e);
+                } catch (ExecutionException e) {
+                    throw new MojoExecutionException("Error syncing to " + targetPath + " "
+                            + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void syncFile(SourceFile file, ManifestEntry known, Map<String, ManifestEntry> newManifest)
+            throws IOException {
+
+        final Path target = targetPath.resolve(file.path);
+        final BasicFileAttributes attrs = Files.exists(target, LinkOption.NOFOLLOW_LINKS)
+                ? Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS) : null;
+        // the manifest describes the target as the last sync left it
+        final boolean targetKnown = attrs != null && known != null && known.size == attrs.size()
+                && known.mtime == attrs.lastModifiedTime().toMillis();
+        String hash = null;
+        boolean unchanged = false;
+        if (attrs != null && attrs.isRegularFile() && attrs.size() == file.size) {
+            if (attrs.lastModifiedTime().toMillis() == file.mtime) {
+                unchanged = true;
+                hash = targetKnown ? known.hash : null;
+            } else if (checksum || file.isHashCheap()) {
+                hash = file.getHash();
+                final String targetHash = targetKnown && known.hash.startsWith(hash.substring(0, hash.indexOf(':')))
+                        ? known.hash : file.getHashOf(target);
+                unchanged = hash.equals(targetHash);
+                if (unchanged) {
+                    Files.setLastModifiedTime(target, FileTime.fromMillis(file.mtime));
+                }
+            }
+        }
+        if (unchanged) {
+            unchangedCount.incrementAndGet();
+        } else {
+            file.writeTo(target);
+            if (attributes != null) {
+                attributes.setAttributes(target, false);
+            }
+            writtenCount.incrementAndGet();
+        }
+        if (hash == null || hash.isEmpty()) {
+            hash = file.isHashCheap() ? file.getHash() : "";
+        }
+        newManifest.put(file.path, new ManifestEntry(file.size, file.mtime, hash));
+    }
+
+    // delete what the last sync wrote and the source no longer has
+    private void deleteRemoved(Map<String, ManifestEntry> manifest, Set<String> sourcePaths)
+            throws MojoExecutionException {
+
+        final List<String> removed = new ArrayList<String>();
+        for (String path : manifest.keySet()) {
+            if (!sourcePaths.contains(path)) {
+                removed.add(path);
+            }
+        }
+        // children before their directories
+        Collections.sort(removed, Collections.reverseOrder());
+        try {
+            for (String path : removed) {
+                try {
+                    if (Files.deleteIfExists(targetPath.resolve(path))) {
+                        deletedCount.incrementAndGet();
+                    }
+                } catch (DirectoryNotEmptyException e) {
+                    // holds files the sync does not know about, leave it
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error deleting from " + targetPath + " " + e.getMessage(), e);
+        }
+    }
+
+    // delete everything in the target that is not in the source
+    private void deleteUnknown(final Set<String> sourcePaths, final Log logger) throws MojoExecutionException {
+        try {
+            Files.walkFileTree(targetPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (sourcePaths.contains(targetPath.relativize(dir).toString())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        FileUtil.deleteFile(dir.toString(), logger);
+                    } catch (MojoExecutionException e) {
+                        throw new IOException(e.getMessage(), e);
+                    }
+                    deletedCount.incrementAndGet();
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!sourcePaths.contains(targetPath.relativize(file).toString())) {
+                        Files.delete(file);
+                        deletedCount.incrementAndGet();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error deleting from " + targetPath + " " + e.getMessage(), e);
+        }
+    }
+
+    private Map<String, ManifestEntry> readManifest() throws MojoExecutionException {
+
+        if (manifestFile == null || !Files.exists(manifestFile)) {
+            return null;
+        }
+        final Map<String, ManifestEntry> manifest = new HashMap<String, ManifestEntry>();
+        try (BufferedReader in = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line;
+            boolean keyFound = false;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t", -1);
+                if (!keyFound) {
+                    if (fields.length != 2 || !"target".equals(fields[0]) || !manifestKey.equals(fields[1])) {
+                        return null;
+                    }
+                    keyFound = true;
+                } else if (fields.length == 4) {
+                    manifest.put(fields[0], new ManifestEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3]));
+                } else {
+                    return null;
+                }
+            }
+            return keyFound ? manifest : null;
+        } catch (IOException | NumberFormatException e) {
+            // unusable manifest, compare the target instead
+            return null;
+        }
+    }
+
+    private void writeManifest(Map<String, ManifestEntry> manifest, Map<String, ManifestEntry> previous)
+            throws MojoExecutionException {
+
+        // nothing changed, the common case for deploys of an unchanged artifact
+        if (manifestFile == null || manifest.equals(previous)) {
+            return;
+        }
+        final List<String> paths = new ArrayList<String>(manifest.keySet());
+        Collections.sort(paths);
+        final Path tmpFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(manifestFile.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                out.write("# mavento sync manifest");
+                out.newLine();
+                out.write("target\t" + manifestKey);
+                out.newLine();
+                out.write("# path\tsize\tmtime\thash");
+                out.newLine();
+                for (String path : paths) {
+                    final ManifestEntry entry = manifest.get(path);
+                    out.write(path + "\t" + entry.size + "\t" + entry.mtime + "\t" + entry.hash);
+                    out.newLine();
+                }
+            }
+            Files.move(tmpFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing sync manifest " + manifestFile + ". " + e.getMessage(), e);
+        }
+    }
+
+    private static String md5(Path file) throws IOException {
+        try {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), md5)) {
+                drain(in);
+            }
+            final StringBuilder hex = new StringBuilder("md5:");
+            for (byte b : md5.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static String crc32(Path file) throws IOException {
+        final CRC32 crc = new CRC32();
+        try (InputStream in = new CheckedInputStream(Files.newInputStream(file), crc)) {
+            drain(in);
+        }
+        return "crc32:" + Long.toHexString(crc.getValue());
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+            // digest only
+        }
+    }
+
+    private static final class ManifestEntry {
+
+        private final long size;
+        private final long mtime;
+        private final String hash;
+
+        private ManifestEntry(long size, long mtime, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ManifestEntry)) {
+                return false;
+            }
+            final ManifestEntry other = (ManifestEntry) o;
+            return size == other.size && mtime == other.mtime && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ mtime) * 31 + hash.hashCode();
+        }
+    }
+
+    /**
+     * A file of the source with what is needed to compare and write it.
+     */
+    private abstract static class SourceFile {
+
+        protected final String path;
+        protected final long size;
+        protected final long mtime;
+
+        private SourceFile(String path, long size, long mtime) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        /**
+         * True if the hash is known without reading the file.
+         */
+        abstract boolean isHashCheap();
+
+        abstract String getHash() throws IOException;
+
+        /**
+         * Hash of a target file, using the same algorithm as getHash().
+         */
+        abstract String getHashOf(Path file) throws IOException;
+
+        /**
+         * Writes the file as a new inode, hardlinked copies of the old target keep their content.
+         */
+        abstract void writeTo(Path target) throws IOException;
+    }
+
+    private static final class TreeFile extends SourceFile {
+
+        private final Path source;
+        private String hash;
+
+        private TreeFile(String path, long size, long mtime, Path source) {
+            super(path, size, mtime);
+            this.source = source;
+        }
+
+        @Override
+        boolean isHashCheap() {
+            return false;
+        }
+
+        @Override
+        String getHash() throws IOException {
+            if (hash == null) {
+                hash = md5(source);
+            }
+            return hash;
+        }
+
+        @Override
+        String getHashOf(Path file) throws IOException {
+            return md5(file);
+        }
+
+        @Override
+        void writeTo(Path target) throws IOException {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    private static final class ZipFileEntry extends SourceFile {
+
+        private final ZipFile zip;
+        private final ZipEntry entry;
+
+        private ZipFileEntry(String path, long size, long mtime, ZipFile zip, ZipEntry entry) {
+            super(path, size, mtime);
+            this.zip = zip;
+            this.entry = entry;
+        }
+
+        @Override
+        boolean isHashCheap() {
+            return entry.getCrc() != -1;
+        }
+
+        @Override
+        String getHash() throws IOException {
+            return "crc32:" + Long.toHexString(entry.getCrc());
+        }
+
+        @Override
+        String getHashOf(Path file) throws IOException {
+            return crc32(file);
+        }
+
+        @Override
+        void writeTo(Path target) throws IOException {
+            final Path tmpFile = target.resolveSibling("." + target.getFileName() + ".mavento-tmp");
+            try (InputStream in = zip.getInputStream(entry)) {
+                Files.copy(in, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.setLastModifiedTime(tmpFile, FileTime.fromMillis(mtime));
+            Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+}
@@ -20,42 +20,36 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 
-import de.bbe_consulting.mavento.helper.visitor.CopyFilesVisitor;
-import de.bbe_consulting.mavento.helper.visitor.DeleteFilesVisitor;
-import de.bbe_consulting.mavento.helper.visitor.CreateJarVisitor;
+import de.bbe_consulting.mavento.helper.visitor.FileAttributesVisitor;
+import de.bbe_consulting.mavento.helper.visitor.LinkFilesVisitor;
 
 /**
  * Static file helpers.
@@ -64,6 +58,11 @@ import de.bbe_consulting.mavento.helper.visitor.CreateJarVisitor;
  */
 public final class FileUtil {
 
+    public static final String DEPLOY_STRATEGY_COPY = "copy";
+    public static final String DEPLOY_STRATEGY_MOVE = "move";
+    public static final String DEPLOY_STRATEGY_LINK = "link";
+    public static final String DEPLOY_STRATEGY_SYNC = "sync";
+
     /**
      * Private constructor, only static methods in this util class 
      */
@@ -112,27 +111,28 @@ public final class FileUtil {
      */
     public static void createJar(String fileName, String sourcePath)
             throws MojoExecutionException {
+        createJar(fileName, sourcePath, 0, false, ParallelFileCopier.DEFAULT_THREADS, null);
+    }
 
-        final OutputStream outputStream;
-        FileChannel channel = null;
-        try {
-            channel = new FileOutputStream(Paths.get(fileName).toFile()).getChannel();
-            outputStream = Channels.newOutputStream(channel);
-        } catch (FileNotFoundException e) {
-            throw new MojoExecutionException("Error: " + e.getMessage(), e);
-        }
-        try (JarOutputStream jarOutputStream = new JarOutputStream(outputStream)) {
-            CreateJarVisitor jv = new CreateJarVisitor(Paths.get(sourcePath), jarOutputStream);
-            Files.walkFileTree(Paths.get(sourcePath), jv);
-        } catch (IOException e) {
-            throw new MojoExecutionException("Error: " + e.getMessage(), e);
-        } finally {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            }
-        }
+    /**
+     * Create a jar file, see ParallelJarWriter.
+     * 
+     * @param fileName
+     * @param sourcePath
+     * @param compressionLevel 0 to store, 1-9 to deflate entries
+     * @param reproducible sorted entries, fixed timestamps
+     * @param threads
+     * @param logger may be null
+     * @throws MojoExecutionException
+     */
+    public static void createJar(String fileName, String sourcePath, int compressionLevel, boolean reproducible,
+            int threads, Log logger) throws MojoExecutionException {
+
+        final ParallelJarWriter writer = new ParallelJarWriter(Paths.get(sourcePath), Paths.get(fileName));
+        writer.setCompressionLevel(compressionLevel);
+        writer.setReproducible(reproducible);
+        writer.setThreads(threads);
+        writer.write(logger);
     }
 
     /**
@@ -144,44 +144,39 @@ public final class FileUtil {
      */
     public static void unzipFile(String fileName, String targetPath)
             throws IOException {
+        unzipFile(fileName, targetPath, false);
+    }
 
-        final File targetDir = new File(targetPath);
-        final ZipFile sourceZip = new ZipFile(fileName);
-
-        @SuppressWarnings("unchecked")
-        final Enumeration<ZipEntry> entries = (Enumeration<ZipEntry>) sourceZip.entries();
-
-        while (entries.hasMoreElements()) {
-            ZipEntry currentEntry = entries.nextElement();
-            File targetFile = new File(targetDir, currentEntry.getName());
-            // create sub directories if needed
-            targetFile.getParentFile().mkdirs();
-            // write file if it's not a directory
-            if (!currentEntry.isDirectory()) {
-                writeFileFromZip(targetFile, currentEntry, sourceZip);
-            }
-        }
+    /**
+     * Unzips a zip, optionally deleting existing files before they are written.<br/>
+     * Deleting first gives each extracted file a new inode, so hardlinked copies keep their content.
+     * 
+     * @param fileName
+     * @param targetPath
+     * @param replaceFiles
+     * @throws IOException
+     */
+    public static void unzipFile(String fileName, String targetPath, boolean replaceFiles)
+            throws IOException {
+        unzipFile(fileName, targetPath, replaceFiles, ParallelFileCopier.DEFAULT_THREADS);
     }
 
-    // helper class for unzipFile()
-    private static void writeFileFromZip(File targetFile, ZipEntry zipEntry, ZipFile archive) 
-             throws IOException {
+    /**
+     * Unzips a zip with the given number of threads.
+     * 
+     * @param fileName
+     * @param targetPath
+     * @param replaceFiles
+     * @param threads
+     * @throws IOException if an entry would end up outside of targetPath
+     */
+    public static void unzipFile(String fileName, String targetPath, boolean replaceFiles, int threads)
+            throws IOException {
 
-        FileChannel output = null;
-        FileOutputStream rawOut = null;
-        try {
-            final InputStream rawIn = archive.getInputStream(zipEntry);
-            rawOut = new FileOutputStream(targetFile);
-            output = rawOut.getChannel();
-            output.transferFrom(Channels.newChannel(rawIn), 0, zipEntry.getSize());
-        } finally {
-            if (output != null) {
-                output.close();
-            }
-            if (rawOut != null) {
-                rawOut.close();
-            }
-        }
+        final ParallelZipExtractor extractor = new ParallelZipExtractor(Paths.get(fileName), Paths.get(targetPath));
+        extractor.setReplaceFiles(replaceFiles);
+        extractor.setThreads(threads);
+        extractor.extract(null);
     }
 
     /**
@@ -237,23 +232,6 @@ public final class FileUtil {
         }
     }
 
-    /**
-     * Mass symlink files, wraps symlinkFile.
-     * 
-     * @param fileNameMap map with source/target link
-     * @param logger
-     * @throws MojoExecutionException
-     * @throws IOException
-     */
-    public static void symlinkFiles(Map<String, String> fileNameMap, Log logger)
-            throws MojoExecutionException, IOException {
-
-        for (Map.Entry<String, String> fileNames : fileNameMap.entrySet()) {
-            logger.info("..linking: " + fileNames.getKey());
-            symlinkFile(fileNames.getKey(), fileNames.getValue(), logger);
-        }
-    }
-
     /**
      * Symlink a file.
      * 
@@ -289,7 +267,7 @@ public final class FileUtil {
     }
 
     /**
-     * Delete file/directory. Does not follow symlinks.
+     * Delete file/directory with several threads. Does not follow symlinks.
      * 
      * @param fileName
      * @param logger
@@ -299,14 +277,38 @@ public final class FileUtil {
     public static void deleteFile(String fileName, Log logger)
             throws MojoExecutionException, IOException {
 
-        final Path t = Paths.get(fileName);
+        new ParallelFileDeleter(Paths.get(fileName)).delete();
+    }
 
-        if (Files.isDirectory(t, LinkOption.NOFOLLOW_LINKS)) {
-            final DeleteFilesVisitor v = new DeleteFilesVisitor();
-            Files.walkFileTree(t, v);
-        } else {
-            Files.deleteIfExists(t);
-        }
+    /**
+     * Renames a directory into a trash dir next to it and deletes it in the background,
+     * see ParallelFileDeleter. Wait for it with awaitDeferredDeletes().
+     * 
+     * @param fileName
+     * @param logger
+     * @throws IOException
+     */
+    public static void deleteFileDeferred(String fileName, Log logger) throws IOException {
+        ParallelFileDeleter.deleteDeferred(Paths.get(fileName), logger);
+    }
+
+    /**
+     * Deletes trash dirs left next to fileName by earlier builds in the background,
+     * see ParallelFileDeleter. Wait for it with awaitDeferredDeletes().
+     * 
+     * @param fileName
+     */
+    public static void emptyTrashDeferred(String fileName) {
+        ParallelFileDeleter.emptyTrashDeferred(Paths.get(fileName));
+    }
+
+    /**
+     * Waits for deletes started by deleteFileDeferred() or emptyTrashDeferred().
+     * 
+     * @param logger
+     */
+    public static void awaitDeferredDeletes(Log logger) {
+        ParallelFileDeleter.awaitDeferred(logger);
     }
 
     /**
@@ -318,16 +320,90 @@ public final class FileUtil {
      */
     public static void copyFile(Path sourceFile, Path targetFile)
             throws MojoExecutionException {
+        copyFile(sourceFile, targetFile, ParallelFileCopier.DEFAULT_THREADS);
+    }
+
+    /**
+     * Copy a file or directory to target using several threads.
+     * 
+     * @param sourceFile
+     * @param targetFile
+     * @param threads
+     * @throws MojoExecutionException
+     */
+    public static void copyFile(Path sourceFile, Path targetFile, int threads)
+            throws MojoExecutionException {
 
         if (Files.exists(sourceFile)) {
-            final CopyFilesVisitor crv = new CopyFilesVisitor(sourceFile, targetFile, true);
-            try {
-                Files.walkFileTree(sourceFile, crv);
-            } catch (IOException e) {
-                throw new MojoExecutionException("Error copying file(s) to: " + targetFile + " " +
-                                e.getMessage(), e);
+            final ParallelFileCopier copier = new ParallelFileCopier(sourceFile, targetFile);
+            copier.setThreads(threads);
+            copier.setPreserveAttributes(true);
+            copier.copy(null);
+        }
+    }
+
+    /**
+     * Transfer a directory tree to a not yet existing target and apply owner, group and permissions.<br/>
+     * move renames the source tree in one step, link hardlinks all files and keeps the source, copy
+     * copies all files. move and link fall back to copy if source and target are on different
+     * filesystems. Hardlinked files share their attributes with the source.
+     * 
+     * @param source
+     * @param target
+     * @param strategy copy|move|link
+     * @param octalFilePerms
+     * @param octalDirPerms
+     * @param newUser
+     * @param newGroup
+     * @param threads copy threads
+     * @param logger
+     * @return String the strategy actually used
+     * @throws MojoExecutionException
+     */
+    public static String deployDirectory(Path source, Path target, String strategy, String octalFilePerms,
+            String octalDirPerms, String newUser, String newGroup, int threads, Log logger)
+            throws MojoExecutionException {
+
+        if (!DEPLOY_STRATEGY_COPY.equals(strategy) && !DEPLOY_STRATEGY_MOVE.equals(strategy)
+                && !DEPLOY_STRATEGY_LINK.equals(strategy)) {
+            throw new MojoExecutionException("Unsupported deploy strategy: " + strategy + ", use copy, move or link.");
+        }
+        String usedStrategy = strategy;
+        try {
+            createDirectories(target.getParent().toString(), true);
+            if (!DEPLOY_STRATEGY_COPY.equals(strategy)
+                    && !Files.getFileStore(source).equals(Files.getFileStore(target.getParent()))) {
+                logger.info("..source and target are on different filesystems, copying instead.");
+                usedStrategy = DEPLOY_STRATEGY_COPY;
+            }
+            if (DEPLOY_STRATEGY_MOVE.equals(usedStrategy)) {
+                try {
+                    Files.move(source, target);
+                } catch (DirectoryNotEmptyException e) {
+                    // rename across mount points of the same device, nothing was moved
+                    logger.info("..could not rename " + source + ", copying instead.");
+                    usedStrategy = DEPLOY_STRATEGY_COPY;
+                }
+            } else if (DEPLOY_STRATEGY_LINK.equals(usedStrategy)) {
+                Files.walkFileTree(source, new LinkFilesVisitor(source, target));
+            }
+            if (DEPLOY_STRATEGY_COPY.equals(usedStrategy)) {
+                final ParallelFileCopier copier = new ParallelFileCopier(source, target);
+                copier.setThreads(threads);
+                copier.setAttributes(octalFilePerms, octalDirPerms, newUser, newGroup);
+                copier.copy(logger);
+                return usedStrategy;
+            }
+            final FileAttributesVisitor av = new FileAttributesVisitor(target, octalFilePerms, octalDirPerms,
+                    newUser, newGroup);
+            if (av.hasAttributes()) {
+                Files.walkFileTree(target, av);
             }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error while deploying to: " + target.toAbsolutePath() + " "
+                    + e.getMessage(), e);
         }
+        return usedStrategy;
     }
 
     /**
@@ -406,6 +482,35 @@ public final class FileUtil {
         return encoding.decode(ByteBuffer.wrap(encoded)).toString();
     }
 
+    /**
+     * Sha1 of a file's content as hex string.
+     * 
+     * @param file
+     * @return String
+     * @throws IOException
+     */
+    public static String getFileSha1(Path file) throws IOException {
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
     /**
      * Dump file contents to console.
      * 
@@ -0,0 +1,485 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.type.MagentoModule;
+
+/**
+ * Builds an index of all modules of a magento instance.<br/>
+ * The declarations in app/etc/modules and the config.xml of each declared module are read in
+ * parallel with a streaming parser, no DOM is built. Collected are active, codePool, depends,
+ * version, class rewrites and setup resources. With a cache file, files whose mtime and size did
+ * not change since the last scan are not read again.
+ *
+ * @author Erik Dannenberg
+ */
+public class MagentoModuleScanner {
+
+    public static final String CACHE_DIR_NAME = "mavento";
+    public static final String CACHE_FILE_NAME = "modules.tsv";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private final Path magentoRoot;
+    private Path cacheFile;
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+
+    private int parsedCount = 0;
+
+    public MagentoModuleScanner(Path magentoRoot) {
+        this.magentoRoot = magentoRoot.toAbsolutePath();
+    }
+
+    /**
+     * Directory for the cache file, null to always read all files.
+     *
+     * @param cacheDir
+     */
+    public void setCacheDir(Path cacheDir) {
+        this.cacheFile = cacheDir == null ? null : cacheDir.resolve(CACHE_FILE_NAME);
+    }
+
+    /**
+     * Number of threads reading xml files.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Number of files actually read by the last scan, the others came from the cache.
+     *
+     * @return int
+     */
+    public int getParsedCount() {
+        return parsedCount;
+    }
+
+    /**
+     * Scans the magento instance.
+     *
+     * @param logger may be null
+     * @return Map<String, MagentoModule> key: module key, i.e. Mage_Core, sorted
+     * @throws MojoExecutionException
+     */
+    public Map<String, MagentoModule> scan(Log logger) throws MojoExecutionException {
+
+        final Path modulesDir = magentoRoot.resolve("app/etc/modules");
+        if (!Files.isDirectory(modulesDir)) {
+            throw new MojoExecutionException("Could not find /app/etc/modules directory.");
+        }
+        final Map<String, FileEntry> cache = readCache();
+        parsedCount = 0;
+
+        final List<String> declarationFiles = new ArrayList<String>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(modulesDir, "*.xml")) {
+            for (Path file : files) {
+                declarationFiles.add(relativePath(file));
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not read modules directory. " + e.getMessage(), e);
+        }
+        // magento reads them in file name order as well, later declarations win
+        Collections.sort(declarationFiles);
+        final Map<String, FileEntry> declarations = readFiles(declarationFiles, null, cache);
+
+        final Map<String, MagentoModule> modules = new TreeMap<String, MagentoModule>();
+        for (FileEntry entry : declarations.values()) {
+            for (MagentoModule declared : entry.modules) {
+                // copy, cached entries must not pick up the config.xml values
+                final MagentoModule module = new MagentoModule(declared.getModuleKey());
+                module.setActive(declared.isActive());
+                module.setCodePool(declared.getCodePool());
+                module.setDeclarationFile(declared.getDeclarationFile());
+                module.getDepends().addAll(declared.getDepends());
+                modules.put(module.getModuleKey(), module);
+            }
+        }
+
+        final List<String> configFiles = new ArrayList<String>();
+        final Map<String, String> configFileModules = new HashMap<String, String>();
+        for (MagentoModule module : modules.values()) {
+            if (module.getCodePool() != null) {
+                final String configFile = "app/code/" + module.getCodePool() + "/" + module.getNamespace() + "/"
+                        + module.getName() + "/etc/config.xml";
+                if (Files.isRegularFile(magentoRoot.resolve(configFile))) {
+                    configFiles.add(configFile);
+                    configFileModules.put(configFile, module.getModuleKey());
+                }
+            }
+        }
+        final Map<String, FileEntry> configs = readFiles(configFiles, configFileModules, cache);
+        for (Map.Entry<String, FileEntry> config : configs.entrySet()) {
+            final MagentoModule module = modules.get(configFileModules.get(config.getKey()));
+            final MagentoModule configValues = config.getValue().modules.get(0);
+            module.setVersion(configValues.getVersion());
+            module.setRewrites(configValues.getRewrites());
+            module.setSetupResources(configValues.getSetupResources());
+        }
+
+        if (cacheFile != null && (parsedCount > 0 || cache.size() != declarations.size() + configs.size())) {
+            final Map<String, FileEntry> newCache = new TreeMap<String, FileEntry>(declarations);
+            newCache.putAll(configs);
+            writeCache(newCache);
+        }
+        if (logger != null && logger.isDebugEnabled()) {
+            logger.debug("..indexed " + modules.size() + " modules, read " + parsedCount + " of "
+                    + (declarations.size() + configs.size()) + " xml files.");
+        }
+        return modules;
+    }
+
+    /**
+     * Parsed content of a declaration or config.xml file.
+     */
+    private static class FileEntry {
+        private final long mtime;
+        private final long size;
+        /**
+         * Declared modules, or a single module with the values of a config.xml.
+         */
+        private final List<MagentoModule> modules;
+
+        FileEntry(long mtime, long size, List<MagentoModule> modules) {
+            this.mtime = mtime;
+            this.size = size;
+            this.modules = modules;
+        }
+    }
+
+    /**
+     * @param moduleKeys null for declaration files, else key: config file value: module key
+     */
+    private Map<String, FileEntry> readFiles(List<String> files, final Map<String, String> moduleKeys,
+            final Map<String, FileEntry> cache) throws MojoExecutionException {
+
+        final Map<String, FileEntry> result = new LinkedHashMap<String, FileEntry>();
+        if (files.isEmpty()) {
+            return result;
+        }
+        final Map<String, Future<FileEntry>> futures = new LinkedHashMap<String, Future<FileEntry>>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            for (final String file : files) {
+                futures.put(file, executor.submit(new Callable<FileEntry>() {
+                    @Override
+                    public FileEntry call() throws IOException, XMLStreamException {
+                        final BasicFileAttributes attrs = Files.readAttributes(magentoRoot.resolve(file),
+                                BasicFileAttributes.class);
+                        final long mtime = attrs.lastModifiedTime().toMillis();
+                        final FileEntry cached = cache.get(file);
+                        if (cached != null && cached.mtime == mtime && cached.size == attrs.size()) {
+                            return cached;
+                        }
+                        final List<MagentoModule> modules = moduleKeys == null ? parseDeclaration(file)
+                                : Collections.singletonList(parseConfig(file, moduleKeys.get(file)));
+                        return new FileEntry(mtime, attrs.size(), modules);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<FileEntry>> future : futures.entrySet()) {
+                try {
+                    final FileEntry entry = future.getValue().get();
+                    if (entry != cache.get(future.getKey())) {
+                        ++parsedCount;
+                    }
+                    result.put(future.getKey(), entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted while reading " + future.getKey(), e);
+                } catch (ExecutionException e) {
+                    throw new MojoExecutionException("Could not read or parse " + future.getKey() + ". "
+                            + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Reads the modules of a app/etc/modules file.
+     */
+    private List<MagentoModule> parseDeclaration(String file) throws IOException, XMLStreamException {
+
+        final List<MagentoModule> modules = new ArrayList<MagentoModule>();
+        final List<String> path = new ArrayList<String>();
+        final StringBuilder text = new StringBuilder();
+        MagentoModule module = null;
+        try (InputStream in = Files.newInputStream(magentoRoot.resolve(file))) {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        path.add(reader.getLocalName());
+                        text.setLength(0);
+                        if (path.size() == 3 && isPath(path, "config", "modules")) {
+                            module = null;
+                            if (reader.getLocalName().contains("_")) {
+                                module = new MagentoModule(reader.getLocalName());
+                                module.setActive(false);
+                                module.setDeclarationFile(file);
+                                modules.add(module);
+                            }
+                        } else if (path.size() == 5 && module != null && "depends".equals(path.get(3))) {
+                            module.getDepends().add(reader.getLocalName());
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        text.append(reader.getText());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (path.size() == 4 && module != null) {
+                            if ("active".equals(path.get(3))) {
+                                module.setActive(Boolean.parseBoolean(text.toString().trim()));
+                            } else if ("codePool".equals(path.get(3))) {
+                                module.setCodePool(text.toString().trim());
+                            }
+                        }
+                        path.remove(path.size() - 1);
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * Reads version, rewrites and setup resources of a module's config.xml.
+     */
+    private MagentoModule parseConfig(String file, String moduleKey) throws IOException {
+
+        final MagentoModule module = new MagentoModule(moduleKey);
+        final List<String> path = new ArrayList<String>();
+        final StringBuilder text = new StringBuilder();
+        String version = "";
+        try (InputStream in = Files.newInputStream(magentoRoot.resolve(file))) {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        path.add(reader.getLocalName());
+                        text.setLength(0);
+                        if (path.size() == 5 && isPath(path, "config", "global", "resources")
+                                && "setup".equals(path.get(4)) && !module.getSetupResources().contains(path.get(3))) {
+                            module.getSetupResources().add(path.get(3));
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        text.append(reader.getText());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (path.size() == 4 && isPath(path, "config", "modules", moduleKey, "version")) {
+                            version = text.toString().trim();
+                        } else if (path.size() == 6 && isPath(path, "config", "global")
+                                && Arrays.asList("models", "blocks", "helpers").contains(path.get(2))
+                                && "rewrite".equals(path.get(4))) {
+                            module.getRewrites().put(path.get(2) + "/" + path.get(3) + "/" + path.get(5),
+                                    text.toString().trim());
+                        }
+                        path.remove(path.size() - 1);
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            module.setVersion(version.isEmpty() ? "undefined" : version);
+        } catch (XMLStreamException e) {
+            // same as MagentoXmlUtil.getModuleVersion(), the module is still listed
+            module.setVersion("configproblem");
+        }
+        return module;
+    }
+
+    private static boolean isPath(List<String> path, String... prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (!prefix[i].equals(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String relativePath(Path file) {
+        return magentoRoot.relativize(file.toAbsolutePath()).toString().replace('\\', '/');
+    }
+
+    private Map<String, FileEntry> readCache() {
+
+        final Map<String, FileEntry> cache = new HashMap<String, FileEntry>();
+        if (cacheFile == null || !Files.exists(cacheFile)) {
+            return cache;
+        }
+        try (BufferedReader in = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            boolean rootFound = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t", -1);
+                if (!rootFound) {
+                    if (fields.length != 2 || !"root".equals(fields[0]) || !magentoRoot.toString().equals(fields[1])) {
+                        return new HashMap<String, FileEntry>();
+                    }
+                    rootFound = true;
+                    continue;
+                }
+                if (fields.length != 10) {
+                    return new HashMap<String, FileEntry>();
+                }
+                FileEntry entry = cache.get(fields[0]);
+                if (entry == null) {
+                    entry = new FileEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            new ArrayList<MagentoModule>());
+                    cache.put(fields[0], entry);
+                }
+                if (fields[3].isEmpty()) {
+                    // declaration file without modules
+                    continue;
+                }
+                final MagentoModule module = new MagentoModule(fields[3]);
+                if (!fields[4].isEmpty()) {
+                    module.setActive(Boolean.parseBoolean(fields[4]));
+                    module.setDeclarationFile(fields[0]);
+                }
+                module.setCodePool(fields[5].isEmpty() ? null : fields[5]);
+                module.getDepends().addAll(split(fields[6]));
+                module.setVersion(fields[7].isEmpty() ? null : fields[7]);
+                for (String rewrite : split(fields[8])) {
+                    final int pos = rewrite.indexOf('=');
+                    module.getRewrites().put(rewrite.substring(0, pos), rewrite.substring(pos + 1));
+                }
+                module.getSetupResources().addAll(split(fields[9]));
+                entry.modules.add(module);
+            }
+        } catch (IOException | RuntimeException e) {
+            // unusable cache, read all files
+            return new HashMap<String, FileEntry>();
+        }
+        return cache;
+    }
+
+    private void writeCache(Map<String, FileEntry> entries) throws MojoExecutionException {
+
+        final Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                out.write("# mavento module index");
+                out.newLine();
+                out.write("root\t" + magentoRoot);
+                out.newLine();
+                out.write("# file\tmtime\tsize\tmodule\tactive\tcodePool\tdepends\tversion\trewrites\tsetup resources");
+                out.newLine();
+                for (Map.Entry<String, FileEntry> entry : entries.entrySet()) {
+                    final FileEntry file = entry.getValue();
+                    final String prefix = entry.getKey() + "\t" + file.mtime + "\t" + file.size + "\t";
+                    if (file.modules.isEmpty()) {
+                        out.write(prefix + "\t\t\t\t\t\t");
+                        out.newLine();
+                    }
+                    for (MagentoModule module : file.modules) {
+                        final StringBuilder rewrites = new StringBuilder();
+                        for (Map.Entry<String, String> rewrite : module.getRewrites().entrySet()) {
+                            rewrites.append(rewrites.length() > 0 ? "," : "").append(rewrite.getKey()).append('=')
+                                    .append(rewrite.getValue());
+                        }
+                        out.write(prefix + module.getModuleKey() + "\t"
+                                + (module.isActive() == null ? "" : module.isActive()) + "\t"
+                                + (module.getCodePool() == null ? "" : module.getCodePool()) + "\t"
+                                + join(module.getDepends()) + "\t"
+                                + (module.getVersion() == null ? "" : module.getVersion()) + "\t"
+                                + rewrites + "\t" + join(module.getSetupResources()));
+                        out.newLine();
+                    }
+                }
+            }
+            Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing module index " + cacheFile + ". " + e.getMessage(), e);
+        }
+    }
+
+    private static String join(List<String> values) {
+        final StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            result.append(result.length() > 0 ? "," : "").append(value);
+        }
+        return result.toString();
+    }
+
+    private static List<String> split(String value) {
+        if (value.isEmpty()) {
+            return new ArrayList<String>();
+        }
+        return new ArrayList<String>(Arrays.asList(value.split(",")));
+    }
+
+}
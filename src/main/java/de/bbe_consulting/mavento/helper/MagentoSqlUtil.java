@@ -16,18 +16,21 @@
 
 package de.bbe_consulting.mavento.helper;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -38,18 +41,30 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamPumper;
 import org.codehaus.plexus.util.cli.CommandLineUtils.StringStreamConsumer;
 import org.apache.maven.plugin.logging.Log;
 
+import de.bbe_consulting.mavento.helper.sql.JdbcConnectionManager;
+import de.bbe_consulting.mavento.helper.sql.MysqlSchemaCache;
+import de.bbe_consulting.mavento.helper.sql.ParallelSqlImporter;
+import de.bbe_consulting.mavento.helper.sql.SqlBulkWriter;
+import de.bbe_consulting.mavento.helper.sql.SqlDumpImporter;
 import de.bbe_consulting.mavento.type.MagentoCoreConfig;
-import de.bbe_consulting.mavento.type.MysqlTable;
+import de.bbe_consulting.mavento.type.MysqlSchema;
 
 /**
  * Magento related SQL helpers.
@@ -58,6 +73,12 @@ import de.bbe_consulting.mavento.type.MysqlTable;
  */
 public final class MagentoSqlUtil {
 
+    public static final String IMPORT_METHOD_MYSQL = "mysql";
+    public static final String IMPORT_METHOD_JDBC = "jdbc";
+    public static final String GZIP_EXTENSION = ".gz";
+
+    private static final Pattern AUTO_INCREMENT_OPTION = Pattern.compile("(?m)(^\\).*?) AUTO_INCREMENT=\\d+");
+
     protected static final String[] entityTableSuffixes = {"attribute", "datetime",
         "decimal", "gallery", "int", "media_gallery", "media_gallery_value", "text", "tier_price", "type", "varchar"};
 
@@ -222,6 +243,8 @@ public final class MagentoSqlUtil {
             } else {
                 throw new MojoExecutionException("Error while dropping database: " + e.getMessage(), e);
             }
+        } finally {
+            JdbcConnectionManager.invalidate(magentoDbName);
         }
     }
 
@@ -322,7 +345,11 @@ public final class MagentoSqlUtil {
         try {
             rawIn = new FileInputStream(Paths.get(sqlDump).toFile());
             channel = rawIn.getChannel();
-            input = Channels.newInputStream(channel);
+            if (isGzipFile(sqlDump)) {
+                input = new GZIPInputStream(Channels.newInputStream(channel), 64 * 1024);
+            } else {
+                input = Channels.newInputStream(channel);
+            }
 
             final StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
             final StringStreamConsumer error = new CommandLineUtils.StringStreamConsumer();
@@ -338,8 +365,8 @@ public final class MagentoSqlUtil {
             logger.info("..done.");
         } catch (CommandLineException e) {
             throw new MojoExecutionException("Error while importing sql dump.", e);
-        } catch (FileNotFoundException e) {
-            throw new MojoExecutionException("Error while reading sql dump.", e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error while reading sql dump. " + e.getMessage(), e);
         } finally {
             if (channel != null) {
                 try {
@@ -359,7 +386,98 @@ public final class MagentoSqlUtil {
     }
 
     /**
-     * Dumps a mysql database via mysqldump exec.
+     * Imports a mysql dump with the given import method.
+     * 
+     * @param sqlDump
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param magentoDbHost
+     * @param magentoDbPort
+     * @param magentoDbName
+     * @param importMethod mysql or jdbc
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void importSqlDump(String sqlDump, String magentoDbUser,
+            String magentoDbPasswd, String magentoDbHost, String magentoDbPort,
+            String magentoDbName, String importMethod, Log logger) throws MojoExecutionException {
+
+        importSqlDump(sqlDump, magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort,
+                magentoDbName, importMethod, 1, logger);
+    }
+
+    /**
+     * Imports a mysql dump with the given import method.<br/>
+     * If sqlDump is a per table dump directory its tables are imported over jdbc with
+     * the given number of connections.
+     * 
+     * @param sqlDump
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param magentoDbHost
+     * @param magentoDbPort
+     * @param magentoDbName
+     * @param importMethod mysql or jdbc
+     * @param threads
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void importSqlDump(String sqlDump, String magentoDbUser,
+            String magentoDbPasswd, String magentoDbHost, String magentoDbPort,
+            String magentoDbName, String importMethod, int threads, Log logger) throws MojoExecutionException {
+
+        if (Files.isDirectory(Paths.get(sqlDump))) {
+            final ParallelSqlImporter importer = new ParallelSqlImporter(magentoDbUser, magentoDbPasswd,
+                    magentoDbHost, magentoDbPort, magentoDbName, logger);
+            importer.setThreads(threads);
+            importer.importDirectory(Paths.get(sqlDump));
+        } else if (importMethod == null || importMethod.isEmpty() || IMPORT_METHOD_MYSQL.equals(importMethod)) {
+            importSqlDump(sqlDump, magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName, logger);
+        } else if (IMPORT_METHOD_JDBC.equals(importMethod)) {
+            importSqlDumpJdbc(sqlDump, magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName, logger);
+        } else {
+            throw new MojoExecutionException("Unknown sql import method: " + importMethod
+                    + ", use " + IMPORT_METHOD_MYSQL + " or " + IMPORT_METHOD_JDBC + ".");
+        }
+    }
+
+    /**
+     * Imports a mysql dump over jdbc, no mysql client needed.<br/>
+     * Statements are streamed from the dump and sent in batches, the import
+     * stops at the first failing statement.
+     * 
+     * @param sqlDump
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param magentoDbHost
+     * @param magentoDbPort
+     * @param magentoDbName
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void importSqlDumpJdbc(String sqlDump, String magentoDbUser,
+            String magentoDbPasswd, String magentoDbHost, String magentoDbPort,
+            String magentoDbName, Log logger) throws MojoExecutionException {
+
+        final String jdbcUrl = getJdbcUrl(magentoDbHost, magentoDbPort, magentoDbName)
+                + SqlDumpImporter.JDBC_URL_PARAMS;
+        final Connection c = JdbcConnectionManager.openConnection(magentoDbUser, magentoDbPasswd, jdbcUrl);
+        try {
+            logger.info("Importing sql dump into database " + magentoDbName + " via jdbc..");
+            new SqlDumpImporter(c, logger).importFile(Paths.get(sqlDump), true);
+            logger.info("..done.");
+        } finally {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Dumps a mysql database via mysqldump exec.<br/>
+     * Dumps ending with .gz are compressed on the fly.
      * 
      * @param sqlDump
      * @param magentoDbUser
@@ -377,19 +495,10 @@ public final class MagentoSqlUtil {
         final Commandline cl = getMysqlCommandLine(magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort);
         cl.setExecutable("mysqldump");
         cl.addArguments(new String[] { "-C", magentoDbName });
-        cl.addArguments(new String[] {"--result-file=\"" + sqlDump + "\""});
-
-        final StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
-        final StringStreamConsumer error = new CommandLineUtils.StringStreamConsumer();
 
         try {
             logger.info("Dumping database " + magentoDbName + " to " + sqlDump + "..");
-            final int returnValue = CommandLineUtils.executeCommandLine(cl, output, error);
-            if (returnValue != 0) {
-                logger.info(error.getOutput().toString());
-                logger.info("retval: " + returnValue);
-                throw new MojoExecutionException("Error while exporting sql dump.");
-            }
+            executeDump(cl, sqlDump, logger);
             logger.info("..done.");
         } catch (CommandLineException e) {
             throw new MojoExecutionException("Error while dumping from database " + magentoDbName + ".", e);
@@ -397,7 +506,8 @@ public final class MagentoSqlUtil {
     }
 
     /**
-     * Dumps db table(s) via mysqldump exec. whereCondition is optional.
+     * Dumps db table(s) via mysqldump exec. whereCondition is optional.<br/>
+     * Dumps ending with .gz are compressed on the fly.
      * 
      * @param tableNames
      * @param whereCondidtion
@@ -426,25 +536,176 @@ public final class MagentoSqlUtil {
             cl.addArguments(new String[] {"--where=" + whereCondidtion });
             action += " where " + whereCondidtion;
         }
-        cl.addArguments(new String[] {"--result-file=\"" + sqlDump + "\""});
-
-        final StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
-        final StringStreamConsumer error = new CommandLineUtils.StringStreamConsumer();
 
         try {
             logger.info(action + " to " + sqlDump + "..");
-            final int returnValue = CommandLineUtils.executeCommandLine(cl, output, error);
-            if (returnValue != 0) {
-                logger.info(error.getOutput().toString());
-                logger.info("retval: " + returnValue);
-                throw new MojoExecutionException("Error while exporting sql dump.");
-            }
+            executeDump(cl, sqlDump, logger);
             logger.info("..done.");
         } catch (CommandLineException e) {
             throw new MojoExecutionException("Error while dumping tables from database " + magentoDbName + ".", e);
         }
     }
-    
+
+    /**
+     * Returns true if the dump file should be gzip compressed.
+     * 
+     * @param sqlDump
+     * @return boolean
+     */
+    public static boolean isGzipFile(String sqlDump) {
+        return sqlDump.toLowerCase().endsWith(GZIP_EXTENSION);
+    }
+
+    /**
+     * Dumps a mysql database via mysqldump exec in a single pass, tables in schemaOnlyTables
+     * are dumped without data.<br/>
+     * Schema only tables that do not exist in the database are ignored, the table list is taken from
+     * the schema cache in schemaCacheDir. The AUTO_INCREMENT table option
+     * is removed from schema only tables, so their ids start over after import.
+     * Both mysqldump runs use --single-transaction, so InnoDB tables are dumped from a consistent
+     * snapshot without locking them. Dumps ending with .gz are compressed on the fly.
+     * 
+     * @param sqlDump
+     * @param schemaOnlyTables
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param magentoDbHost
+     * @param magentoDbPort
+     * @param magentoDbName
+     * @param schemaCacheDir directory of the schema cache, null to skip the cache
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void dumpSqlDbFiltered(String sqlDump, List<String> schemaOnlyTables, String magentoDbUser,
+            String magentoDbPasswd, String magentoDbHost, String magentoDbPort,
+            String magentoDbName, Path schemaCacheDir, Log logger) throws MojoExecutionException {
+
+        final MysqlSchema schema = MysqlSchemaCache.getSchema(magentoDbUser, magentoDbPasswd,
+                magentoDbHost, magentoDbPort, magentoDbName, schemaCacheDir, false, logger);
+        final List<String> existingTables = new ArrayList<String>();
+        for (String tableName : schemaOnlyTables) {
+            if (schema.hasTable(tableName)) {
+                existingTables.add(tableName);
+            }
+        }
+
+        final Commandline schemaCl = getMysqlCommandLine(magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort);
+        schemaCl.setExecutable("mysqldump");
+        schemaCl.addArguments(new String[] { "-C", "--single-transaction", "--no-data", magentoDbName });
+        final Commandline dataCl = getMysqlCommandLine(magentoDbUser, magentoDbPasswd, magentoDbHost, magentoDbPort);
+        dataCl.setExecutable("mysqldump");
+        dataCl.addArguments(new String[] { "-C", "--single-transaction", magentoDbName });
+        for (String tableName : existingTables) {
+            schemaCl.addArguments(new String[] { tableName });
+            dataCl.addArguments(new String[] { "--ignore-table=" + magentoDbName + "." + tableName });
+        }
+
+        logger.info("Dumping database " + magentoDbName + " to " + sqlDump + ", "
+                + existingTables.size() + " table(s) without data..");
+        try (OutputStream out = openDumpOutput(sqlDump)) {
+            if (!existingTables.isEmpty()) {
+                // schema only, keep the counters of the source out of the empty tables
+                final ByteArrayOutputStream schemaDump = new ByteArrayOutputStream(64 * 1024);
+                pipeDump(schemaCl, schemaDump, logger);
+                out.write(AUTO_INCREMENT_OPTION.matcher(schemaDump.toString("ISO-8859-1")).replaceAll("$1")
+                        .getBytes("ISO-8859-1"));
+            }
+            pipeDump(dataCl, out, logger);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing dump " + sqlDump + ". " + e.getMessage(), e);
+        } catch (CommandLineException e) {
+            throw new MojoExecutionException("Error while dumping from database " + magentoDbName + ".", e);
+        }
+        logger.info("..done.");
+    }
+
+    /**
+     * Runs a mysqldump commandline. Uncompressed dumps are written by mysqldump itself,
+     * compressed dumps are piped through gzip without touching the disk uncompressed.
+     * 
+     * @param cl
+     * @param sqlDump
+     * @param logger
+     * @throws MojoExecutionException
+     * @throws CommandLineException
+     */
+    private static void executeDump(Commandline cl, String sqlDump, Log logger)
+            throws MojoExecutionException, CommandLineException {
+
+        if (isGzipFile(sqlDump)) {
+            try (OutputStream out = openDumpOutput(sqlDump)) {
+                pipeDump(cl, out, logger);
+            } catch (IOException e) {
+                throw new MojoExecutionException("Error writing compressed dump " + sqlDump + ". " + e.getMessage(), e);
+            }
+            return;
+        }
+        cl.addArguments(new String[] {"--result-file=\"" + sqlDump + "\""});
+        final StringStreamConsumer output = new CommandLineUtils.StringStreamConsumer();
+        final StringStreamConsumer error = new CommandLineUtils.StringStreamConsumer();
+        final int returnValue = CommandLineUtils.executeCommandLine(cl, output, error);
+        if (returnValue != 0) {
+            logger.info(error.getOutput().toString());
+            logger.info("retval: " + returnValue);
+            throw new MojoExecutionException("Error while exporting sql dump.");
+        }
+    }
+
+    /**
+     * Opens a dump file for writing, gzip compressed if the name ends with .gz.
+     * 
+     * @param sqlDump
+     * @return OutputStream
+     * @throws IOException
+     */
+    private static OutputStream openDumpOutput(String sqlDump) throws IOException {
+
+        final OutputStream out = Files.newOutputStream(Paths.get(sqlDump));
+        if (isGzipFile(sqlDump)) {
+            return new GZIPOutputStream(out, 64 * 1024);
+        }
+        return new BufferedOutputStream(out, 64 * 1024);
+    }
+
+    /**
+     * Runs a mysqldump commandline and writes its output to out.
+     * 
+     * @param cl
+     * @param out
+     * @param logger
+     * @throws MojoExecutionException
+     * @throws CommandLineException
+     * @throws IOException
+     */
+    private static void pipeDump(Commandline cl, OutputStream out, Log logger)
+            throws MojoExecutionException, CommandLineException, IOException {
+
+        final StringStreamConsumer error = new CommandLineUtils.StringStreamConsumer();
+        final Process p = cl.execute();
+        final StreamPumper errorPumper = new StreamPumper(p.getErrorStream(), error);
+        errorPumper.start();
+        final int returnValue;
+        try (InputStream in = p.getInputStream()) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            returnValue = p.waitFor();
+            errorPumper.waitUntilDone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while dumping.", e);
+        } finally {
+            p.destroy();
+        }
+        if (returnValue != 0) {
+            logger.info(error.getOutput().toString());
+            logger.info("retval: " + returnValue);
+            throw new MojoExecutionException("Error while exporting sql dump.");
+        }
+    }
+
     /**
      * Gets a commandline object for mysql exec calls.
      * 
@@ -512,7 +773,7 @@ public final class MagentoSqlUtil {
     }
 
     /**
-     * Get jdbc connection.
+     * Get a pooled jdbc connection, closing it returns it to the pool.
      * 
      * @param magentoDbUser
      * @param magentoDbPasswd
@@ -520,20 +781,10 @@ public final class MagentoSqlUtil {
      * @return Connection
      * @throws MojoExecutionException
      */
-    private static Connection getJdbcConnection(String magentoDbUser, String magentoDbPasswd, String jdbcUrl)
+    public static Connection getJdbcConnection(String magentoDbUser, String magentoDbPasswd, String jdbcUrl)
              throws MojoExecutionException {
 
-        Connection c = null;
-        try {
-            final String mysqlDriver = "com.mysql.jdbc.Driver";
-            Class.forName(mysqlDriver);
-            c = DriverManager.getConnection(jdbcUrl, magentoDbUser, magentoDbPasswd);
-        } catch (SQLException e) {
-            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            throw new MojoExecutionException("Could not find MySQL driver. " + e.getMessage(), e);
-        }
-        return c;
+        return JdbcConnectionManager.getConnection(magentoDbUser, magentoDbPasswd, jdbcUrl);
     }
 
     /**
@@ -594,24 +845,31 @@ public final class MagentoSqlUtil {
             String magentoDbUser, String magentoDbPasswd, String magentoDbHost,
             String magentoDbPort, String magentoDbName) throws MojoExecutionException {
         
-        ArrayList<String> tableList = new ArrayList<String>(tableNames);
-        final Connection con = MagentoSqlUtil.getJdbcConnection(magentoDbUser,
-                magentoDbPasswd, magentoDbHost, magentoDbPort, magentoDbName);
+        final MysqlSchema schema = MysqlSchemaCache.getSchema(magentoDbUser, magentoDbPasswd,
+                magentoDbHost, magentoDbPort, magentoDbName, null, false, null);
+        return getEntityDataTables(tableNames, schema);
+    }
+
+    /**
+     * Find and add entity type data tables (_int, _varchar, etc) to given tableName list.
+     * 
+     * @param tableNames
+     * @param schema
+     * @return ArrayList<String>
+     */
+    public static ArrayList<String> getEntityDataTables(List<String> tableNames, MysqlSchema schema) {
+        
+        final ArrayList<String> tableList = new ArrayList<String>(tableNames);
         for (String table : tableNames) {
             if (table.endsWith("entity")) {
                 for (String suffix : entityTableSuffixes) {
-                    String t = table + "_" + suffix;
-                    if (MagentoSqlUtil.tableExists(t, con)) {
+                    final String t = table + "_" + suffix;
+                    if (schema.hasTable(t)) {
                         tableList.add(t);
                     }
                 }
             }
         }
-        try {
-            con.close();
-        } catch (SQLException e) {
-            throw new MojoExecutionException("Error closing db connection: " + e.getMessage());
-        }
         return tableList;
     }
 
@@ -663,7 +921,9 @@ public final class MagentoSqlUtil {
     }
 
     /**
-     * Update/insert entries in magento's core_config_data table.
+     * Update/insert entries in magento's core_config_data table.<br/>
+     * Entries with value "null" are deleted. Existing keys are fetched with one query, changes are
+     * written as multi row upserts and deletes in a single transaction.
      * 
      * @param configData
      * @param magentoDbUser
@@ -676,115 +936,89 @@ public final class MagentoSqlUtil {
             String magentoDbUser, String magentoDbPasswd, String jdbcUrl,
             Log logger) throws MojoExecutionException {
 
-        final Connection c = getJdbcConnection(magentoDbUser, magentoDbPasswd, jdbcUrl);
-        PreparedStatement st = null;
-        final ArrayList<MagentoCoreConfig> newEntries = new ArrayList<MagentoCoreConfig>();
-        final ArrayList<MagentoCoreConfig> existingEntries = new ArrayList<MagentoCoreConfig>();
-        final ArrayList<MagentoCoreConfig> nullEntries = new ArrayList<MagentoCoreConfig>();
-        
-        // filter non/existing entries for further processing
+        if (configData.isEmpty()) {
+            return;
+        }
+        final String[] keyColumns = {"scope", "scope_id", "path"};
+        final String[] columns = {"scope", "scope_id", "path", "value"};
+        final Map<String, MagentoCoreConfig> entries = new LinkedHashMap<String, MagentoCoreConfig>();
+        final List<Object[]> nullEntries = new ArrayList<Object[]>();
+        final Set<String> paths = new LinkedHashSet<String>();
         try {
-            final String checkQuery = "SELECT value FROM core_config_data WHERE path=? AND scope=? AND scope_id=?";
-            st = c.prepareStatement(checkQuery);
-            MagentoCoreConfig configEntry = null;
             for (Map.Entry<String, String> rawConfigEntry : configData.entrySet()) {
-                configEntry = new MagentoCoreConfig(rawConfigEntry.getKey(), rawConfigEntry.getValue());
+                final MagentoCoreConfig configEntry = new MagentoCoreConfig(rawConfigEntry.getKey(), rawConfigEntry.getValue());
                 if (configEntry.getValue().toLowerCase().equals("null")) {
-                    nullEntries.add(configEntry);
-                    continue;
-                }
-                st.setString(1, configEntry.getPath());
-                st.setString(2, configEntry.getScope());
-                st.setInt(3, configEntry.getScopeId());
-                ResultSet r = st.executeQuery();
-                if (r.next()) {
-                    existingEntries.add(configEntry);
+                    nullEntries.add(new Object[] {configEntry.getScope(), configEntry.getScopeId(), configEntry.getPath()});
                 } else {
-                    newEntries.add(configEntry);
+                    entries.put(getCoreConfigKey(configEntry.getScope(), configEntry.getScopeId(), configEntry.getPath()),
+                            configEntry);
+                    paths.add(configEntry.getPath());
                 }
             }
+        } catch (Exception e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
 
-            // delete null entries
-            if (!nullEntries.isEmpty()) {
-                c.setAutoCommit(false);
-                final String deleteQuery = "DELETE FROM core_config_data WHERE scope = ? AND scope_id = ? AND path = ?";
-                st = c.prepareStatement(deleteQuery);
-                for (MagentoCoreConfig nullConfigEntry : nullEntries) {
-                    st.setString(1, nullConfigEntry.getScope());
-                    st.setInt(2, nullConfigEntry.getScopeId());
-                    st.setString(3, nullConfigEntry.getPath());
-                    st.addBatch();
-                }
-                final int[] deleteCounts = st.executeBatch();
-                for (int i = 0; i < deleteCounts.length; i++) {
-                    switch (deleteCounts[i]) {
-                    case Statement.SUCCESS_NO_INFO:
-                        break;
-                    case Statement.EXECUTE_FAILED:
-                        throw new MojoExecutionException("Error deleting entries in core_config_data");
-                    default:
-                        break;
-                    }
+        final Connection c = getJdbcConnection(magentoDbUser, magentoDbPasswd, jdbcUrl);
+        try {
+            // fetch current values of all affected paths at once
+            final Map<String, String> existingValues = new HashMap<String, String>();
+            final List<String> pathList = new ArrayList<String>(paths);
+            for (int start = 0; start < pathList.size(); start += 500) {
+                final List<String> chunk = pathList.subList(start, Math.min(pathList.size(), start + 500));
+                final StringBuilder query = new StringBuilder(
+                        "SELECT scope, scope_id, path, value FROM core_config_data WHERE path IN (");
+                for (int i = 0; i < chunk.size(); i++) {
+                    query.append(i > 0 ? ",?" : "?");
                 }
-                c.commit();
-            }
-            
-            // insert new config entries
-            if (!newEntries.isEmpty()) {
-                c.setAutoCommit(false);
-                final String insertQuery = "INSERT INTO core_config_data (scope, scope_id, path, value) VALUES(?,?,?,?)";
-                st = c.prepareStatement(insertQuery);
-                for (MagentoCoreConfig newConfigEntry : newEntries) {
-                    st.setString(1, newConfigEntry.getScope());
-                    st.setInt(2, newConfigEntry.getScopeId());
-                    st.setString(3, newConfigEntry.getPath());
-                    st.setString(4, newConfigEntry.getValue());
-                    st.addBatch();
+                query.append(')');
+                final PreparedStatement st = c.prepareStatement(query.toString());
+                for (int i = 0; i < chunk.size(); i++) {
+                    st.setString(i + 1, chunk.get(i));
                 }
-                final int[] insertCounts = st.executeBatch();
-                for (int i = 0; i < insertCounts.length; i++) {
-                    switch (insertCounts[i]) {
-                    case Statement.SUCCESS_NO_INFO:
-                        break;
-                    case Statement.EXECUTE_FAILED:
-                        throw new MojoExecutionException("Error inserting entries in core_config_data");
-                    default:
-                        break;
-                    }
+                final ResultSet r = st.executeQuery();
+                while (r.next()) {
+                    existingValues.put(getCoreConfigKey(r.getString(1), r.getInt(2), r.getString(3)), r.getString(4));
                 }
-                c.commit();
+                st.close();
             }
 
-            // update existing config entries
-            if (!existingEntries.isEmpty()) {
-                c.setAutoCommit(false);
-                final String updateQuery = "UPDATE core_config_data SET value=? WHERE scope=? AND scope_id=? AND path=?";
-                st = c.prepareStatement(updateQuery);
-                for (MagentoCoreConfig oldConfigEntry : existingEntries) {
-                    st.setString(1, oldConfigEntry.getValue());
-                    st.setString(2, oldConfigEntry.getScope());
-                    st.setInt(3, oldConfigEntry.getScopeId());
-                    st.setString(4, oldConfigEntry.getPath());
-                    st.addBatch();
-                }
-                final int[] updateCounts = st.executeBatch();
-                for (int i = 0; i < updateCounts.length; i++) {
-                    switch (updateCounts[i]) {
-                    case Statement.SUCCESS_NO_INFO:
-                        break;
-                    case Statement.EXECUTE_FAILED:
-                        throw new MojoExecutionException("Error updating entries in core_config_data");
-                    default:
-                        break;
-                    }
+            int inserted = 0;
+            int updated = 0;
+            int unchanged = 0;
+            final List<Object[]> rows = new ArrayList<Object[]>();
+            for (Map.Entry<String, MagentoCoreConfig> entry : entries.entrySet()) {
+                final MagentoCoreConfig configEntry = entry.getValue();
+                if (!existingValues.containsKey(entry.getKey())) {
+                    ++inserted;
+                } else if (configEntry.getValue().equals(existingValues.get(entry.getKey()))) {
+                    ++unchanged;
+                    continue;
+                } else {
+                    ++updated;
                 }
-                c.commit();
+                rows.add(new Object[] {configEntry.getScope(), configEntry.getScopeId(),
+                        configEntry.getPath(), configEntry.getValue()});
             }
 
+            c.setAutoCommit(false);
+            int deleted = 0;
+            if (!nullEntries.isEmpty()) {
+                deleted = SqlBulkWriter.delete(c, "core_config_data", keyColumns, nullEntries);
+            }
+            if (!rows.isEmpty()) {
+                SqlBulkWriter.upsert(c, "core_config_data", columns, new String[] {"value"}, rows);
+            }
+            c.commit();
+            logger.info("..core_config_data: " + inserted + " inserted, " + updated + " updated, "
+                    + unchanged + " unchanged, " + deleted + " deleted.");
         } catch (SQLException e) {
+            try {
+                c.rollback();
+            } catch (SQLException re) {
+                // connection is reset when returned to the pool
+            }
             throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
-        } catch (Exception e) {
-            throw new MojoExecutionException(e.getMessage(), e);
         } finally {
             try {
                 c.close();
@@ -792,7 +1026,10 @@ public final class MagentoSqlUtil {
                 throw new MojoExecutionException(e.getMessage(), e);
             }
         }
+    }
 
+    private static String getCoreConfigKey(String scope, int scopeId, String path) {
+        return scope + "|" + scopeId + "|" + path;
     }
 
     /**
@@ -914,7 +1151,7 @@ public final class MagentoSqlUtil {
     }
 
     /**
-     * Truncate magento's log tables.<br/>
+     * Magento's log tables.<br/>
      * Affected tables: <br/>
      *      dataflow_batch_export<br/>
      *      dataflow_batch_import<br/>
@@ -924,14 +1161,10 @@ public final class MagentoSqlUtil {
      *      log_visitor_info<br/>
      *      report_event<br/>
      *
-     * @param magentoDbUser
-     * @param magentoDbPasswd
-     * @param jdbcUrl
-     * @param logger
-     * @throws MojoExecutionException
+     * @param includeViewedProduct also include report_viewed_product_index
+     * @return List<String> table names
      */
-    public static void truncateLogTables(String magentoDbUser, String magentoDbPasswd, String jdbcUrl,
-            boolean includeViewedProduct, Log logger) throws MojoExecutionException {
+    public static List<String> getLogTableNames(boolean includeViewedProduct) {
 
         final List<String> tableData = new ArrayList<String> ();
         tableData.add("dataflow_batch_export");
@@ -944,20 +1177,15 @@ public final class MagentoSqlUtil {
         if (includeViewedProduct) {
             tableData.add("report_viewed_product_index");
         }
-        truncateTables(tableData, magentoDbUser, magentoDbPasswd, jdbcUrl, logger);
+        return tableData;
     }
-    
+
     /**
-     * Truncates magento's sales tables.
+     * Magento's sales tables.
      * 
-     * @param magentoDbUser
-     * @param magentoDbPasswd
-     * @param jdbcUrl
-     * @param logger
-     * @throws MojoExecutionException
+     * @return List<String> table names
      */
-    public static void truncateSalesTables(String magentoDbUser, String magentoDbPasswd, String jdbcUrl, Log logger)
-            throws MojoExecutionException {
+    public static List<String> getSalesTableNames() {
 
         final List<String> tableData = new ArrayList<String> ();
         tableData.add("sales_flat_creditmemo");
@@ -992,20 +1220,15 @@ public final class MagentoSqlUtil {
         tableData.add("downloadable_link_purchased");
         tableData.add("downloadable_link_purchased_item");
         tableData.add("eav_entity_store");
-        truncateTables(tableData, magentoDbUser, magentoDbPasswd, jdbcUrl, logger);
+        return tableData;
     }
-    
+
     /**
-     * Truncates magento's customer tables.
+     * Magento's customer tables.
      * 
-     * @param magentoDbUser
-     * @param magentoDbPasswd
-     * @param jdbcUrl
-     * @param logger
-     * @throws MojoExecutionException
+     * @return List<String> table names
      */
-    public static void truncateCustomerTables(String magentoDbUser, String magentoDbPasswd, String jdbcUrl, Log logger)
-            throws MojoExecutionException {
+    public static List<String> getCustomerTableNames() {
 
         final List<String> tableData = new ArrayList<String> ();
         tableData.add("customer_address_entity");
@@ -1029,7 +1252,53 @@ public final class MagentoSqlUtil {
         tableData.add("report_viewed_product_index");
         tableData.add("sendfriend_log");
 
-        truncateTables(tableData, magentoDbUser, magentoDbPasswd, jdbcUrl, logger);
+        return tableData;
+    }
+
+    /**
+     * Truncate magento's log tables.<br/>
+     * See {@link #getLogTableNames(boolean)} for affected tables.
+     *
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param jdbcUrl
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void truncateLogTables(String magentoDbUser, String magentoDbPasswd, String jdbcUrl,
+            boolean includeViewedProduct, Log logger) throws MojoExecutionException {
+
+        truncateTables(getLogTableNames(includeViewedProduct), magentoDbUser, magentoDbPasswd, jdbcUrl, logger);
+    }
+    
+    /**
+     * Truncates magento's sales tables.
+     * 
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param jdbcUrl
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void truncateSalesTables(String magentoDbUser, String magentoDbPasswd, String jdbcUrl, Log logger)
+            throws MojoExecutionException {
+
+        truncateTables(getSalesTableNames(), magentoDbUser, magentoDbPasswd, jdbcUrl, logger);
+    }
+    
+    /**
+     * Truncates magento's customer tables.
+     * 
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param jdbcUrl
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void truncateCustomerTables(String magentoDbUser, String magentoDbPasswd, String jdbcUrl, Log logger)
+            throws MojoExecutionException {
+
+        truncateTables(getCustomerTableNames(), magentoDbUser, magentoDbPasswd, jdbcUrl, logger);
     }
 
     /**
@@ -1075,98 +1344,5 @@ public final class MagentoSqlUtil {
             }
         }
     }
-    
-    /**
-     * Get mysql database size in mb.
-     *  
-     * @param dbNameToCheck
-     * @param magentoDbUser
-     * @param magentoDbPasswd
-     * @param jdbcUrl
-     * @param logger
-     * @return String size in mb
-     * @throws MojoExecutionException
-     */
-    public static Map<String,Integer> getDbSize (String dbNameToCheck, String magentoDbUser, String magentoDbPasswd, String jdbcUrl, Log logger)
-            throws MojoExecutionException {
-
-        final Connection c = getJdbcConnection(magentoDbUser, magentoDbPasswd, jdbcUrl);
-        final HashMap<String, Integer> result = new HashMap<String, Integer>();
-        try {
-            final String query = "SELECT SUM( ROUND( ( (DATA_LENGTH + INDEX_LENGTH) /1024 /1024 ) , 0 ))" +
-                    " 'db_size_in_mb', " +
-                    "SUM(table_rows) FROM INFORMATION_SCHEMA.TABLES " +
-                    "WHERE TABLE_SCHEMA = ?";
-            final PreparedStatement st = c.prepareStatement(query);
-            st.setString(1, dbNameToCheck);
-            final ResultSet r = st.executeQuery();
-            if (r.next()) {
-                result.put("totalSize", r.getInt(1));
-                result.put("totalRows", r.getInt(2));
-            } else {
-                throw new MojoExecutionException("Error fetching db details.");
-            }
-        } catch (SQLException e) {
-            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
-        } catch (Exception e) {
-            throw new MojoExecutionException("Error. " + e.getMessage(), e);
-        } finally {
-            try {
-                c.close();
-            } catch (SQLException e) {
-                throw new MojoExecutionException("Error closing database connection. " + e.getMessage(), e);
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Get magento log tables details.
-     * 
-     * @param dbNameToCheck
-     * @param magentoDbUser
-     * @param magentoDbPasswd
-     * @param jdbcUrl
-     * @param logger
-     * @return List<MysqlTable>
-     * @throws MojoExecutionException
-     */
-    public static List<MysqlTable> getLogTablesSize (String dbNameToCheck, String magentoDbUser, String magentoDbPasswd, String jdbcUrl, Log logger)
-            throws MojoExecutionException {
-
-        final Connection c = getJdbcConnection(magentoDbUser, magentoDbPasswd, jdbcUrl);
-        final ArrayList<MysqlTable> tableList = new ArrayList<MysqlTable>();
-        try {
-            final String query = "SELECT TABLE_NAME, table_rows, data_length, index_length " +
-                    "FROM information_schema.TABLES WHERE table_schema = ? " +
-                    "AND (TABLE_NAME like ? OR TABLE_NAME like ?) " +
-                    "ORDER BY table_rows DESC";
-            final PreparedStatement st = c.prepareStatement(query);
-            st.setString(1, dbNameToCheck);
-            st.setString(2, "log_%");
-            st.setString(3, "report_%");
-            final ResultSet r = st.executeQuery();
-            while (r.next()) {
-                MysqlTable m = new MysqlTable();
-                m.setDbName(dbNameToCheck);
-                m.setTableName(r.getString(1));
-                m.setTableRows(r.getInt(2));
-                m.setTableLength(r.getInt(3));
-                m.setTableIndexLength(r.getInt(4));
-                tableList.add(m);
-            }
-        } catch (SQLException e) {
-            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
-        } catch (Exception e) {
-            throw new MojoExecutionException("Error. " + e.getMessage(), e);
-        } finally {
-            try {
-                c.close();
-            } catch (SQLException e) {
-                throw new MojoExecutionException("Error closing database connection. " + e.getMessage(), e);
-            }
-        }
-        return tableList;
-    }
 
 }
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -54,6 +55,8 @@ import org.xml.sax.SAXException;
  */
 public final class MagentoXmlUtil {
 
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>();
+
     /**
      * Private constructor, only static methods in this util class
      */
@@ -70,13 +73,19 @@ public final class MagentoXmlUtil {
     public static Document readXmlFile(String fileName)
             throws MojoExecutionException {
 
-        final DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-        domFactory.setNamespaceAware(true); // never forget this!
-        DocumentBuilder builder = null;
-        try {
-            builder = domFactory.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new MojoExecutionException(e.getMessage(), e);
+        // one builder per thread, creating the factory is more expensive than parsing a module xml
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        if (builder == null) {
+            final DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+            domFactory.setNamespaceAware(true); // never forget this!
+            try {
+                builder = domFactory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new MojoExecutionException(e.getMessage(), e);
+            }
+            DOCUMENT_BUILDER.set(builder);
+        } else {
+            builder.reset();
         }
         Document domDocument = null;
         try {
@@ -103,6 +112,8 @@ public final class MagentoXmlUtil {
         final File targetFile = new File(fileName);
         FileWriter xmlWriter = null;
         try {
+            // may be hardlinked to the artifact cache, write a new file instead of into the shared one
+            Files.deleteIfExists(targetFile.toPath());
             xmlWriter = new FileWriter(targetFile);
             xmlWriter.write(content);
         } catch (IOException e) {
@@ -144,6 +155,43 @@ public final class MagentoXmlUtil {
         }
     }
     
+    /**
+     * Set the active flag of a module in a app/etc/modules document, other modules of the
+     * same document are not touched.
+     * 
+     * @param payload
+     * @param moduleKey
+     * @param active
+     * @throws MojoExecutionException
+     */
+    public static void setModuleActive(Document payload, String moduleKey, boolean active)
+            throws MojoExecutionException {
+
+        final NodeList moduleNodes = payload.getElementsByTagName(moduleKey);
+        for (int i = 0; i < moduleNodes.getLength(); i++) {
+            final Node module = moduleNodes.item(i);
+            if (module.getParentNode() == null || !"modules".equals(module.getParentNode().getNodeName())) {
+                continue;
+            }
+            Node activeNode = null;
+            final NodeList valueNodes = module.getChildNodes();
+            for (int j = 0; j < valueNodes.getLength(); j++) {
+                if ("active".equals(valueNodes.item(j).getNodeName())) {
+                    activeNode = valueNodes.item(j);
+                }
+            }
+            if (activeNode == null) {
+                activeNode = module.appendChild(payload.createElement("active"));
+            }
+            while (activeNode.getChildNodes().getLength() > 0) {
+                activeNode.removeChild(activeNode.getChildNodes().item(0));
+            }
+            activeNode.appendChild(payload.createCDATASection(Boolean.toString(active)));
+            return;
+        }
+        throw new MojoExecutionException("Could not find module " + moduleKey + " in modules xml.");
+    }
+
     /**
      * Return nodeValue of given xpath expression.
      * 
@@ -16,7 +16,9 @@
 
 package de.bbe_consulting.mavento.helper;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.Map;
@@ -24,9 +26,13 @@ import java.util.Properties;
 import java.util.Set;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.ArtifactResolutionRequest;
+import org.apache.maven.artifact.resolver.ArtifactResolutionResult;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.repository.RepositorySystem;
 
 /**
  * Maven related helpers.
@@ -52,6 +58,21 @@ public final class MavenUtil {
      */
     public static void extractCompileDependencies(String targetDirectory, MavenProject project, Log logger)
             throws MojoExecutionException, IOException {
+        extractCompileDependencies(targetDirectory, project, null, logger);
+    }
+
+    /**
+     * Extracts all compile dependencies, through the given artifact cache if not null.
+     * 
+     * @param targetDirectory
+     * @param project
+     * @param cache
+     * @param logger
+     * @throws MojoExecutionException
+     * @throws IOException
+     */
+    public static void extractCompileDependencies(String targetDirectory, MavenProject project,
+            ArtifactCache cache, Log logger) throws MojoExecutionException, IOException {
 
         final Set<Artifact> projectDependencies = project.getDependencyArtifacts();
 
@@ -78,12 +99,47 @@ public final class MavenUtil {
                             + artifact.getArtifactId() + ":"
                             + artifact.getVersion() + "..");
                     String artifactPath = artifact.getFile().getPath();
-                    FileUtil.unzipFile(artifactPath, targetDirectory);
+                    if (cache != null) {
+                        cache.extract(artifact.getFile().toPath(), Paths.get(targetDirectory), logger);
+                    } else {
+                        FileUtil.unzipFile(artifactPath, targetDirectory);
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Resolves an artifact from the local or remote repositories of the project.
+     * 
+     * @param repositorySystem
+     * @param session
+     * @param project
+     * @param groupId
+     * @param artifactId
+     * @param version
+     * @param type
+     * @return File the artifact in the local repository
+     * @throws MojoExecutionException
+     */
+    public static File resolveArtifact(RepositorySystem repositorySystem, MavenSession session,
+            MavenProject project, String groupId, String artifactId, String version, String type)
+            throws MojoExecutionException {
+
+        final Artifact artifact = repositorySystem.createArtifact(groupId, artifactId, version, type);
+        final ArtifactResolutionRequest request = new ArtifactResolutionRequest();
+        request.setArtifact(artifact);
+        request.setLocalRepository(session.getLocalRepository());
+        request.setRemoteRepositories(project.getRemoteArtifactRepositories());
+        request.setOffline(session.isOffline());
+        final ArtifactResolutionResult result = repositorySystem.resolve(request);
+        if (!result.isSuccess() || artifact.getFile() == null) {
+            throw new MojoExecutionException("Error resolving " + groupId + ":" + artifactId + ":" + version
+                    + (result.hasExceptions() ? " " + result.getExceptions().get(0).getMessage() : ""));
+        }
+        return artifact.getFile();
+    }
+
     /**
      * Filter pom.xml properties for magento.config entries and convert them into
      * magento core_config format.
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.visitor.FileAttributesVisitor;
+
+/**
+ * Copies a directory tree with several threads.<br/>
+ * Directories are walked as fork/join tasks, so idle threads steal whole subtrees from busy ones.
+ * Files of a directory are copied in batches, owner, group and permissions are applied by the same
+ * thread right after a batch is written. Directory attributes are applied once their subtree is done,
+ * so restrictive directory permissions do not get in the way of the copy.
+ *
+ * @author Erik Dannenberg
+ */
+public class ParallelFileCopier {
+
+    public static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private static final int FILES_PER_TASK = 32;
+
+    private final Path sourcePath;
+    private final Path targetPath;
+
+    private int threads = DEFAULT_THREADS;
+    private boolean preserveAttrs = false;
+    private boolean followLinks = false;
+    private FileAttributesVisitor attributes;
+
+    private final AtomicLong fileCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private volatile boolean aborted = false;
+
+    public ParallelFileCopier(Path source, Path target) {
+        this.sourcePath = source;
+        this.targetPath = target;
+    }
+
+    /**
+     * Number of copy threads.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Preserve file attributes: files are copied with COPY_ATTRIBUTES, directories keep their modification time.
+     *
+     * @param preserveAttrs
+     */
+    public void setPreserveAttributes(boolean preserveAttrs) {
+        this.preserveAttrs = preserveAttrs;
+    }
+
+    /**
+     * Copy the contents of symlinked directories instead of the links.
+     *
+     * @param followLinks
+     */
+    public void setFollowLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+    }
+
+    /**
+     * Owner, group and permissions applied to all copied files and directories, null values are skipped.
+     *
+     * @param octalFilePerms
+     * @param octalDirPerms
+     * @param newUser
+     * @param newGroup
+     * @throws MojoExecutionException
+     */
+    public void setAttributes(String octalFilePerms, String octalDirPerms, String newUser, String newGroup)
+            throws MojoExecutionException {
+        try {
+            final FileAttributesVisitor av = new FileAttributesVisitor(targetPath, octalFilePerms, octalDirPerms,
+                    newUser, newGroup);
+            this.attributes = av.hasAttributes() ? av : null;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error looking up owner/group. " + e.getMessage(), e);
+        }
+    }
+
+    public long getFileCount() {
+        return fileCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /**
+     * Copies the source tree into the target directory.
+     *
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public void copy(Log logger) throws MojoExecutionException {
+
+        final long startTime = System.currentTimeMillis();
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            if (Files.isDirectory(sourcePath, linkOptions())) {
+                pool.invoke(new DirectoryTask(sourcePath, new ArrayList<Object>()));
+            } else {
+                Files.createDirectories(targetPath.getParent());
+                copyFile(sourcePath, targetPath);
+            }
+        } catch (CopyException e) {
+            throw new MojoExecutionException("Error copying file(s) to: " + targetPath + " "
+                    + e.getCause().getMessage(), e.getCause());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error copying file(s) to: " + targetPath + " " + e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (logger != null) {
+            logger.info(getThroughput(byteCount.get(), fileCount.get(), System.currentTimeMillis() - startTime));
+        }
+    }
+
+    /**
+     * Formats copy statistics.
+     *
+     * @param bytes
+     * @param files
+     * @param millis
+     * @return String
+     */
+    public static String getThroughput(long bytes, long files, long millis) {
+
+        final double seconds = Math.max(millis, 1) / 1000d;
+        final double megaBytes = bytes / 1024d / 1024d;
+        return String.format("..%,.1f MB, %,d files in %,.1fs (%,.1f MB/s, %,.0f files/s)",
+                megaBytes, files, seconds, megaBytes / seconds, files / seconds);
+    }
+
+    private LinkOption[] linkOptions() {
+        return followLinks ? new LinkOption[0] : new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+    }
+
+    private void copyFile(Path source, Path target) throws IOException {
+
+        final CopyOption[] options;
+        if (preserveAttrs) {
+            options = new CopyOption[] { StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING };
+        } else {
+            options = new CopyOption[] { StandardCopyOption.REPLACE_EXISTING };
+        }
+        Files.copy(source, target, options);
+    }
+
+    /**
+     * Creates the target directory, forks a task per sub directory and copies files in batches.
+     */
+    private final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final List<Object> parentKeys;
+
+        private DirectoryTask(Path dir, List<Object> parentKeys) {
+            this.dir = dir;
+            this.parentKeys = parentKeys;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (aborted) {
+                return;
+            }
+            try {
+                final Path targetDir = targetPath.resolve(sourcePath.relativize(dir).toString());
+                // a followed link pointing to one of its parents would never end
+                final List<Object> keys = new ArrayList<Object>(parentKeys);
+                if (followLinks) {
+                    final Object key = Files.readAttributes(dir, BasicFileAttributes.class).fileKey();
+                    if (key != null && keys.contains(key)) {
+                        throw new FileSystemLoopException(dir.toString());
+                    }
+                    keys.add(key);
+                }
+                try {
+                    Files.createDirectories(targetDir);
+                } catch (FileAlreadyExistsException e) {
+                    // ignore
+                }
+                if (preserveAttrs) {
+                    Files.setLastModifiedTime(targetDir, Files.getLastModifiedTime(dir));
+                }
+
+                final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                List<Path> batch = new ArrayList<Path>(FILES_PER_TASK);
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, linkOptions())) {
+                            tasks.add(new DirectoryTask(entry, keys));
+                        } else {
+                            batch.add(entry);
+                            if (batch.size() == FILES_PER_TASK) {
+                                tasks.add(new FileBatchTask(batch));
+                                batch = new ArrayList<Path>(FILES_PER_TASK);
+                            }
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    tasks.add(new FileBatchTask(batch));
+                }
+                invokeAll(tasks);
+                if (attributes != null) {
+                    attributes.setAttributes(targetDir, true);
+                }
+            } catch (IOException e) {
+                aborted = true;
+                throw new CopyException(e);
+            }
+        }
+    }
+
+    private final class FileBatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+
+        private FileBatchTask(List<Path> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+
+            try {
+                for (Path file : files) {
+                    if (aborted) {
+                        return;
+                    }
+                    final Path targetFile = targetPath.resolve(sourcePath.relativize(file).toString());
+                    copyFile(file, targetFile);
+                    fileCount.incrementAndGet();
+                    byteCount.addAndGet(Files.size(targetFile));
+                }
+                if (attributes != null) {
+                    for (Path file : files) {
+                        attributes.setAttributes(targetPath.resolve(sourcePath.relativize(file).toString()), false);
+                    }
+                }
+            } catch (IOException e) {
+                aborted = true;
+                throw new CopyException(e);
+            }
+        }
+    }
+
+    /**
+     * Carries an IOException out of a fork/join task.
+     */
+    private static final class CopyException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private CopyException(IOException cause) {
+            super(cause);
+        }
+    }
+
+}
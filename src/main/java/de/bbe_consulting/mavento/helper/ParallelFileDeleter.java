@@ -0,0 +1,299 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Deletes a directory tree with several threads.<br/>
+ * Like ParallelFileCopier sub directories are fork/join tasks and files are deleted in batches, a
+ * directory is removed once its subtree is done. Symlinks are deleted, never followed. Files that
+ * disappear while deleting are ignored.<br/>
+ * Deferred deletes rename the tree into a trash directory next to it and delete it on a
+ * background thread, awaitDeferred() waits for them at the end of a goal, also if the goal failed.
+ * Trash left by killed builds is deleted along with the next deferred delete into the same trash
+ * directory, or by emptyTrashDeferred().
+ *
+ * @author Erik Dannenberg
+ */
+public class ParallelFileDeleter {
+
+    public static final String TRASH_DIR_NAME = ".mavento-trash";
+
+    private static final int FILES_PER_TASK = 64;
+
+    private static final List<Future<?>> DEFERRED = new ArrayList<Future<?>>();
+    private static ExecutorService deferredExecutor;
+
+    private final Path path;
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+
+    public ParallelFileDeleter(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Number of delete threads.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Deletes the file or tree, does nothing if it does not exist.
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new DirectoryTask(path));
+        } catch (DeleteException e) {
+            throw (IOException) e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Moves a directory out of the way and deletes it in the background.<br/>
+     * Files and symlinks are deleted right away, so are directories that can not be renamed.
+     *
+     * @param path
+     * @param logger
+     * @throws IOException
+     */
+    public static void deleteDeferred(Path path, Log logger) throws IOException {
+
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        final Path absolutePath = path.toAbsolutePath().normalize();
+        final Path trashDir = absolutePath.resolveSibling(TRASH_DIR_NAME);
+        final Path trash = trashDir.resolve(absolutePath.getFileName() + "-" + System.nanoTime());
+        try {
+            Files.createDirectories(trashDir);
+            Files.move(absolutePath, trash);
+        } catch (IOException e) {
+            if (logger != null) {
+                logger.debug("Could not move " + path + " to " + trashDir + ", deleting it now. " + e.getMessage());
+            }
+            new ParallelFileDeleter(path).delete();
+            return;
+        }
+        submitEmptyTrash(trashDir);
+    }
+
+    /**
+     * Deletes trash left next to path by earlier builds that were killed or failed before their
+     * background deletes finished. Runs in the background like deleteDeferred().
+     *
+     * @param path
+     */
+    public static void emptyTrashDeferred(Path path) {
+
+        final Path trashDir = path.toAbsolutePath().normalize().resolveSibling(TRASH_DIR_NAME);
+        if (Files.isDirectory(trashDir, LinkOption.NOFOLLOW_LINKS)) {
+            submitEmptyTrash(trashDir);
+        }
+    }
+
+    private static void submitEmptyTrash(final Path trashDir) {
+
+        synchronized (DEFERRED) {
+            if (deferredExecutor == null) {
+                deferredExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "mavento-trash");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+            DEFERRED.add(deferredExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    emptyTrash(trashDir);
+                    return null;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Waits for all deferred deletes, failures are logged but do not fail the goal.
+     *
+     * @param logger
+     */
+    public static void awaitDeferred(Log logger) {
+
+        final List<Future<?>> pending;
+        synchronized (DEFERRED) {
+            pending = new ArrayList<Future<?>>(DEFERRED);
+            DEFERRED.clear();
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        int done = 0;
+        for (Future<?> future : pending) {
+            done += future.isDone() ? 1 : 0;
+        }
+        if (done < pending.size()) {
+            logger.info("Waiting for " + (pending.size() - done) + " background delete(s)..");
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.warn("Error deleting trash: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes everything in trashDir, including trash of other builds, then trashDir if empty.
+     */
+    private static void emptyTrash(Path trashDir) throws IOException {
+
+        final List<Path> entries = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(trashDir)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        for (Path entry : entries) {
+            new ParallelFileDeleter(entry).delete();
+        }
+        try {
+            Files.deleteIfExists(trashDir);
+        } catch (DirectoryNotEmptyException e) {
+            // another build moved new trash in
+        }
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        private DirectoryTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+
+            try {
+                final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                List<Path> batch = new ArrayList<Path>(FILES_PER_TASK);
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            tasks.add(new DirectoryTask(entry));
+                        } else {
+                            batch.add(entry);
+                            if (batch.size() == FILES_PER_TASK) {
+                                tasks.add(new FileBatchTask(batch));
+                                batch = new ArrayList<Path>(FILES_PER_TASK);
+                            }
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    return;
+                }
+                // delete the last batch in this task instead of forking it
+                for (Path file : batch) {
+                    Files.deleteIfExists(file);
+                }
+                invokeAll(tasks);
+                Files.deleteIfExists(dir);
+            } catch (IOException e) {
+                throw new DeleteException(e);
+            }
+        }
+    }
+
+    private static final class FileBatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+
+        private FileBatchTask(List<Path> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                throw new DeleteException(e);
+            }
+        }
+    }
+
+    /**
+     * Carries an IOException out of a fork/join task.
+     */
+    private static final class DeleteException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private DeleteException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Writes a directory tree into a jar, reading each file only once.<br/>
+ * Files up to BUFFERED_FILE_SIZE are read and, if enabled, deflated by a pool of threads. The
+ * results are written in walk order by the calling thread. Larger files are streamed by the calling
+ * thread, their local header is patched once crc and sizes are known. Entries that do not get
+ * smaller when deflated are stored. Zip64 records are written when the jar needs them. Read ahead
+ * is bounded by READ_AHEAD_BYTES, whatever the number of threads.<br/>
+ * Symlinked files are added with the content of their target, symlinked directories are skipped
+ * like any other link that does not point to a regular file. META-INF/MANIFEST.MF is always written
+ * first, so JarInputStream finds it.<br/>
+ * In reproducible mode entries are sorted by name and all timestamps are set to 1980-02-01.
+ *
+ * @author Erik Dannenberg
+ */
+public class ParallelJarWriter {
+
+    private static final int BUFFERED_FILE_SIZE = 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Heap used for read ahead buffers, independent of the thread count. Deflated entries count twice,
+     * the raw and the compressed buffer are held until the entry is written.
+     */
+    private static final long READ_AHEAD_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_ENTRIES_AHEAD = 1024;
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    /**
+     * Marks the first entry of a jar, like JarOutputStream does.
+     */
+    private static final int JAR_MAGIC_ID = 0xcafe;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final long ZIP32_MAX = 0xffffffffL;
+    private static final int ZIP16_MAX = 0xffff;
+    /**
+     * Deflate may grow incompressible data a little, entries this large get zip64 sizes up front.
+     */
+    private static final long ZIP64_ENTRY_THRESHOLD = ZIP32_MAX - 64 * 1024 * 1024;
+
+    /**
+     * 1980-02-01 00:00, far enough from the start of the dos epoch to survive any timezone shift.
+     */
+    private static final int REPRODUCIBLE_DOS_DATE_TIME = (2 << 5 | 1) << 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Path sourcePath;
+    private final Path jarFile;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+    private int compressionLevel = 0;
+    private boolean reproducible = false;
+    private boolean includeEmptyDirs = true;
+
+    private FileChannel channel;
+    private ByteBuffer out;
+    private final List<EntryData> written = new ArrayList<EntryData>();
+    private long byteCount = 0;
+
+    public ParallelJarWriter(Path source, Path jarFile) {
+        this.sourcePath = source;
+        this.jarFile = jarFile;
+    }
+
+    /**
+     * Number of threads reading and compressing files.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * 0 stores all entries, 1-9 deflates them with the given level.
+     *
+     * @param compressionLevel
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+    }
+
+    /**
+     * Sorted entries and fixed timestamps, the same tree always gives the same jar.
+     *
+     * @param reproducible
+     */
+    public void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    /**
+     * Add entries for empty directories.
+     *
+     * @param includeEmptyDirs
+     */
+    public void setIncludeEmptyDirs(boolean includeEmptyDirs) {
+        this.includeEmptyDirs = includeEmptyDirs;
+    }
+
+    /**
+     * Writes the jar.
+     *
+     * @param logger may be null
+     * @throws MojoExecutionException
+     */
+    public void write(Log logger) throws MojoExecutionException {
+
+        final long startTime = System.currentTimeMillis();
+        final List<SourceEntry> entries;
+        try {
+            entries = collectEntries();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading " + sourcePath + " " + e.getMessage(), e);
+        }
+        if (reproducible) {
+            Collections.sort(entries, new Comparator<SourceEntry>() {
+                @Override
+                public int compare(SourceEntry a, SourceEntry b) {
+                    return a.name.compareTo(b.name);
+                }
+            });
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            if (MANIFEST_NAME.equals(entries.get(i).name)) {
+                entries.add(0, entries.remove(i));
+                break;
+            }
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel jarChannel = FileChannel.open(jarFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel = jarChannel;
+            out = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            final Deque<Future<EntryData>> pending = new ArrayDeque<Future<EntryData>>();
+            int next = 0;
+            long pendingBytes = 0;
+            while (next < entries.size() || !pending.isEmpty()) {
+                while (next < entries.size() && pending.size() < MAX_ENTRIES_AHEAD && (pending.isEmpty()
+                        || pendingBytes + readAheadBytes(entries.get(next)) <= READ_AHEAD_BYTES)) {
+                    final SourceEntry entry = entries.get(next++);
+                    pendingBytes += readAheadBytes(entry);
+                    pending.add(executor.submit(new Callable<EntryData>() {
+                        @Override
+                        public EntryData call() throws IOException {
+                            return readEntry(entry);
+                        }
+                    }));
+                }
+                final EntryData data = pending.poll().get();
+                pendingBytes -= readAheadBytes(data.source);
+                if (data.data == null && !data.directory) {
+                    writeStreamed(data);
+                } else {
+                    writeBuffered(data);
+                }
+            }
+            writeCentralDirectory();
+            flush();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing " + jarFile + " " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while writing " + jarFile, e);
+        } catch (ExecutionException e) {
+            throw new MojoExecutionException("Error writing " + jarFile + " " + e.getCause().getMessage(),
+                    e.getCause());
+        } finally {
+            executor.shutdownNow();
+            channel = null;
+            out = null;
+        }
+        if (logger != null) {
+            logger.info(ParallelFileCopier.getThroughput(byteCount, written.size(),
+                    System.currentTimeMillis() - startTime));
+        }
+    }
+
+    private List<SourceEntry> collectEntries() throws IOException {
+
+        final List<SourceEntry> entries = new ArrayList<SourceEntry>();
+        Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                if (includeEmptyDirs && !dir.equals(sourcePath)) {
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                        if (!stream.iterator().hasNext()) {
+                            entries.add(new SourceEntry(dir, entryName(dir) + "/", attrs, true));
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                BasicFileAttributes fileAttrs = attrs;
+                if (attrs.isSymbolicLink()) {
+                    if (!Files.isRegularFile(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    fileAttrs = Files.readAttributes(file, BasicFileAttributes.class);
+                }
+                entries.add(new SourceEntry(file, entryName(file), fileAttrs, false));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Heap held by an entry between reading and writing it.
+     */
+    private long readAheadBytes(SourceEntry entry) {
+
+        if (entry.directory || entry.size > BUFFERED_FILE_SIZE) {
+            return 0;
+        }
+        return compressionLevel > 0 ? entry.size * 2 : entry.size;
+    }
+
+    private String entryName(Path path) {
+
+        final StringBuilder name = new StringBuilder();
+        for (Path part : sourcePath.relativize(path)) {
+            name.append(name.length() > 0 ? "/" : "").append(part.toString());
+        }
+        return name.toString();
+    }
+
+    /**
+     * Runs in the pool, reads and compresses small files.
+     */
+    private EntryData readEntry(SourceEntry entry) throws IOException {
+
+        final EntryData data = new EntryData(entry);
+        if (entry.directory || entry.size > BUFFERED_FILE_SIZE) {
+            return data;
+        }
+        final byte[] content = new byte[(int) entry.size];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(entry.path)) {
+            int read;
+            while (length < content.length && (read = in.read(content, length, content.length - length)) > 0) {
+                length += read;
+            }
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+        data.crc = crc.getValue();
+        data.size = length;
+        data.method = METHOD_STORED;
+        data.data = content;
+        data.dataLength = length;
+        if (compressionLevel > 0 && length > 0) {
+            final Deflater deflater = new Deflater(compressionLevel, true);
+            try {
+                deflater.setInput(content, 0, length);
+                deflater.finish();
+                final byte[] compressed = new byte[length];
+                int compressedLength = 0;
+                while (!deflater.finished() && compressedLength < compressed.length) {
+                    compressedLength += deflater.deflate(compressed, compressedLength,
+                            compressed.length - compressedLength);
+                }
+                // only keep it if it got smaller
+                if (deflater.finished() && compressedLength < length) {
+                    data.method = METHOD_DEFLATED;
+                    data.data = compressed;
+                    data.dataLength = compressedLength;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        data.compressedSize = data.dataLength;
+        return data;
+    }
+
+    private void writeBuffered(EntryData data) throws IOException {
+
+        data.offset = position();
+        writeLocalHeader(data);
+        if (data.data != null) {
+            writeBytes(data.data, 0, data.dataLength);
+            byteCount += data.size;
+        }
+        data.data = null;
+        written.add(data);
+    }
+
+    /**
+     * Streams a large file, the local header is written with zero crc and sizes and patched afterwards.
+     */
+    private void writeStreamed(EntryData data) throws IOException {
+
+        data.offset = position();
+        data.method = compressionLevel > 0 ? METHOD_DEFLATED : METHOD_STORED;
+        data.zip64 = data.source.size >= ZIP64_ENTRY_THRESHOLD;
+        writeLocalHeader(data);
+
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        final Deflater deflater = data.method == METHOD_DEFLATED ? new Deflater(compressionLevel, true) : null;
+        long size = 0;
+        long compressedSize = 0;
+        try (InputStream in = Files.newInputStream(data.source.path)) {
+            final byte[] compressed = deflater != null ? new byte[STREAM_BUFFER_SIZE] : null;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                size += read;
+                if (deflater == null) {
+                    writeBytes(buffer, 0, read);
+                    compressedSize += read;
+                } else {
+                    deflater.setInput(buffer, 0, read);
+                    while (!deflater.needsInput()) {
+                        final int length = deflater.deflate(compressed);
+                        writeBytes(compressed, 0, length);
+                        compressedSize += length;
+                    }
+                }
+            }
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int length = deflater.deflate(compressed);
+                    writeBytes(compressed, 0, length);
+                    compressedSize += length;
+                }
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        if (!data.zip64 && (size >= ZIP32_MAX || compressedSize >= ZIP32_MAX)) {
+            throw new IOException(data.source.path + " changed while writing the jar.");
+        }
+        data.crc = crc.getValue();
+        data.size = size;
+        data.compressedSize = compressedSize;
+        byteCount += size;
+
+        // patch crc and sizes
+        flush();
+        final ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        patch.putInt((int) data.crc);
+        patch.putInt((int) (data.zip64 ? ZIP32_MAX : compressedSize));
+        patch.putInt((int) (data.zip64 ? ZIP32_MAX : size));
+        patch.flip();
+        channel.write(patch, data.offset + 14);
+        if (data.zip64) {
+            final ByteBuffer extra = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            extra.putLong(size);
+            extra.putLong(compressedSize);
+            extra.flip();
+            channel.write(extra, data.offset + 30 + data.name.length + 4);
+        }
+        written.add(data);
+    }
+
+    private void writeLocalHeader(EntryData data) throws IOException {
+
+        final boolean jarMagic = written.isEmpty();
+        ensureCapacity(30 + data.name.length + 4 + 20);
+        out.putInt(LOCAL_HEADER_SIG);
+        out.putShort((short) (data.zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        out.putShort((short) FLAG_UTF8);
+        out.putShort((short) data.method);
+        out.putShort((short) data.dosTime);
+        out.putShort((short) data.dosDate);
+        out.putInt((int) data.crc);
+        out.putInt((int) (data.zip64 ? ZIP32_MAX : data.compressedSize));
+        out.putInt((int) (data.zip64 ? ZIP32_MAX : data.size));
+        out.putShort((short) data.name.length);
+        out.putShort((short) ((data.zip64 ? 20 : 0) + (jarMagic ? 4 : 0)));
+        out.put(data.name);
+        // zip64 extra first, writeStreamed() patches it at a fixed offset
+        if (data.zip64) {
+            out.putShort((short) ZIP64_EXTRA_ID);
+            out.putShort((short) 16);
+            out.putLong(data.size);
+            out.putLong(data.compressedSize);
+        }
+        if (jarMagic) {
+            out.putShort((short) JAR_MAGIC_ID);
+            out.putShort((short) 0);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+
+        final long centralStart = position();
+        for (int i = 0; i < written.size(); i++) {
+            final EntryData data = written.get(i);
+            final boolean sizeOverflow = data.size >= ZIP32_MAX || data.compressedSize >= ZIP32_MAX;
+            final boolean offsetOverflow = data.offset >= ZIP32_MAX;
+            final int zip64Length = (sizeOverflow ? 16 : 0) + (offsetOverflow ? 8 : 0);
+            final boolean zip64 = zip64Length > 0 || data.zip64;
+            ensureCapacity(46 + data.name.length + 4 + 4 + 24);
+            out.putInt(CENTRAL_HEADER_SIG);
+            out.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+            out.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+            out.putShort((short) FLAG_UTF8);
+            out.putShort((short) data.method);
+            out.putShort((short) data.dosTime);
+            out.putShort((short) data.dosDate);
+            out.putInt((int) data.crc);
+            out.putInt((int) (sizeOverflow ? ZIP32_MAX : data.compressedSize));
+            out.putInt((int) (sizeOverflow ? ZIP32_MAX : data.size));
+            out.putShort((short) data.name.length);
+            out.putShort((short) ((zip64Length > 0 ? 4 + zip64Length : 0) + (i == 0 ? 4 : 0)));
+            out.putShort((short) 0);
+            out.putShort((short) 0);
+            out.putShort((short) 0);
+            out.putInt(0);
+            out.putInt((int) (offsetOverflow ? ZIP32_MAX : data.offset));
+            out.put(data.name);
+            if (zip64Length > 0) {
+                out.putShort((short) ZIP64_EXTRA_ID);
+                out.putShort((short) zip64Length);
+                if (sizeOverflow) {
+                    out.putLong(data.size);
+                    out.putLong(data.compressedSize);
+                }
+                if (offsetOverflow) {
+                    out.putLong(data.offset);
+                }
+            }
+            if (i == 0) {
+                out.putShort((short) JAR_MAGIC_ID);
+                out.putShort((short) 0);
+            }
+        }
+        final long centralEnd = position();
+        final long centralSize = centralEnd - centralStart;
+        final boolean zip64 = written.size() >= ZIP16_MAX || centralSize >= ZIP32_MAX
+                || centralStart >= ZIP32_MAX;
+
+        ensureCapacity(56 + 20 + 22);
+        if (zip64) {
+            out.putInt(ZIP64_END_SIG);
+            out.putLong(44);
+            out.putShort((short) VERSION_ZIP64);
+            out.putShort((short) VERSION_ZIP64);
+            out.putInt(0);
+            out.putInt(0);
+            out.putLong(written.size());
+            out.putLong(written.size());
+            out.putLong(centralSize);
+            out.putLong(centralStart);
+            out.putInt(ZIP64_LOCATOR_SIG);
+            out.putInt(0);
+            out.putLong(centralEnd);
+            out.putInt(1);
+        }
+        out.putInt(END_SIG);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) Math.min(written.size(), ZIP16_MAX));
+        out.putShort((short) Math.min(written.size(), ZIP16_MAX));
+        out.putInt((int) Math.min(centralSize, ZIP32_MAX));
+        out.putInt((int) Math.min(centralStart, ZIP32_MAX));
+        out.putShort((short) 0);
+    }
+
+    private long position() throws IOException {
+        return channel.position() + out.position();
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (out.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+
+        if (length > out.remaining()) {
+            flush();
+            if (length > out.capacity()) {
+                final ByteBuffer direct = ByteBuffer.wrap(bytes, offset, length);
+                while (direct.hasRemaining()) {
+                    channel.write(direct);
+                }
+                return;
+            }
+        }
+        out.put(bytes, offset, length);
+    }
+
+    private void flush() throws IOException {
+
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Converts to the ms-dos time format of zip entries.
+     *
+     * @param millis
+     * @return int date in the upper, time in the lower 16 bits
+     */
+    private static int toDosDateTime(long millis) {
+
+        final Calendar cal = new GregorianCalendar();
+        cal.setTimeInMillis(millis);
+        if (cal.get(Calendar.YEAR) < 1980) {
+            return (1 << 5 | 1) << 16;
+        }
+        final int date = (cal.get(Calendar.YEAR) - 1980) << 9 | (cal.get(Calendar.MONTH) + 1) << 5
+                | cal.get(Calendar.DAY_OF_MONTH);
+        final int time = cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5
+                | cal.get(Calendar.SECOND) >> 1;
+        return date << 16 | time;
+    }
+
+    private final class SourceEntry {
+
+        private final Path path;
+        private final String name;
+        private final long size;
+        private final long mtime;
+        private final boolean directory;
+
+        private SourceEntry(Path path, String name, BasicFileAttributes attrs, boolean directory) {
+            this.path = path;
+            this.name = name;
+            this.size = directory ? 0 : attrs.size();
+            this.mtime = attrs.lastModifiedTime().toMillis();
+            this.directory = directory;
+        }
+    }
+
+    private final class EntryData {
+
+        private final SourceEntry source;
+        private final byte[] name;
+        private final boolean directory;
+        private final int dosTime;
+        private final int dosDate;
+        private int method = METHOD_STORED;
+        private long crc = 0;
+        private long size = 0;
+        private long compressedSize = 0;
+        private long offset;
+        private boolean zip64 = false;
+        private byte[] data;
+        private int dataLength;
+
+        private EntryData(SourceEntry source) {
+            this.source = source;
+            this.name = source.name.getBytes(UTF8);
+            this.directory = source.directory;
+            final int dosDateTime = reproducible ? REPRODUCIBLE_DOS_DATE_TIME : toDosDateTime(source.mtime);
+            this.dosTime = dosDateTime & 0xffff;
+            this.dosDate = dosDateTime >>> 16;
+        }
+    }
+}
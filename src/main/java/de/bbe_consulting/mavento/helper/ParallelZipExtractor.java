@@ -0,0 +1,277 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Extracts a zip/jar with several threads.<br/>
+ * The central directory is read once, all target directories are created up front from the set of
+ * entry parents. File entries are then split into size balanced partitions, each extracted by its
+ * own thread with its own ZipFile handle and write buffer. Entries resolving outside of the target
+ * directory are refused before anything is written. Extracted files keep the modification time
+ * stored in the archive.
+ *
+ * @author Erik Dannenberg
+ */
+public class ParallelZipExtractor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Below this many files a single thread is faster than opening more handles.
+     */
+    private static final int MIN_FILES_PER_THREAD = 64;
+
+    private final Path zipFile;
+    private final Path targetPath;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+    private boolean replaceFiles = false;
+
+    private final AtomicLong fileCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+
+    public ParallelZipExtractor(Path zipFile, Path target) {
+        this.zipFile = zipFile;
+        this.targetPath = target.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Number of extraction threads.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Delete existing files before they are written, see FileUtil.unzipFile().
+     *
+     * @param replaceFiles
+     */
+    public void setReplaceFiles(boolean replaceFiles) {
+        this.replaceFiles = replaceFiles;
+    }
+
+    public long getFileCount() {
+        return fileCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /**
+     * Resolves a zip entry name against the target directory.
+     *
+     * @param target normalized, absolute target directory
+     * @param entryName
+     * @return Path
+     * @throws IOException if the entry would end up outside of the target
+     */
+    public static Path resolveEntry(Path target, String entryName) throws IOException {
+        final Path path = target.resolve(entryName).normalize();
+        if (!path.startsWith(target)) {
+            throw new IOException("Zip entry " + entryName + " is outside of the target.");
+        }
+        return path;
+    }
+
+    /**
+     * Extracts the zip into the target directory.
+     *
+     * @param logger may be null
+     * @throws IOException
+     */
+    public void extract(Log logger) throws IOException {
+
+        final long startTime = System.currentTimeMillis();
+        final List<ZipEntry> files = new ArrayList<ZipEntry>();
+        final Set<Path> directories = new TreeSet<Path>();
+        directories.add(targetPath);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final Path target = resolveEntry(targetPath, entry.getName());
+                if (entry.isDirectory()) {
+                    directories.add(target);
+                } else {
+                    directories.add(target.getParent());
+                    files.add(entry);
+                }
+            }
+        }
+        createDirectories(directories);
+
+        final int partitionCount = Math.max(1, Math.min(threads, files.size() / MIN_FILES_PER_THREAD));
+        final List<List<ZipEntry>> partitions = partition(files, partitionCount);
+        if (partitionCount == 1) {
+            extractEntries(partitions.get(0));
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(partitionCount);
+            try {
+                final List<Future<Void>> results = new ArrayList<Future<Void>>();
+                for (final List<ZipEntry> partition : partitions) {
+                    results.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            extractEntries(partition);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> result : results) {
+                    try {
+                        result.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while extracting " + zipFile, e);
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                            throw (IOException) e.getCause();
+                        }
+                        throw new IOException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        if (logger != null) {
+            logger.info(ParallelFileCopier.getThroughput(byteCount.get(), fileCount.get(),
+                    System.currentTimeMillis() - startTime));
+        }
+    }
+
+    /**
+     * Creates each directory once, sorted so parents come first and are known to exist.
+     */
+    private void createDirectories(Set<Path> directories) throws IOException {
+
+        final Set<Path> created = new HashSet<Path>();
+        for (Path dir : directories) {
+            if (dir.equals(targetPath) || !created.contains(dir.getParent())) {
+                Files.createDirectories(dir);
+            } else {
+                try {
+                    Files.createDirectory(dir);
+                } catch (FileAlreadyExistsException e) {
+                    if (!Files.isDirectory(dir)) {
+                        throw e;
+                    }
+                }
+            }
+            created.add(dir);
+        }
+    }
+
+    /**
+     * Largest entries first, each to the partition with the least bytes so far.
+     */
+    private static List<List<ZipEntry>> partition(List<ZipEntry> files, int count) {
+
+        final List<List<ZipEntry>> partitions = new ArrayList<List<ZipEntry>>(count);
+        final long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<ZipEntry>());
+        }
+        if (count == 1) {
+            partitions.get(0).addAll(files);
+            return partitions;
+        }
+        final List<ZipEntry> sorted = new ArrayList<ZipEntry>(files);
+        Collections.sort(sorted, new Comparator<ZipEntry>() {
+            @Override
+            public int compare(ZipEntry a, ZipEntry b) {
+                return Long.compare(b.getCompressedSize(), a.getCompressedSize());
+            }
+        });
+        for (ZipEntry entry : sorted) {
+            int smallest = 0;
+            for (int i = 1; i < count; i++) {
+                if (sizes[i] < sizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            partitions.get(smallest).add(entry);
+            // count some overhead per file, thousands of tiny files are not free either
+            sizes[smallest] += Math.max(0, entry.getCompressedSize()) + 4096;
+        }
+        return partitions;
+    }
+
+    private void extractEntries(List<ZipEntry> entries) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            for (ZipEntry entry : entries) {
+                final Path target = resolveEntry(targetPath, entry.getName());
+                if (replaceFiles) {
+                    Files.deleteIfExists(target);
+                }
+                long written = 0;
+                try (InputStream in = zip.getInputStream(entry);
+                        FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    int read;
+                    while ((read = in.read(buffer.array())) > 0) {
+                        buffer.limit(read);
+                        while (buffer.hasRemaining()) {
+                            written += out.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
+                // keep the archived modification time, change detection relies on it
+                if (entry.getTime() != -1) {
+                    Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+                }
+                fileCount.incrementAndGet();
+                byteCount.addAndGet(written);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.bbe_consulting.mavento.type.DiffPatch;
+
+/**
+ * Streams a diff style patch file one file section at a time.<br/>
+ * Sections are split with the same rules as DiffUtil.splitPatch(), but the patch is read
+ * through a buffered channel and only the current section is held in memory. Each returned
+ * DiffPatch carries the byte range of its content in the patch file, so the content can be
+ * dropped after a first pass and read again later with readSection().<br/>
+ * For sections without Index: header the name is taken from the ---/+++ header pair, the a/ and b/
+ * prefixes of git style diffs are removed.
+ *
+ * @author Erik Dannenberg
+ */
+public class PatchReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final String targetDir;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(256);
+
+    /**
+     * Byte offset of the next unread line.
+     */
+    private long position = 0;
+    /**
+     * Byte offset of the line last returned by readLine().
+     */
+    private long lineOffset = 0;
+    private boolean eof = false;
+    private boolean isIndexed = false;
+
+    /**
+     * First line of the next section, already consumed while reading the previous one.
+     */
+    private String pendingLine;
+    private long pendingOffset;
+
+    public PatchReader(Path patchFile, String targetDir) throws IOException {
+        this.channel = FileChannel.open(patchFile, StandardOpenOption.READ);
+        this.targetDir = targetDir;
+        buffer.limit(0);
+    }
+
+    /**
+     * Reads the next file section.
+     *
+     * @return DiffPatch or null if there are no more sections
+     * @throws IOException
+     */
+    public DiffPatch next() throws IOException {
+
+        String fileName = null;
+        List<String> content = null;
+        long contentOffset = 0;
+        String line;
+        long offset;
+        while (true) {
+            if (pendingLine != null) {
+                line = pendingLine;
+                offset = pendingOffset;
+                pendingLine = null;
+            } else {
+                line = readLine();
+                offset = lineOffset;
+            }
+            if (line == null) {
+                break;
+            }
+            final boolean startsSection = line.startsWith("Index:") || (!isIndexed && line.startsWith("--- "));
+            if (startsSection && fileName != null) {
+                // belongs to the next section
+                pendingLine = line;
+                pendingOffset = offset;
+                break;
+            }
+            if (line.startsWith("=====")) {
+                // do nothing
+            } else if (line.startsWith("Index:")) {
+                isIndexed = true;
+                fileName = line.substring(6).trim();
+                content = new ArrayList<String>();
+                contentOffset = position;
+            } else if (startsSection) {
+                fileName = line.substring(3).trim().split("\\s")[0];
+                content = new ArrayList<String>();
+                contentOffset = offset;
+                content.add(line);
+            } else if (content != null) {
+                if (!isIndexed && content.size() == 1 && line.startsWith("+++ ")) {
+                    fileName = getTargetName(fileName, line.substring(3).trim().split("\\s")[0]);
+                }
+                content.add(line);
+            }
+        }
+        if (fileName == null) {
+            return null;
+        }
+        final long end = pendingLine != null ? pendingOffset : position;
+        return new DiffPatch(fileName, targetDir, content, contentOffset, end - contentOffset);
+    }
+
+    /**
+     * Target of a ---/+++ header pair. Git prefixes old and new names with a/ and b/, new files
+     * have /dev/null as old name.
+     *
+     * @param oldName name of the --- line
+     * @param newName name of the +++ line
+     * @return String
+     */
+    static String getTargetName(String oldName, String newName) {
+
+        if ("/dev/null".equals(oldName)) {
+            return newName.startsWith("b/") ? newName.substring(2) : newName;
+        }
+        if (oldName.startsWith("a/") && newName.startsWith("b/")) {
+            return oldName.substring(2);
+        }
+        return oldName;
+    }
+
+    /**
+     * Reads the content of a section returned by next() from the patch file again.
+     *
+     * @param patchChannel
+     * @param patchEntry
+     * @return List<String>
+     * @throws IOException
+     */
+    public static List<String> readSection(FileChannel patchChannel, DiffPatch patchEntry) throws IOException {
+
+        final ByteBuffer section = ByteBuffer.allocate((int) patchEntry.getPatchLength());
+        long offset = patchEntry.getPatchOffset();
+        while (section.hasRemaining()) {
+            if (patchChannel.read(section, offset + section.position()) < 0) {
+                throw new IOException("Patch file was truncated while reading " + patchEntry.getPatchFileName());
+            }
+        }
+        final byte[] bytes = section.array();
+        final List<String> lines = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i == bytes.length ? i > start : bytes[i] == '\n') {
+                final String line = decode(bytes, start, i);
+                if (!line.startsWith("=====")) {
+                    lines.add(line);
+                }
+                start = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private String readLine() throws IOException {
+
+        if (eof) {
+            return null;
+        }
+        lineOffset = position;
+        lineBytes.reset();
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    buffer.limit(0);
+                    if (lineBytes.size() == 0) {
+                        return null;
+                    }
+                    final byte[] last = lineBytes.toByteArray();
+                    return decode(last, 0, last.length);
+                }
+                buffer.flip();
+            }
+            final byte[] array = buffer.array();
+            final int start = buffer.position();
+            int newline = start;
+            while (newline < buffer.limit() && array[newline] != '\n') {
+                ++newline;
+            }
+            lineBytes.write(array, start, newline - start);
+            if (newline < buffer.limit()) {
+                buffer.position(newline + 1);
+                position += newline + 1 - start;
+                final byte[] bytes = lineBytes.toByteArray();
+                return decode(bytes, 0, bytes.length);
+            }
+            buffer.position(newline);
+            position += newline - start;
+        }
+    }
+
+    /**
+     * Decodes a line with the platform charset like FileUtil.getFileAsLines(), dropping a trailing \r.
+     */
+    private static String decode(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') {
+            --end;
+        }
+        return new String(bytes, start, end - start, Charset.defaultCharset());
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the patches applied to a magento instance by magento:patch.<br/>
+ * Kept in app/etc/mavento.patches, one line per patch with the sha1 of the patch file and one
+ * line per touched file with the sha1 the file had right after patching. As long as those
+ * files are unchanged a patch is known to be applied without reading the patch again.
+ *
+ * @author Erik Dannenberg
+ */
+public class PatchRegistry {
+
+    public static final String REGISTRY_FILE = "app/etc/mavento.patches";
+
+    private final Path magentoRoot;
+    private final Path registryFile;
+
+    /**
+     * key: patch hash value: patch name and date applied
+     */
+    private final Map<String, String[]> patches = new LinkedHashMap<String, String[]>();
+    /**
+     * key: patch hash value: relative file path -> file hash
+     */
+    private final Map<String, Map<String, String>> patchFiles = new LinkedHashMap<String, Map<String, String>>();
+
+    public PatchRegistry(Path magentoRoot) {
+        this.magentoRoot = magentoRoot;
+        this.registryFile = magentoRoot.resolve(REGISTRY_FILE);
+    }
+
+    /**
+     * Reads the registry, a missing registry is empty.
+     *
+     * @throws IOException
+     */
+    public void load() throws IOException {
+
+        patches.clear();
+        patchFiles.clear();
+        if (!Files.exists(registryFile)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(registryFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t", -1);
+                if (fields.length == 4 && "patch".equals(fields[0])) {
+                    patches.put(fields[1], new String[] {fields[2], fields[3]});
+                    patchFiles.put(fields[1], new LinkedHashMap<String, String>());
+                } else if (fields.length == 4 && "file".equals(fields[0]) && patchFiles.containsKey(fields[1])) {
+                    patchFiles.get(fields[1]).put(fields[2], fields[3]);
+                } else {
+                    throw new IOException("Invalid line in patch registry " + registryFile + ": " + line);
+                }
+            }
+        }
+    }
+
+    public boolean isRegistered(String patchHash) {
+        return patches.containsKey(patchHash);
+    }
+
+    public String getPatchName(String patchHash) {
+        return patches.containsKey(patchHash) ? patches.get(patchHash)[0] : null;
+    }
+
+    public String getAppliedAt(String patchHash) {
+        return patches.containsKey(patchHash) ? patches.get(patchHash)[1] : null;
+    }
+
+    /**
+     * Files touched by a patch.
+     *
+     * @param patchHash
+     * @return Map<String, String> key: path relative to the magento root value: sha1 after patching
+     */
+    public Map<String, String> getFiles(String patchHash) {
+        final Map<String, String> files = patchFiles.get(patchHash);
+        return files == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * Compares the recorded hashes of a patch with the current files.
+     *
+     * @param patchHash
+     * @return true if the patch is registered and none of its files changed since
+     * @throws IOException
+     */
+    public boolean isUnchanged(String patchHash) throws IOException {
+
+        if (!isRegistered(patchHash)) {
+            return false;
+        }
+        for (Map.Entry<String, String> file : getFiles(patchHash).entrySet()) {
+            final Path path = magentoRoot.resolve(file.getKey());
+            if (!Files.isRegularFile(path) || !file.getValue().equals(FileUtil.getFileSha1(path))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records an applied patch, replacing an earlier record of the same patch.
+     *
+     * @param patchHash
+     * @param patchName
+     * @param fileHashes key: path relative to the magento root value: sha1 after patching
+     */
+    public synchronized void register(String patchHash, String patchName, Map<String, String> fileHashes) {
+        patches.remove(patchHash);
+        patches.put(patchHash, new String[] {patchName.replace('\t', ' '),
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())});
+        patchFiles.put(patchHash, new LinkedHashMap<String, String>(fileHashes));
+    }
+
+    /**
+     * Writes the registry.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+
+        Files.createDirectories(registryFile.getParent());
+        final Path tmpFile = registryFile.resolveSibling(registryFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            out.write("# mavento patch registry, written by magento:patch");
+            out.newLine();
+            out.write("# patch\tpatch sha1\tname\tapplied");
+            out.newLine();
+            out.write("# file\tpatch sha1\tpath\tsha1 after patching");
+            out.newLine();
+            for (Map.Entry<String, String[]> patch : patches.entrySet()) {
+                out.write("patch\t" + patch.getKey() + "\t" + patch.getValue()[0] + "\t" + patch.getValue()[1]);
+                out.newLine();
+                for (Map.Entry<String, String> file : patchFiles.get(patch.getKey()).entrySet()) {
+                    out.write("file\t" + patch.getKey() + "\t" + file.getKey() + "\t" + file.getValue());
+                    out.newLine();
+                }
+            }
+        }
+        Files.move(tmpFile, registryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import de.bbe_consulting.mavento.type.DiffPatch;
+import difflib.DiffUtils;
+import difflib.PatchFailedException;
+
+/**
+ * Finds out which patches are applied to a magento instance without changing anything.<br/>
+ * A patch in the PatchRegistry whose touched files still have their recorded hashes is applied.
+ * All other patches are probed per target file: if the reversed diff applies the file is
+ * patched, if the diff applies it is not, if neither applies it conflicts. Patches are checked
+ * in parallel.
+ *
+ * @author Erik Dannenberg
+ */
+public class PatchStatusChecker {
+
+    /**
+     * All files are patched.
+     */
+    public static final String STATUS_APPLIED = "applied";
+    /**
+     * Some files are patched, the others could be.
+     */
+    public static final String STATUS_PARTIAL = "partial";
+    /**
+     * No file is patched, the patch applies cleanly.
+     */
+    public static final String STATUS_PENDING = "pending";
+    /**
+     * At least one file can neither be patched nor is it patched.
+     */
+    public static final String STATUS_CONFLICT = "conflict";
+
+    private final Path magentoRoot;
+    private final PatchRegistry registry;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+
+    public PatchStatusChecker(Path magentoRoot, PatchRegistry registry) {
+        this.magentoRoot = magentoRoot;
+        this.registry = registry;
+    }
+
+    /**
+     * Number of patches checked at the same time.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Checks the given patch files.
+     *
+     * @param patchFiles
+     * @return Map<Path, String> key: patch file value: one of the STATUS_ constants, in the given order
+     * @throws MojoExecutionException
+     */
+    public Map<Path, String> check(List<Path> patchFiles) throws MojoExecutionException {
+
+        final Map<Path, String> result = new LinkedHashMap<Path, String>();
+        if (patchFiles.isEmpty()) {
+            return result;
+        }
+        final Map<Path, Future<String>> futures = new LinkedHashMap<Path, Future<String>>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, patchFiles.size()));
+        try {
+            for (final Path patchFile : patchFiles) {
+                futures.put(patchFile, executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException, MojoExecutionException {
+                        return getStatus(patchFile);
+                    }
+                }));
+            }
+            for (Map.Entry<Path, Future<String>> future : futures.entrySet()) {
+                try {
+                    result.put(future.getKey(), future.getValue().get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted while checking " + future.getKey(), e);
+                } catch (ExecutionException e) {
+                    throw new MojoExecutionException("Error checking " + future.getKey() + " "
+                            + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Status of a single patch file.
+     *
+     * @param patchFile
+     * @return String one of the STATUS_ constants
+     * @throws IOException
+     * @throws MojoExecutionException
+     */
+    public String getStatus(Path patchFile) throws IOException, MojoExecutionException {
+
+        // fast path, just hashes of the files the patch touched last time
+        if (registry != null && registry.isUnchanged(FileUtil.getFileSha1(patchFile))) {
+            return STATUS_APPLIED;
+        }
+
+        final Map<String, List<List<String>>> sectionsByTarget = new LinkedHashMap<String, List<List<String>>>();
+        try (PatchReader reader = new PatchReader(patchFile, magentoRoot.toString())) {
+            DiffPatch patchEntry;
+            while ((patchEntry = reader.next()) != null) {
+                List<List<String>> sections = sectionsByTarget.get(patchEntry.getTargetFileName());
+                if (sections == null) {
+                    sections = new ArrayList<List<String>>();
+                    sectionsByTarget.put(patchEntry.getTargetFileName(), sections);
+                }
+                sections.add(patchEntry.getDiffContent());
+            }
+        }
+        if (sectionsByTarget.isEmpty()) {
+            throw new MojoExecutionException("Patch file " + patchFile + " is not a valid diff file!");
+        }
+
+        int applied = 0;
+        int pending = 0;
+        for (Map.Entry<String, List<List<String>>> target : sectionsByTarget.entrySet()) {
+            final String fileStatus = getFileStatus(target.getKey(), target.getValue());
+            if (STATUS_CONFLICT.equals(fileStatus)) {
+                return STATUS_CONFLICT;
+            } else if (STATUS_APPLIED.equals(fileStatus)) {
+                ++applied;
+            } else {
+                ++pending;
+            }
+        }
+        if (pending == 0) {
+            return STATUS_APPLIED;
+        }
+        return applied == 0 ? STATUS_PENDING : STATUS_PARTIAL;
+    }
+
+    private static String getFileStatus(String targetFile, List<List<String>> sections) throws IOException {
+
+        if (!Files.isRegularFile(Paths.get(targetFile))) {
+            return STATUS_CONFLICT;
+        }
+        final List<String> content = FileUtil.getFileAsLines(targetFile);
+        // undo the sections last to first, when that works the file is patched
+        List<String> probe = content;
+        try {
+            for (int i = sections.size() - 1; i >= 0; i--) {
+                probe = applySection(probe, DiffUtil.reverseDiff(sections.get(i)));
+            }
+            return STATUS_APPLIED;
+        } catch (PatchFailedException e) {
+            // not patched, see if it could be
+        }
+        probe = content;
+        try {
+            for (List<String> section : sections) {
+                probe = applySection(probe, section);
+            }
+            return STATUS_PENDING;
+        } catch (PatchFailedException e) {
+            return STATUS_CONFLICT;
+        }
+    }
+
+    private static List<String> applySection(List<String> content, List<String> section)
+            throws PatchFailedException {
+
+        @SuppressWarnings("unchecked")
+        final List<String> result = (List<String>) DiffUtils.patch(content, DiffUtils.parseUnifiedDiff(section));
+        return result;
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Static helpers for the release layout, where magento.root.local is a symlink to one of
+ * several timestamped release directories.<br/>
+ * A new release is built next to the live one, the symlink is then replaced in one rename.
+ * 
+ * @author Erik Dannenberg
+ */
+public final class ReleaseUtil {
+
+    public static final String RELEASES_DIR_SUFFIX = "_releases";
+
+    private static final String RELEASE_NAME_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+    /**
+     * Private constructor, only static methods in this util class
+     */
+    private ReleaseUtil() {
+    }
+
+    /**
+     * Directory holding the releases, defaults to magento.root.local + "_releases".
+     * 
+     * @param magentoRootLocal
+     * @param releasesDir may be null or empty
+     * @return Path
+     */
+    public static Path getReleasesDir(String magentoRootLocal, String releasesDir) {
+        if (releasesDir != null && !releasesDir.isEmpty()) {
+            return Paths.get(releasesDir).toAbsolutePath();
+        }
+        return Paths.get(magentoRootLocal + RELEASES_DIR_SUFFIX).toAbsolutePath();
+    }
+
+    /**
+     * Path of a new, not yet existing release directory named after the current time.<br/>
+     * Release names sort in creation order.
+     * 
+     * @param releasesDir
+     * @return Path
+     */
+    public static Path getNewReleaseDir(Path releasesDir) {
+        final SimpleDateFormat format = new SimpleDateFormat(RELEASE_NAME_FORMAT, new Locale("en", "EN"));
+        final String name = format.format(new Date());
+        Path release = releasesDir.resolve(name);
+        for (int i = 1; Files.exists(release, LinkOption.NOFOLLOW_LINKS); i++) {
+            release = releasesDir.resolve(name + String.format("-%02d", i));
+        }
+        return release;
+    }
+
+    /**
+     * The release the root symlink currently points to, null if root is no symlink.<br/>
+     * Returns the real path, compare it with the real paths of getReleases() only.
+     * 
+     * @param magentoRoot
+     * @return Path
+     * @throws MojoExecutionException
+     */
+    public static Path getCurrentRelease(Path magentoRoot) throws MojoExecutionException {
+        if (!Files.isSymbolicLink(magentoRoot)) {
+            return null;
+        }
+        try {
+            if (Files.exists(magentoRoot)) {
+                return magentoRoot.toRealPath();
+            }
+            // dangling link, the release is gone
+            return magentoRoot.toAbsolutePath().getParent()
+                    .resolve(Files.readSymbolicLink(magentoRoot)).normalize();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading link target of " + magentoRoot + " : "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Real paths of all release directories, oldest first.
+     * 
+     * @param releasesDir
+     * @return List<Path>
+     * @throws MojoExecutionException
+     */
+    public static List<Path> getReleases(Path releasesDir) throws MojoExecutionException {
+        final List<Path> releases = new ArrayList<Path>();
+        if (!Files.isDirectory(releasesDir)) {
+            return releases;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(releasesDir)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    releases.add(entry.toRealPath());
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading " + releasesDir + " : " + e.getMessage(), e);
+        }
+        Collections.sort(releases);
+        return releases;
+    }
+
+    /**
+     * Creates a new release from an existing one. Files are hardlinked, var/ is copied as Magento
+     * rewrites its contents in place.<br/>
+     * Files changed in the new release have to be replaced, not written to, see FileUtil.unzipFile().
+     * 
+     * @param source
+     * @param release
+     * @param threads
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void createRelease(Path source, Path release, int threads, Log logger)
+            throws MojoExecutionException {
+
+        FileUtil.deployDirectory(source, release, FileUtil.DEPLOY_STRATEGY_LINK, null, null, null, null,
+                threads, logger);
+        final Path varDir = release.resolve("var");
+        if (Files.isDirectory(varDir, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                FileUtil.deleteFile(varDir.toString(), logger);
+            } catch (IOException e) {
+                throw new MojoExecutionException("Error deleting " + varDir + " : " + e.getMessage(), e);
+            }
+            final ParallelFileCopier copier = new ParallelFileCopier(source.resolve("var"), varDir);
+            copier.setThreads(threads);
+            copier.setPreserveAttributes(true);
+            copier.copy(logger);
+        }
+    }
+
+    /**
+     * Atomically points the root symlink at release. An existing root directory is deleted first.
+     * 
+     * @param magentoRoot
+     * @param release
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void switchRelease(Path magentoRoot, Path release, Log logger) throws MojoExecutionException {
+
+        final Path root = magentoRoot.toAbsolutePath();
+        final Path tmpLink = root.resolveSibling(root.getFileName() + ".tmp-link");
+        try {
+            if (Files.exists(root, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(root)) {
+                logger.info("..replacing directory " + root + " with a symlink.");
+                FileUtil.deleteFile(root.toString(), logger);
+            }
+            Files.deleteIfExists(tmpLink);
+            // relative links keep working if the parent directory is moved or mounted elsewhere, they
+            // are resolved from the real directory of the link
+            Files.createSymbolicLink(tmpLink, root.getParent().toRealPath().relativize(release.toRealPath()));
+            Files.move(tmpLink, root, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error switching " + root + " to " + release + " : "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deletes the oldest releases until keep releases are left, the current release is never deleted.
+     * 
+     * @param releasesDir
+     * @param keep
+     * @param currentRelease
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public static void pruneReleases(Path releasesDir, int keep, Path currentRelease, Log logger)
+            throws MojoExecutionException {
+
+        final List<Path> releases = getReleases(releasesDir);
+        Path current = null;
+        if (currentRelease != null) {
+            try {
+                current = currentRelease.toRealPath();
+            } catch (IOException e) {
+                current = currentRelease.toAbsolutePath().normalize();
+            }
+        }
+        int toDelete = releases.size() - Math.max(1, keep);
+        for (Path release : releases) {
+            if (toDelete <= 0) {
+                break;
+            }
+            if (release.equals(current)) {
+                continue;
+            }
+            logger.info("..deleting old release " + release.getFileName());
+            try {
+                FileUtil.deleteFile(release.toString(), logger);
+            } catch (IOException e) {
+                throw new MojoExecutionException("Error deleting " + release + " : " + e.getMessage(), e);
+            }
+            toDelete--;
+        }
+    }
+
+}
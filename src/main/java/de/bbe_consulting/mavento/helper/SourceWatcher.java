@@ -0,0 +1,364 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Copies changed project sources into a Magento instance, for setups that can not use symlinks.<br/>
+ * Sources are mapped like MagentoUtil.collectSymlinks() maps them, files outside of those paths
+ * are ignored. Events are collected until nothing changed for the debounce time, then each changed
+ * path is copied or deleted once. var/cache is cleaned only if config, layout or locale files
+ * changed, templates and code are read by Magento directly.
+ *
+ * @author Erik Dannenberg
+ */
+public class SourceWatcher {
+
+    public static final long DEFAULT_DEBOUNCE = 300;
+
+    private final Path sourceDir;
+    private final Path magentoRoot;
+
+    private long debounce = DEFAULT_DEBOUNCE;
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+
+    /**
+     * Source path to instance path, as collected by MagentoUtil.collectSymlinks().
+     */
+    private Map<Path, Path> mapping = new HashMap<Path, Path>();
+    /**
+     * Mapping before the last update, removed sources are only found in here.
+     */
+    private Map<Path, Path> previousMapping = new HashMap<Path, Path>();
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+    private WatchService watcher;
+
+    public SourceWatcher(Path sourceDir, Path magentoRoot) {
+        this.sourceDir = sourceDir.toAbsolutePath().normalize();
+        this.magentoRoot = magentoRoot.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Milliseconds without events before changes are copied.
+     *
+     * @param debounce
+     */
+    public void setDebounce(long debounce) {
+        this.debounce = Math.max(10, debounce);
+    }
+
+    /**
+     * Number of threads for full syncs.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Syncs all mapped sources into the instance. Mapped files and directories that are symlinks, i.e. left
+     * by magento:symlink, are replaced by copies.
+     *
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public void syncAll(Log logger) throws MojoExecutionException {
+
+        updateMapping();
+        final Set<Path> changed = new TreeSet<Path>(mapping.keySet());
+        apply(changed, changed, logger);
+    }
+
+    /**
+     * Watches the sources and copies changes until the thread is interrupted.
+     *
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public void watch(Log logger) throws MojoExecutionException {
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error creating watch service. " + e.getMessage(), e);
+        }
+        try {
+            register(sourceDir);
+            while (!Thread.currentThread().isInterrupted()) {
+                final Set<Path> changed = new LinkedHashSet<Path>();
+                final Set<Path> createdDirs = new LinkedHashSet<Path>();
+                boolean overflow = collect(watcher.take(), changed, createdDirs);
+                WatchKey key;
+                while ((key = watcher.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(key, changed, createdDirs);
+                }
+                for (Path dir : createdDirs) {
+                    register(dir);
+                }
+                if (overflow) {
+                    logger.warn("Too many changes at once, syncing everything..");
+                    syncAll(logger);
+                    continue;
+                }
+                if (!createdDirs.isEmpty() || containsDeletedDir(changed)) {
+                    // new or removed modules, themes, ...
+                    final Set<Path> oldSources = mapping.keySet();
+                    updateMapping();
+                    for (Path source : mapping.keySet()) {
+                        if (!oldSources.contains(source)) {
+                            changed.add(source);
+                            createdDirs.add(source);
+                        }
+                    }
+                }
+                apply(changed, createdDirs, logger);
+                previousMapping = new HashMap<Path, Path>();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error watching " + sourceDir + " " + e.getMessage(), e);
+        } finally {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Target of a source path in the instance, null if it is not mapped.
+     *
+     * @param source
+     * @return Path
+     */
+    public Path getTarget(Path source) {
+        final Path target = getTarget(source, mapping);
+        return target != null ? target : getTarget(source, previousMapping);
+    }
+
+    private Path getTarget(Path source, Map<Path, Path> sourceMapping) {
+        for (Path p = source; p != null && p.startsWith(sourceDir); p = p.getParent()) {
+            final Path target = sourceMapping.get(p);
+            if (target != null) {
+                return target.resolve(p.relativize(source).toString());
+            }
+        }
+        return null;
+    }
+
+    private void updateMapping() throws MojoExecutionException {
+
+        final Map<Path, Path> newMapping = new HashMap<Path, Path>();
+        try {
+            for (Map.Entry<String, String> link : MagentoUtil.collectSymlinks(sourceDir.toString(),
+                    magentoRoot.toString()).entrySet()) {
+                newMapping.put(Paths.get(link.getKey()).normalize(), Paths.get(link.getValue()).normalize());
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("IO Error while collecting source paths. " + e.getMessage(), e);
+        }
+        previousMapping = mapping;
+        mapping = newMapping;
+    }
+
+    private void register(Path dir) throws IOException {
+
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                watchedDirs.put(d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return boolean true if events were lost
+     */
+    private boolean collect(WatchKey key, Set<Path> changed, Set<Path> createdDirs) {
+
+        final Path dir = watchedDirs.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            final Path path = dir.resolve((Path) event.context());
+            if (isTempFile(path)) {
+                continue;
+            }
+            changed.add(path);
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                createdDirs.add(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+        return overflow;
+    }
+
+    private boolean containsDeletedDir(Set<Path> changed) {
+        for (Path path : changed) {
+            if (Files.notExists(path) && (mapping.containsKey(path) || watchedDirs.containsValue(path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies or deletes each changed path, created directories are synced with all their contents.
+     */
+    private void apply(Set<Path> changed, Set<Path> createdDirs, Log logger) throws MojoExecutionException {
+
+        boolean cleanCache = false;
+        int count = 0;
+        for (Path source : changed) {
+            final Path target = getTarget(source);
+            if (target == null) {
+                continue;
+            }
+            try {
+                if (isLinkedToSources(target.getParent())) {
+                    // a parent was linked by magento:symlink, the instance already sees the change
+                    continue;
+                }
+                if (Files.notExists(source, LinkOption.NOFOLLOW_LINKS)) {
+                    if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                        logger.info("..deleting: " + magentoRoot.relativize(target));
+                        FileUtil.deleteFile(target.toString(), logger);
+                        count++;
+                    }
+                } else if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+                    if (createdDirs.contains(source)) {
+                        if (Files.isSymbolicLink(target)) {
+                            // syncing through the link would write into the linked tree
+                            logger.info("..replacing symlink: " + magentoRoot.relativize(target));
+                            Files.delete(target);
+                            Files.createDirectories(target);
+                        }
+                        logger.info("..syncing: " + magentoRoot.relativize(target));
+                        final FileSynchronizer synchronizer = new FileSynchronizer(target, null);
+                        synchronizer.setThreads(threads);
+                        synchronizer.syncDirectory(source, logger);
+                        count += synchronizer.getWrittenCount() + synchronizer.getDeletedCount();
+                    }
+                } else if (copyIfChanged(source, target)) {
+                    logger.info("..copying: " + magentoRoot.relativize(target));
+                    count++;
+                } else {
+                    continue;
+                }
+            } catch (IOException e) {
+                throw new MojoExecutionException("Error copying " + source + " to " + target + " "
+                        + e.getMessage(), e);
+            }
+            cleanCache |= isCached(source);
+        }
+        if (cleanCache) {
+            logger.info("..cleaning var/cache");
+            try {
+                FileUtil.deleteFile(magentoRoot.resolve("var/cache").toString(), logger);
+            } catch (IOException e) {
+                logger.warn("Could not clean var/cache: " + e.getMessage());
+            }
+        }
+        if (count > 0) {
+            logger.info("..done.");
+        }
+    }
+
+    /**
+     * Copies through a temp file, Magento never sees a half written file.
+     *
+     * @return boolean false if the target already had the same size and mtime
+     */
+    private static boolean copyIfChanged(Path source, Path target) throws IOException {
+
+        if (Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)
+                && Files.size(target) == Files.size(source)
+                && Files.getLastModifiedTime(target).equals(Files.getLastModifiedTime(source))) {
+            return false;
+        }
+        final Path parent = target.getParent();
+        Files.createDirectories(parent);
+        final Path tempFile = parent.resolve("." + target.getFileName() + ".mavento-" + System.nanoTime());
+        Files.copy(source, tempFile, StandardCopyOption.COPY_ATTRIBUTES);
+        if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+            new ParallelFileDeleter(target).delete();
+        }
+        Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    private boolean isLinkedToSources(Path dir) throws IOException {
+        return Files.exists(dir) && Files.exists(sourceDir) && dir.toRealPath().startsWith(sourceDir.toRealPath());
+    }
+
+    private static boolean isTempFile(Path path) {
+        final String name = path.getFileName().toString();
+        return name.endsWith("~") || name.endsWith(".swp") || name.endsWith(".swx") || name.startsWith(".#")
+                || name.contains(".mavento-");
+    }
+
+    /**
+     * Config, layout updates and translations end up in var/cache.
+     */
+    private static boolean isCached(Path source) {
+        final String name = source.getFileName().toString();
+        return name.endsWith(".xml") || name.endsWith(".csv") || Files.isDirectory(source);
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.type.DiffPatch;
+import difflib.DiffUtils;
+import difflib.Patch;
+import difflib.PatchFailedException;
+
+/**
+ * Applies a diff style patch file in one pass.<br/>
+ * The patch is streamed once with PatchReader to collect the file sections, each target file is then patched by a worker thread and
+ * the result written to a staging file next to the target. Only if every target patched
+ * cleanly are the staged files renamed over the targets, otherwise the staging files are
+ * removed and the targets stay untouched. Several patches for the same file are applied in
+ * patch file order. Only the sections of the files currently being patched are held in memory.<br/>
+ * Staged files get the permissions, owner and group of their target. Owner and group are only
+ * copied where the system allows it, without root a foreign owned target ends up owned by the
+ * current user.
+ *
+ * @author Erik Dannenberg
+ */
+public class StagedPatcher {
+
+    private static final String STAGE_SUFFIX = ".mavento-patch-";
+    private static final String BACKUP_SUFFIX = ".mavento-orig-";
+
+    private final String patchFile;
+    private final String targetPath;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+    private PatchRegistry registry;
+
+    /**
+     * key: target file value: sha1 of the staged file, only collected for the registry
+     */
+    private final Map<Path, String> stagedHashes = new ConcurrentHashMap<Path, String>();
+
+    public StagedPatcher(String patchFile, String targetPath) {
+        this.patchFile = patchFile;
+        this.targetPath = targetPath;
+    }
+
+    /**
+     * Number of threads patching target files.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Record committed patches with the post patch hashes of the touched files, null to disable.
+     * The registry is saved after each commit.
+     *
+     * @param registry
+     */
+    public void setRegistry(PatchRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Patches all target files into staging files and, unless dryRun is set, commits them.
+     *
+     * @param dryRun only check that every hunk applies, staging files are always removed
+     * @param silent
+     * @param logger
+     * @return int number of patched files
+     * @throws IOException
+     * @throws MojoExecutionException
+     * @throws PatchFailedException
+     */
+    public int apply(boolean dryRun, boolean silent, Log logger)
+            throws IOException, MojoExecutionException, PatchFailedException {
+
+        // first pass only keeps the section offsets, workers read their sections again
+        final Map<String, List<DiffPatch>> patchesByTarget = new LinkedHashMap<String, List<DiffPatch>>();
+        try (PatchReader reader = new PatchReader(Paths.get(patchFile), targetPath)) {
+            DiffPatch patchEntry;
+            while ((patchEntry = reader.next()) != null) {
+                if (!silent) {
+                    logger.info(".." + patchEntry.getPatchFileName() + " " + patchEntry.getStatsLine());
+                }
+                patchEntry.setDiffContent(null);
+                List<DiffPatch> patches = patchesByTarget.get(patchEntry.getTargetFileName());
+                if (patches == null) {
+                    patches = new ArrayList<DiffPatch>();
+                    patchesByTarget.put(patchEntry.getTargetFileName(), patches);
+                }
+                patches.add(patchEntry);
+            }
+        }
+        if (patchesByTarget.isEmpty()) {
+            throw new MojoExecutionException("Patch file " + patchFile + " is not a valid diff file!");
+        }
+
+        final Map<Path, Path> staged = stage(patchesByTarget);
+        try {
+            if (!dryRun) {
+                commit(staged);
+                if (registry != null) {
+                    register(Paths.get(patchFile), staged.keySet());
+                }
+            }
+        } finally {
+            for (Path stageFile : staged.values()) {
+                Files.deleteIfExists(stageFile);
+            }
+        }
+        if (!silent) {
+            logger.info("..done.");
+        }
+        return staged.size();
+    }
+
+    /**
+     * Patches every target in parallel.
+     *
+     * @return Map<Path, Path> key: target file value: staged file, in patch order
+     */
+    private Map<Path, Path> stage(Map<String, List<DiffPatch>> patchesByTarget)
+            throws IOException, PatchFailedException {
+
+        final Map<Path, Future<Path>> results = new LinkedHashMap<Path, Future<Path>>();
+        final Map<Path, Path> staged = new LinkedHashMap<Path, Path>();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threads, patchesByTarget.size()));
+        Exception failure = null;
+        try {
+            for (final Map.Entry<String, List<DiffPatch>> entry : patchesByTarget.entrySet()) {
+                final Path target = Paths.get(entry.getKey());
+                results.put(target, executor.submit(new Callable<Path>() {
+                    @Override
+                    public Path call() throws IOException, PatchFailedException {
+                        return stageFile(target, entry.getValue());
+                    }
+                }));
+            }
+            // wait for all workers so no staging file is written after the cleanup below
+            for (Map.Entry<Path, Future<Path>> result : results.entrySet()) {
+                try {
+                    staged.put(result.getKey(), result.getValue().get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (failure == null) {
+                        failure = new IOException("Interrupted while patching " + result.getKey(), e);
+                    }
+                    executor.shutdownNow();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause()
+                                : new IOException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure != null) {
+            for (Path stageFile : staged.values()) {
+                Files.deleteIfExists(stageFile);
+            }
+            if (failure instanceof PatchFailedException) {
+                throw new PatchFailedException(failure.getMessage());
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw new IOException(failure.getMessage(), failure);
+        }
+        return staged;
+    }
+
+    private Path stageFile(Path target, List<DiffPatch> patches) throws IOException, PatchFailedException {
+
+        List<String> content = FileUtil.getFileAsLines(target.toString());
+        try (FileChannel patchChannel = FileChannel.open(Paths.get(patchFile), StandardOpenOption.READ)) {
+            for (DiffPatch patchEntry : patches) {
+                final Patch patch = DiffUtils.parseUnifiedDiff(PatchReader.readSection(patchChannel, patchEntry));
+                try {
+                    @SuppressWarnings("unchecked")
+                    final List<String> result = (List<String>) DiffUtils.patch(content, patch);
+                    content = result;
+                } catch (PatchFailedException e) {
+                    throw new PatchFailedException(patchEntry.getPatchFileName() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        final Path stageFile = target.resolveSibling(
+                "." + target.getFileName() + STAGE_SUFFIX + System.nanoTime());
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(stageFile, Charset.defaultCharset())) {
+                for (String line : content) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+            }
+            copyPosixAttributes(target, stageFile);
+            if (registry != null) {
+                stagedHashes.put(target, FileUtil.getFileSha1(stageFile));
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(stageFile);
+            throw e;
+        }
+        return stageFile;
+    }
+
+    private void register(Path patch, Set<Path> targets) throws IOException {
+
+        final Path root = Paths.get(targetPath);
+        final Map<String, String> fileHashes = new LinkedHashMap<String, String>();
+        for (Path target : targets) {
+            fileHashes.put(root.relativize(target).toString(), stagedHashes.get(target));
+        }
+        registry.register(FileUtil.getFileSha1(patch), patch.getFileName().toString(), fileHashes);
+        registry.save();
+    }
+
+    /**
+     * Copies permissions, owner and group of source to target. Changing the owner usually
+     * needs root, if the system refuses it the staged file keeps the current user as owner.
+     */
+    private static void copyPosixAttributes(Path source, Path target) throws IOException {
+
+        final PosixFileAttributeView view = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        final PosixFileAttributes sourceAttributes = Files.readAttributes(source, PosixFileAttributes.class);
+        final PosixFileAttributes targetAttributes = view.readAttributes();
+        view.setPermissions(sourceAttributes.permissions());
+        if (!sourceAttributes.group().equals(targetAttributes.group())) {
+            try {
+                view.setGroup(sourceAttributes.group());
+            } catch (FileSystemException e) {
+                // EPERM, not a member of the group
+            }
+        }
+        if (!sourceAttributes.owner().equals(targetAttributes.owner())) {
+            try {
+                view.setOwner(sourceAttributes.owner());
+            } catch (FileSystemException e) {
+                // EPERM, only root may give files away
+            }
+        }
+    }
+
+    /**
+     * Renames all staged files over their targets. Each target is hardlinked to a backup
+     * first, should a rename fail midway the already replaced targets are restored.
+     */
+    private static void commit(Map<Path, Path> staged) throws IOException {
+
+        final Map<Path, Path> backups = new LinkedHashMap<Path, Path>();
+        try {
+            for (Path target : staged.keySet()) {
+                final Path backup = target.resolveSibling(
+                        "." + target.getFileName() + BACKUP_SUFFIX + System.nanoTime());
+                try {
+                    Files.createLink(backup, target);
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(target, backup, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                backups.put(target, backup);
+            }
+            final List<Path> committed = new ArrayList<Path>();
+            try {
+                for (Map.Entry<Path, Path> entry : staged.entrySet()) {
+                    Files.move(entry.getValue(), entry.getKey(), StandardCopyOption.ATOMIC_MOVE);
+                    committed.add(entry.getKey());
+                }
+            } catch (IOException e) {
+                for (Path target : committed) {
+                    Files.move(backups.get(target), target, StandardCopyOption.ATOMIC_MOVE);
+                }
+                throw new IOException("Error committing patched files, all targets were restored: "
+                        + e.getMessage(), e);
+            }
+        } finally {
+            for (Path backup : backups.values()) {
+                Files.deleteIfExists(backup);
+            }
+        }
+    }
+
+}
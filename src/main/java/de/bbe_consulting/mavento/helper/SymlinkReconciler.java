@@ -0,0 +1,293 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Brings the symlinks of a Magento instance in line with a link map, touching only what changed.<br/>
+ * Links already pointing at their source are left alone, links with another target are replaced
+ * atomically and missing links are created. Links into the source directory that are no longer in
+ * the map are removed. They are found via the link list of the last run and by looking at the
+ * directories the current links live in. Files and links not pointing into the source directory are
+ * never removed, only replaced if the map has a link for their path.
+ *
+ * @author Erik Dannenberg
+ */
+public class SymlinkReconciler {
+
+    private static final int LINKS_PER_TASK = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Path sourceBaseDir;
+    private final Path manifestFile;
+
+    private int threads = ParallelFileCopier.DEFAULT_THREADS;
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong updatedCount = new AtomicLong();
+    private final AtomicLong removedCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+
+    /**
+     * @param sourceBaseDir links pointing below this directory are managed by the reconciler
+     * @param manifestFile list of links of the last run, may be null
+     */
+    public SymlinkReconciler(String sourceBaseDir, Path manifestFile) {
+        this.sourceBaseDir = Paths.get(sourceBaseDir).toAbsolutePath().normalize();
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Number of threads checking and writing links.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getUpdatedCount() {
+        return updatedCount.get();
+    }
+
+    public long getRemovedCount() {
+        return removedCount.get();
+    }
+
+    public long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    /**
+     * Creates, retargets and removes links so the instance matches linkMap.
+     *
+     * @param linkMap source file, link
+     * @param logger
+     * @throws MojoExecutionException
+     */
+    public void reconcile(Map<String, String> linkMap, final Log logger) throws MojoExecutionException {
+
+        final List<Map.Entry<String, String>> links = new ArrayList<Map.Entry<String, String>>(linkMap.entrySet());
+        final Set<Path> linkPaths = new HashSet<Path>();
+        final Set<Path> linkDirs = new HashSet<Path>();
+        for (Map.Entry<String, String> link : links) {
+            final Path linkPath = Paths.get(link.getValue()).toAbsolutePath().normalize();
+            linkPaths.add(linkPath);
+            linkDirs.add(linkPath.getParent());
+        }
+        final Set<Path> candidates = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        candidates.addAll(readManifest());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int start = 0; start < links.size(); start += LINKS_PER_TASK) {
+                final List<Map.Entry<String, String>> chunk = links.subList(start,
+                        Math.min(links.size(), start + LINKS_PER_TASK));
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, MojoExecutionException {
+                        for (Map.Entry<String, String> link : chunk) {
+                            reconcileLink(Paths.get(link.getKey()), Paths.get(link.getValue()), logger);
+                        }
+                        return null;
+                    }
+                });
+            }
+            // links of modules or themes that are gone usually sit next to the current ones
+            for (final Path dir : linkDirs) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                            for (Path entry : entries) {
+                                if (Files.isSymbolicLink(entry)) {
+                                    candidates.add(entry.toAbsolutePath().normalize());
+                                }
+                            }
+                        } catch (NoSuchFileException e) {
+                            // created by the link tasks
+                        }
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, tasks);
+
+            candidates.removeAll(linkPaths);
+            final List<Callable<Void>> removeTasks = new ArrayList<Callable<Void>>();
+            for (final Path candidate : candidates) {
+                removeTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        removeStaleLink(candidate, logger);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, removeTasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        writeManifest(new TreeSet<Path>(linkPaths));
+    }
+
+    private void reconcileLink(Path source, Path link, Log logger) throws IOException, MojoExecutionException {
+
+        final boolean exists = Files.exists(link, LinkOption.NOFOLLOW_LINKS);
+        if (exists && Files.isSymbolicLink(link)) {
+            if (Files.readSymbolicLink(link).equals(source)) {
+                unchangedCount.incrementAndGet();
+                return;
+            }
+            logger.info("..relinking: " + source);
+            // a new link renamed over the old one, the path is never missing
+            final Path tempLink = link.resolveSibling("." + link.getFileName() + ".mavento-" + System.nanoTime());
+            createLink(tempLink, source);
+            Files.move(tempLink, link, StandardCopyOption.ATOMIC_MOVE);
+            updatedCount.incrementAndGet();
+            return;
+        }
+        if (exists) {
+            logger.info("..replacing with link: " + source);
+            FileUtil.deleteFile(link.toString(), logger);
+            updatedCount.incrementAndGet();
+        } else {
+            logger.info("..linking: " + source);
+            Files.createDirectories(link.getParent());
+            createdCount.incrementAndGet();
+        }
+        createLink(link, source);
+    }
+
+    private void removeStaleLink(Path link, Log logger) throws IOException {
+
+        if (!Files.isSymbolicLink(link)) {
+            return;
+        }
+        final Path target = link.getParent().resolve(Files.readSymbolicLink(link)).normalize();
+        // found through a linked directory, it is part of the sources
+        final Path parent = link.getParent().toRealPath();
+        if (parent.startsWith(sourceBaseDir)
+                || Files.exists(sourceBaseDir) && parent.startsWith(sourceBaseDir.toRealPath())) {
+            return;
+        }
+        if (target.startsWith(sourceBaseDir)) {
+            logger.info("..removing stale link: " + link);
+            Files.deleteIfExists(link);
+            removedCount.incrementAndGet();
+        }
+    }
+
+    private static void createLink(Path link, Path source) throws IOException, MojoExecutionException {
+        try {
+            Files.createSymbolicLink(link, source);
+        } catch (UnsupportedOperationException e) {
+            throw new MojoExecutionException("Looks like your filesystem does not support symlinks. :(", e);
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks)
+            throws MojoExecutionException {
+
+        final List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : tasks) {
+            results.add(executor.submit(task));
+        }
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MojoExecutionException("Interrupted while linking.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof MojoExecutionException) {
+                    throw (MojoExecutionException) e.getCause();
+                }
+                throw new MojoExecutionException("Error while linking. " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    private Set<Path> readManifest() throws MojoExecutionException {
+
+        final Set<Path> links = new HashSet<Path>();
+        if (manifestFile == null || Files.notExists(manifestFile)) {
+            return links;
+        }
+        try {
+            for (String line : Files.readAllLines(manifestFile, UTF8)) {
+                if (!line.isEmpty()) {
+                    links.add(Paths.get(line));
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading " + manifestFile + " " + e.getMessage(), e);
+        }
+        return links;
+    }
+
+    private void writeManifest(Set<Path> links) throws MojoExecutionException {
+
+        if (manifestFile == null) {
+            return;
+        }
+        final List<String> lines = new ArrayList<String>(links.size());
+        for (Path link : links) {
+            lines.add(link.toString());
+        }
+        try {
+            Files.createDirectories(manifestFile.getParent());
+            final Path tempFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+            Files.write(tempFile, lines, UTF8);
+            Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing " + manifestFile + " " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Hands out mysql jdbc connections for the running goal.<br/>
+ * Connections handed out by {@link #getConnection(String, String, String)} are pooled per url and user,
+ * closing them returns them to a small idle pool. At most {@value #MAX_ACTIVE_CONNECTIONS} connections per
+ * pool are borrowed at the same time, further callers wait for a returned one. Pooled connections cache
+ * server side prepared statements, statements left open by callers are closed on return. Idle connections
+ * are validated before reuse. Mojos call {@link #closeAll()} when their goal is done, see AbstractMagentoSqlMojo.<br/>
+ * Bulk operations that change session settings should use {@link #openConnection(String, String, String)}.
+ *
+ * @author Erik Dannenberg
+ */
+public final class JdbcConnectionManager {
+
+    /**
+     * Url parameters added to pooled connections.
+     */
+    public static final String POOL_URL_PARAMS = "cachePrepStmts=true&prepStmtCacheSize=64&useServerPrepStmts=true";
+
+    /**
+     * Max number of borrowed connections per pool.
+     */
+    public static final int MAX_ACTIVE_CONNECTIONS = 16;
+
+    private static final String MYSQL_DRIVER = "com.mysql.jdbc.Driver";
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long MAX_WAIT_SECONDS = 120;
+    private static final long VALIDATE_AFTER_MILLIS = 10 * 1000;
+    private static final long MAX_IDLE_MILLIS = 5 * 60 * 1000;
+
+    private static final Map<String, Pool> pools = new HashMap<String, Pool>();
+
+    /**
+     * Private constructor, only static methods in this util class
+     */
+    private JdbcConnectionManager() {
+    }
+
+    /**
+     * Borrows a pooled connection, close() returns it to the pool. Waits if
+     * {@value #MAX_ACTIVE_CONNECTIONS} connections of the pool are borrowed already.
+     *
+     * @param dbUser
+     * @param dbPasswd
+     * @param jdbcUrl
+     * @return Connection
+     * @throws MojoExecutionException
+     */
+    public static Connection getConnection(String dbUser, String dbPasswd, String jdbcUrl)
+            throws MojoExecutionException {
+
+        final String pooledUrl = jdbcUrl + (jdbcUrl.contains("?") ? "&" : "?") + POOL_URL_PARAMS;
+        final Pool pool;
+        final int generation;
+        Connection c = null;
+        synchronized (JdbcConnectionManager.class) {
+            final String key = dbUser + "@" + pooledUrl;
+            Pool p = pools.get(key);
+            if (p == null) {
+                p = new Pool(pooledUrl);
+                pools.put(key, p);
+            }
+            pool = p;
+        }
+        try {
+            if (!pool.active.tryAcquire(MAX_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                throw new MojoExecutionException("Timed out waiting for a connection to " + pool.dbName
+                        + ", " + MAX_ACTIVE_CONNECTIONS + " connections are in use.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while waiting for a connection to " + pool.dbName, e);
+        }
+        synchronized (JdbcConnectionManager.class) {
+            generation = pool.generation;
+            final long now = System.currentTimeMillis();
+            while (c == null && !pool.idle.isEmpty()) {
+                final IdleConnection idle = pool.idle.pop();
+                if (now - idle.since > MAX_IDLE_MILLIS || (now - idle.since > VALIDATE_AFTER_MILLIS
+                        && !isValid(idle.connection))) {
+                    closeQuietly(idle.connection);
+                } else {
+                    c = idle.connection;
+                }
+            }
+        }
+        if (c == null) {
+            try {
+                c = openConnection(dbUser, dbPasswd, pooledUrl);
+            } catch (MojoExecutionException e) {
+                pool.active.release();
+                throw e;
+            }
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new PooledConnectionHandler(pool, generation, c));
+    }
+
+    /**
+     * Opens a dedicated, unpooled connection. The caller has to close it.
+     *
+     * @param dbUser
+     * @param dbPasswd
+     * @param jdbcUrl
+     * @return Connection
+     * @throws MojoExecutionException
+     */
+    public static Connection openConnection(String dbUser, String dbPasswd, String jdbcUrl)
+            throws MojoExecutionException {
+
+        try {
+            Class.forName(MYSQL_DRIVER);
+            return DriverManager.getConnection(jdbcUrl, dbUser, dbPasswd);
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+        } catch (ClassNotFoundException e) {
+            throw new MojoExecutionException("Could not find MySQL driver. " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes all idle connections to dbName and retires borrowed ones on return.
+     * Call after a database was dropped.
+     *
+     * @param dbName
+     */
+    public static synchronized void invalidate(String dbName) {
+
+        for (Pool pool : pools.values()) {
+            if (pool.dbName.equals(dbName)) {
+                ++pool.generation;
+                pool.closeIdle();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and retires borrowed ones on return. Call at the end of a goal.
+     */
+    public static synchronized void closeAll() {
+
+        for (Pool pool : pools.values()) {
+            ++pool.generation;
+            pool.closeIdle();
+        }
+        pools.clear();
+    }
+
+    // return a connection to its pool, reset transaction state first
+    private static void release(Pool pool, int generation, Connection c) {
+
+        try {
+            returnConnection(pool, generation, c);
+        } finally {
+            pool.active.release();
+        }
+    }
+
+    private static void returnConnection(Pool pool, int generation, Connection c) {
+
+        try {
+            if (c.isClosed()) {
+                return;
+            }
+            if (!c.getAutoCommit()) {
+                c.rollback();
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            closeQuietly(c);
+            return;
+        }
+        synchronized (JdbcConnectionManager.class) {
+            if (generation == pool.generation && pool.idle.size() < MAX_IDLE_CONNECTIONS
+                    && pools.containsValue(pool)) {
+                pool.idle.push(new IdleConnection(c, System.currentTimeMillis()));
+                return;
+            }
+        }
+        closeQuietly(c);
+    }
+
+    private static boolean isValid(Connection c) {
+        try {
+            final Statement st = c.createStatement();
+            try {
+                // connector/j sends a lightweight ping for this query
+                st.executeQuery("/* ping */ SELECT 1").close();
+            } finally {
+                st.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            // nothing left to do
+        }
+    }
+
+    private static final class Pool {
+
+        private final String url;
+        private final String dbName;
+        private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+        private final Semaphore active = new Semaphore(MAX_ACTIVE_CONNECTIONS, true);
+        private int generation = 0;
+
+        private Pool(String url) {
+            this.url = url;
+            String path = url.substring(url.indexOf("//") + 2);
+            path = path.indexOf('/') > -1 ? path.substring(path.indexOf('/') + 1) : "";
+            this.dbName = path.indexOf('?') > -1 ? path.substring(0, path.indexOf('?')) : path;
+        }
+
+        private void closeIdle() {
+            final Iterator<IdleConnection> i = idle.iterator();
+            while (i.hasNext()) {
+                closeQuietly(i.next().connection);
+                i.remove();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    private static final class IdleConnection {
+
+        private final Connection connection;
+        private final long since;
+
+        private IdleConnection(Connection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Delegates to the pooled connection until close() is called, which returns it to the pool.
+     */
+    private static final class PooledConnectionHandler implements InvocationHandler {
+
+        private final Pool pool;
+        private final int generation;
+        private final Connection connection;
+        private final List<Statement> statements = new ArrayList<Statement>();
+        private boolean closed = false;
+
+        private PooledConnectionHandler(Pool pool, int generation, Connection connection) {
+            this.pool = pool;
+            this.generation = generation;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            final String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!closed) {
+                    closed = true;
+                    for (Statement st : statements) {
+                        try {
+                            st.close();
+                        } catch (SQLException e) {
+                            // already closed
+                        }
+                    }
+                    statements.clear();
+                    release(pool, generation, connection);
+                }
+                return null;
+            } else if ("isClosed".equals(name) && method.getParameterTypes().length == 0) {
+                return closed || connection.isClosed();
+            } else if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && method.getParameterTypes().length == 0) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name) && method.getParameterTypes().length == 0) {
+                return "Pooled connection to " + pool;
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed.");
+            }
+            try {
+                final Object result = method.invoke(connection, args);
+                if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+                    // hand out statements whose getConnection() returns the pooled handle
+                    statements.add((Statement) result);
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                            new Class<?>[] { method.getReturnType() }, new PooledStatementHandler(proxy, result));
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Delegates to a statement of a pooled connection, getConnection() returns the pooled handle.
+     */
+    private static final class PooledStatementHandler implements InvocationHandler {
+
+        private final Object connection;
+        private final Object statement;
+
+        private PooledStatementHandler(Object connection, Object statement) {
+            this.connection = connection;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            final String name = method.getName();
+            if ("getConnection".equals(name) && method.getParameterTypes().length == 0) {
+                return connection;
+            } else if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && method.getParameterTypes().length == 0) {
+                return System.identityHashCode(proxy);
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+}
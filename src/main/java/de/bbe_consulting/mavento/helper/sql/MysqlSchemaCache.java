@@ -0,0 +1,306 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
+import de.bbe_consulting.mavento.type.MysqlSchema;
+import de.bbe_consulting.mavento.type.MysqlTable;
+
+/**
+ * Loads tables, columns, indexes, row estimates and foreign keys of a database from information_schema
+ * in one pass and keeps them in a tab separated cache file.<br/>
+ * The cache is reused as long as a checksum over name, engine, options and create time of every table
+ * stays the same. Renamed, added or dropped tables change it, as does any ALTER TABLE that rewrites the
+ * table definition. Data writes don't. Row estimates and sizes of a reused cache are those of the time it
+ * was written, pass refresh if current numbers are needed.
+ *
+ * @author Erik Dannenberg
+ */
+public final class MysqlSchemaCache {
+
+    public static final String CACHE_DIR_NAME = "mavento";
+
+    /**
+     * Only reads schema columns of information_schema.TABLES, walking COLUMNS or STATISTICS opens every
+     * table definition and takes seconds on a full Magento schema. Data dependent columns like UPDATE_TIME
+     * are left out, Magento writes to its log and session tables on every request. A checksum per table
+     * is summed instead of GROUP_CONCAT, which is cut off at group_concat_max_len.
+     */
+    private static final String FINGERPRINT_QUERY = "SELECT COUNT(*), IFNULL(SUM(CRC32(CONCAT_WS(':', TABLE_NAME,"
+            + " TABLE_TYPE, ENGINE, ROW_FORMAT, TABLE_COLLATION, CREATE_OPTIONS, CREATE_TIME))), 0)"
+            + " FROM information_schema.TABLES WHERE TABLE_SCHEMA = ?";
+
+    /**
+     * Private constructor, only static methods in this util class
+     */
+    private MysqlSchemaCache() {
+    }
+
+    /**
+     * Returns the schema of magentoDbName, from the cache in cacheDir if the schema did not change.
+     *
+     * @param magentoDbUser
+     * @param magentoDbPasswd
+     * @param magentoDbHost
+     * @param magentoDbPort
+     * @param magentoDbName
+     * @param cacheDir directory of the cache file, null to skip the cache
+     * @param refresh reload even if the cache is current, to get current row estimates
+     * @param logger
+     * @return MysqlSchema
+     * @throws MojoExecutionException
+     */
+    public static MysqlSchema getSchema(String magentoDbUser, String magentoDbPasswd, String magentoDbHost,
+            String magentoDbPort, String magentoDbName, Path cacheDir, boolean refresh, Log logger)
+            throws MojoExecutionException {
+
+        final String source = magentoDbHost + ":" + magentoDbPort + "/" + magentoDbName;
+        final Path cacheFile = cacheDir == null ? null : cacheDir.resolve("schema-" + magentoDbName + ".tsv");
+        final Connection c = MagentoSqlUtil.getJdbcConnection(magentoDbUser, magentoDbPasswd,
+                MagentoSqlUtil.getJdbcUrl(magentoDbHost, magentoDbPort, magentoDbName));
+        try {
+            final String fingerprint = getFingerprint(c, magentoDbName);
+            if (cacheFile != null && !refresh && Files.exists(cacheFile)) {
+                final MysqlSchema cached = readCache(cacheFile, source, fingerprint);
+                if (cached != null) {
+                    if (logger != null && logger.isDebugEnabled()) {
+                        logger.debug("..using cached schema of " + magentoDbName + " from " + cacheFile);
+                    }
+                    return cached;
+                }
+            }
+            final MysqlSchema schema = loadSchema(c, magentoDbName, fingerprint);
+            if (cacheFile != null) {
+                writeCache(cacheFile, source, schema);
+            }
+            return schema;
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+        } finally {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                throw new MojoExecutionException("Error closing database connection. " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Loads the schema of dbName without using a cache.
+     *
+     * @param c
+     * @param dbName
+     * @return MysqlSchema
+     * @throws SQLException
+     */
+    public static MysqlSchema loadSchema(Connection c, String dbName) throws SQLException {
+        return loadSchema(c, dbName, getFingerprint(c, dbName));
+    }
+
+    private static MysqlSchema loadSchema(Connection c, String dbName, String fingerprint) throws SQLException {
+
+        final MysqlSchema schema = new MysqlSchema(dbName, fingerprint);
+        PreparedStatement st = c.prepareStatement("SELECT TABLE_NAME, TABLE_ROWS, DATA_LENGTH, INDEX_LENGTH"
+                + " FROM information_schema.TABLES WHERE TABLE_SCHEMA = ? ORDER BY TABLE_NAME");
+        try {
+            st.setString(1, dbName);
+            final ResultSet r = st.executeQuery();
+            while (r.next()) {
+                final MysqlTable table = new MysqlTable();
+                table.setDbName(dbName);
+                table.setTableName(r.getString(1));
+                table.setTableRows(r.getLong(2));
+                table.setTableLength(r.getLong(3));
+                table.setTableIndexLength(r.getLong(4));
+                schema.addTable(table);
+            }
+        } finally {
+            st.close();
+        }
+
+        st = c.prepareStatement("SELECT TABLE_NAME, COLUMN_NAME FROM information_schema.COLUMNS"
+                + " WHERE TABLE_SCHEMA = ? ORDER BY TABLE_NAME, ORDINAL_POSITION");
+        try {
+            st.setString(1, dbName);
+            final ResultSet r = st.executeQuery();
+            while (r.next()) {
+                final MysqlTable table = schema.getTable(r.getString(1));
+                if (table != null) {
+                    table.getColumns().add(r.getString(2));
+                }
+            }
+        } finally {
+            st.close();
+        }
+
+        st = c.prepareStatement("SELECT TABLE_NAME, INDEX_NAME, COLUMN_NAME FROM information_schema.STATISTICS"
+                + " WHERE TABLE_SCHEMA = ? ORDER BY TABLE_NAME, INDEX_NAME, SEQ_IN_INDEX");
+        try {
+            st.setString(1, dbName);
+            final ResultSet r = st.executeQuery();
+            while (r.next()) {
+                final MysqlTable table = schema.getTable(r.getString(1));
+                if (table != null) {
+                    List<String> columns = table.getIndexes().get(r.getString(2));
+                    if (columns == null) {
+                        columns = new ArrayList<String>();
+                        table.getIndexes().put(r.getString(2), columns);
+                    }
+                    columns.add(r.getString(3));
+                }
+            }
+        } finally {
+            st.close();
+        }
+
+        st = c.prepareStatement("SELECT TABLE_NAME, REFERENCED_TABLE_NAME FROM information_schema.KEY_COLUMN_USAGE"
+                + " WHERE TABLE_SCHEMA = ? AND REFERENCED_TABLE_SCHEMA = ?");
+        try {
+            st.setString(1, dbName);
+            st.setString(2, dbName);
+            final ResultSet r = st.executeQuery();
+            while (r.next()) {
+                final MysqlTable table = schema.getTable(r.getString(1));
+                if (table != null && !r.getString(1).equals(r.getString(2))) {
+                    table.getReferences().add(r.getString(2));
+                }
+            }
+        } finally {
+            st.close();
+        }
+        return schema;
+    }
+
+    private static String getFingerprint(Connection c, String dbName) throws SQLException {
+
+        final PreparedStatement st = c.prepareStatement(FINGERPRINT_QUERY);
+        try {
+            st.setString(1, dbName);
+            final ResultSet r = st.executeQuery();
+            r.next();
+            return r.getString(1) + "/" + r.getString(2);
+        } finally {
+            st.close();
+        }
+    }
+
+    // returns null if the cache is stale or unreadable
+    private static MysqlSchema readCache(Path cacheFile, String source, String fingerprint) {
+
+        try (BufferedReader in = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            MysqlSchema schema = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t", -1);
+                if (schema == null) {
+                    if (fields.length != 3 || !fields[0].equals(source) || !fields[2].equals(fingerprint)) {
+                        return null;
+                    }
+                    schema = new MysqlSchema(fields[1], fingerprint);
+                    continue;
+                }
+                if (fields.length != 7) {
+                    return null;
+                }
+                final MysqlTable table = new MysqlTable();
+                table.setDbName(schema.getDbName());
+                table.setTableName(fields[0]);
+                table.setTableRows(Long.parseLong(fields[1]));
+                table.setTableLength(Long.parseLong(fields[2]));
+                table.setTableIndexLength(Long.parseLong(fields[3]));
+                table.getColumns().addAll(split(fields[4], ","));
+                for (String index : split(fields[5], ";")) {
+                    final int pos = index.lastIndexOf(':');
+                    table.getIndexes().put(index.substring(0, pos), split(index.substring(pos + 1), ","));
+                }
+                table.getReferences().addAll(split(fields[6], ","));
+                schema.addTable(table);
+            }
+            return schema;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void writeCache(Path cacheFile, String source, MysqlSchema schema)
+            throws MojoExecutionException {
+
+        final Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            try (BufferedWriter out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                out.write("# mavento schema cache of " + schema.getDbName());
+                out.newLine();
+                out.write(source + "\t" + schema.getDbName() + "\t" + schema.getFingerprint());
+                out.newLine();
+                out.write("# table\trows\tdata bytes\tindex bytes\tcolumns\tindexes\treferences");
+                out.newLine();
+                for (MysqlTable table : schema.getTables()) {
+                    final StringBuilder indexes = new StringBuilder();
+                    for (String index : table.getIndexes().keySet()) {
+                        indexes.append(indexes.length() > 0 ? ";" : "").append(index).append(':')
+                                .append(join(table.getIndexes().get(index)));
+                    }
+                    out.write(table.getTableName() + "\t" + table.getTableRows() + "\t" + table.getTableLength()
+                            + "\t" + table.getTableIndexLength() + "\t" + join(table.getColumns()) + "\t"
+                            + indexes + "\t" + join(table.getReferences()));
+                    out.newLine();
+                }
+            }
+            Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing schema cache " + cacheFile + ". " + e.getMessage(), e);
+        }
+    }
+
+    private static String join(Iterable<String> values) {
+        final StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            result.append(result.length() > 0 ? "," : "").append(value);
+        }
+        return result.toString();
+    }
+
+    private static List<String> split(String value, String separator) {
+        if (value.isEmpty()) {
+            return new ArrayList<String>();
+        }
+        return new ArrayList<String>(Arrays.asList(value.split(separator)));
+    }
+
+}
@@ -0,0 +1,602 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
+import de.bbe_consulting.mavento.type.MysqlDumpTable;
+
+/**
+ * Dumps a mysql database over jdbc into one schema and one data file per table, using several
+ * connections in parallel.<br/>
+ * All worker connections read from the same InnoDB snapshot, the snapshot is opened while a
+ * global read lock is held. Tables are dumped largest first so big tables don't end up last
+ * in the queue. A manifest with row counts, sizes and checksums is written into the dump directory.
+ * Data files are optionally gzip compressed and named .data.sql.gz, the importer decompresses them on the fly.
+ *
+ * @author Erik Dannenberg
+ */
+public class ParallelSqlDumper {
+
+    /**
+     * Jdbc url parameters for dump connections. Values are read as raw bytes, tinyint(1) must not be
+     * reported as bit.
+     */
+    public static final String JDBC_URL_PARAMS = "?useUnicode=true&characterEncoding=UTF-8&tinyInt1isBit=false";
+
+    private static final String FILE_HEADER = "/*!40101 SET NAMES utf8 */;\n"
+            + "/*!40103 SET TIME_ZONE='+00:00' */;\n"
+            + "/*!40014 SET FOREIGN_KEY_CHECKS=0 */;\n"
+            + "/*!40014 SET UNIQUE_CHECKS=0 */;\n"
+            + "/*!40101 SET SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;\n\n";
+
+    private static final int INSERT_MAX_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int KIND_STRING = 0;
+    private static final int KIND_NUMBER = 1;
+    private static final int KIND_BINARY = 2;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final String dbUser;
+    private final String dbPasswd;
+    private final String dbName;
+    private final String jdbcUrl;
+    private final Log logger;
+
+    private int threads = 4;
+    private List<String> tableNames;
+    private String whereCondition;
+    private boolean compress;
+
+    private final AtomicBoolean aborted = new AtomicBoolean(false);
+
+    public ParallelSqlDumper(String dbUser, String dbPasswd, String dbHost, String dbPort, String dbName, Log logger) {
+        this.dbUser = dbUser;
+        this.dbPasswd = dbPasswd;
+        this.dbName = dbName;
+        this.jdbcUrl = MagentoSqlUtil.getJdbcUrl(dbHost, dbPort, dbName) + JDBC_URL_PARAMS;
+        this.logger = logger;
+    }
+
+    /**
+     * Number of parallel connections.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Only dump these tables, default is all tables.
+     *
+     * @param tableNames
+     */
+    public void setTableNames(List<String> tableNames) {
+        this.tableNames = tableNames;
+    }
+
+    /**
+     * Optional where condition applied to all dumped tables.
+     *
+     * @param whereCondition
+     */
+    public void setWhereCondition(String whereCondition) {
+        this.whereCondition = whereCondition;
+    }
+
+    /**
+     * Gzip compress the table data files, default is false.
+     *
+     * @param compress
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Dumps the database into dumpDir.
+     *
+     * @param dumpDir
+     * @return List<MysqlDumpTable> the written manifest entries
+     * @throws MojoExecutionException
+     */
+    public List<MysqlDumpTable> dump(final Path dumpDir) throws MojoExecutionException {
+
+        final long startTime = System.currentTimeMillis();
+        try {
+            Files.createDirectories(dumpDir);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error creating dump directory " + dumpDir + ". " + e.getMessage(), e);
+        }
+
+        final Connection control = JdbcConnectionManager.openConnection(dbUser, dbPasswd, jdbcUrl);
+        final List<Connection> workers = new ArrayList<Connection>();
+        ExecutorService executor = null;
+        try {
+            final List<String> views = new ArrayList<String>();
+            final Map<String, MysqlDumpTable> tables = getTables(control, views);
+            final int workerCount = Math.max(1, Math.min(threads, tables.size()));
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(JdbcConnectionManager.openConnection(dbUser, dbPasswd, jdbcUrl));
+            }
+            openSnapshot(control, workers);
+
+            logger.info("Dumping " + tables.size() + " tables of database " + dbName + " to " + dumpDir
+                    + " using " + workerCount + " connections..");
+            final ConcurrentLinkedQueue<MysqlDumpTable> queue =
+                    new ConcurrentLinkedQueue<MysqlDumpTable>(tables.values());
+            executor = Executors.newFixedThreadPool(workerCount);
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final Connection worker : workers) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        MysqlDumpTable table;
+                        while (!aborted.get() && (table = queue.poll()) != null) {
+                            dumpTable(worker, table, dumpDir);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            waitFor(results);
+            writeViews(control, views, dumpDir);
+
+            final List<MysqlDumpTable> manifest = new ArrayList<MysqlDumpTable>(tables.values());
+            Collections.sort(manifest, new Comparator<MysqlDumpTable>() {
+                @Override
+                public int compare(MysqlDumpTable a, MysqlDumpTable b) {
+                    return a.getTableName().compareTo(b.getTableName());
+                }
+            });
+            SqlDumpManifest.writeManifest(dumpDir, dbName, manifest);
+
+            long rows = 0;
+            long bytes = 0;
+            for (MysqlDumpTable table : manifest) {
+                rows += table.getRows();
+                bytes += table.getBytes();
+            }
+            final double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000d;
+            logger.info(String.format("..%,d rows, %,.1f MB in %,.1fs (%,.1f MB/s).",
+                    rows, bytes / 1024d / 1024d, seconds, bytes / 1024d / 1024d / seconds));
+            logger.info("..done.");
+            return manifest;
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            closeQuietly(control);
+            for (Connection worker : workers) {
+                closeQuietly(worker);
+            }
+        }
+    }
+
+    // all base tables ordered by size, largest first. views are collected separately
+    private Map<String, MysqlDumpTable> getTables(Connection c, List<String> views)
+            throws SQLException, MojoExecutionException {
+
+        final Map<String, MysqlDumpTable> tables = new LinkedHashMap<String, MysqlDumpTable>();
+        PreparedStatement st = c.prepareStatement("SELECT TABLE_NAME, TABLE_TYPE FROM information_schema.TABLES"
+                + " WHERE TABLE_SCHEMA = ? ORDER BY DATA_LENGTH + INDEX_LENGTH DESC, TABLE_NAME");
+        st.setString(1, dbName);
+        ResultSet r = st.executeQuery();
+        while (r.next()) {
+            final String tableName = r.getString(1);
+            if (tableNames != null && !tableNames.contains(tableName)) {
+                continue;
+            }
+            if ("VIEW".equals(r.getString(2))) {
+                views.add(tableName);
+            } else {
+                tables.put(tableName, new MysqlDumpTable(tableName));
+            }
+        }
+        st.close();
+        if (tableNames != null) {
+            for (String tableName : tableNames) {
+                if (!tables.containsKey(tableName) && !views.contains(tableName)) {
+                    throw new MojoExecutionException("Could not find table " + tableName + " in " + dbName);
+                }
+            }
+        }
+
+        st = c.prepareStatement("SELECT DISTINCT TABLE_NAME, REFERENCED_TABLE_NAME"
+                + " FROM information_schema.KEY_COLUMN_USAGE"
+                + " WHERE TABLE_SCHEMA = ? AND REFERENCED_TABLE_NAME IS NOT NULL");
+        st.setString(1, dbName);
+        r = st.executeQuery();
+        while (r.next()) {
+            final MysqlDumpTable table = tables.get(r.getString(1));
+            if (table != null && !r.getString(1).equals(r.getString(2))) {
+                table.getReferences().add(r.getString(2));
+            }
+        }
+        st.close();
+        return tables;
+    }
+
+    // start a consistent snapshot on all workers while writes are blocked
+    private void openSnapshot(Connection control, List<Connection> workers) throws SQLException {
+
+        final Statement lock = control.createStatement();
+        boolean locked = false;
+        try {
+            lock.execute("FLUSH TABLES WITH READ LOCK");
+            locked = true;
+        } catch (SQLException e) {
+            logger.warn("Could not acquire global read lock (" + e.getMessage() + "), "
+                    + "tables dumped by different connections may not be consistent.");
+        }
+        try {
+            for (Connection worker : workers) {
+                final Statement st = worker.createStatement();
+                st.execute("SET SESSION TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+                st.execute("SET SESSION time_zone = '+00:00'");
+                st.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+                st.close();
+            }
+        } finally {
+            if (locked) {
+                lock.execute("UNLOCK TABLES");
+            }
+            lock.close();
+        }
+    }
+
+    private void waitFor(List<Future<Void>> results) throws MojoExecutionException {
+
+        MojoExecutionException error = null;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                aborted.set(true);
+                Thread.currentThread().interrupt();
+                throw new MojoExecutionException("Interrupted while dumping database " + dbName, e);
+            } catch (ExecutionException e) {
+                aborted.set(true);
+                if (error == null) {
+                    final Throwable cause = e.getCause();
+                    error = cause instanceof MojoExecutionException ? (MojoExecutionException) cause
+                            : new MojoExecutionException("Error while dumping database " + dbName + ". "
+                                    + cause.getMessage(), cause);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void dumpTable(Connection c, MysqlDumpTable table, Path dumpDir) throws MojoExecutionException {
+
+        final long startTime = System.currentTimeMillis();
+        final String quotedName = quoteIdentifier(table.getTableName());
+        try {
+            // schema
+            final Statement st = c.createStatement();
+            ResultSet r = st.executeQuery("SHOW CREATE TABLE " + quotedName);
+            r.next();
+            final String createTable = r.getString(2);
+            r.close();
+            writeFile(dumpDir.resolve(table.getSchemaFileName()), FILE_HEADER
+                    + "DROP TABLE IF EXISTS " + quotedName + ";\n" + createTable + ";\n");
+
+            // triggers
+            final PreparedStatement tst = c.prepareStatement("SELECT TRIGGER_NAME FROM information_schema.TRIGGERS"
+                    + " WHERE EVENT_OBJECT_SCHEMA = ? AND EVENT_OBJECT_TABLE = ?");
+            tst.setString(1, dbName);
+            tst.setString(2, table.getTableName());
+            r = tst.executeQuery();
+            final StringBuilder triggers = new StringBuilder();
+            while (r.next()) {
+                final ResultSet tr = st.executeQuery("SHOW CREATE TRIGGER " + quoteIdentifier(r.getString(1)));
+                tr.next();
+                triggers.append("DROP TRIGGER IF EXISTS ").append(quoteIdentifier(r.getString(1))).append(";;\n");
+                triggers.append(tr.getString(3)).append(";;\n");
+                tr.close();
+            }
+            tst.close();
+            st.close();
+            if (triggers.length() > 0) {
+                writeFile(dumpDir.resolve(table.getTriggersFileName()),
+                        FILE_HEADER + "DELIMITER ;;\n" + triggers + "DELIMITER ;\n");
+            }
+
+            // data, the checksum is taken from the bytes written to disk
+            table.setCompressed(compress);
+            final Path dataFile = dumpDir.resolve(table.getDataFileName());
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            OutputStream fileOut = new DigestOutputStream(Files.newOutputStream(dataFile), md5);
+            if (compress) {
+                fileOut = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+            }
+            try (OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE)) {
+                out.write(FILE_HEADER.getBytes(StandardCharsets.UTF_8));
+                table.setRows(writeRows(c, quotedName, out));
+            }
+            table.setBytes(Files.size(dataFile));
+            table.setChecksum(toHex(md5.digest()));
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error while dumping table " + table.getTableName()
+                    + ". " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing dump of table " + table.getTableName()
+                    + ". " + e.getMessage(), e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("..%s: %,d rows, %,d bytes in %,dms", table.getTableName(),
+                    table.getRows(), table.getBytes(), System.currentTimeMillis() - startTime));
+        }
+    }
+
+    // stream all rows of a table as extended inserts, returns the row count
+    private long writeRows(Connection c, String quotedName, OutputStream out) throws SQLException, IOException {
+
+        String query = "SELECT * FROM " + quotedName;
+        if (whereCondition != null && !whereCondition.isEmpty()) {
+            query += " WHERE " + whereCondition;
+        }
+        final Statement st = c.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        // stream rows instead of buffering the whole table in memory
+        st.setFetchSize(Integer.MIN_VALUE);
+        long rows = 0;
+        try {
+            final ResultSet r = st.executeQuery(query);
+            final ResultSetMetaData meta = r.getMetaData();
+            final int columnCount = meta.getColumnCount();
+            final int[] columnKinds = new int[columnCount + 1];
+            for (int i = 1; i <= columnCount; i++) {
+                columnKinds[i] = getColumnKind(meta.getColumnType(i));
+            }
+            final byte[] insertPrefix = ("INSERT INTO " + quotedName + " VALUES ").getBytes(StandardCharsets.UTF_8);
+            final ValueWriter values = new ValueWriter(out);
+            while (r.next()) {
+                if (values.statementBytes == 0) {
+                    values.write(insertPrefix);
+                } else {
+                    values.write(',');
+                }
+                values.write('(');
+                for (int i = 1; i <= columnCount; i++) {
+                    if (i > 1) {
+                        values.write(',');
+                    }
+                    values.writeValue(r.getBytes(i), columnKinds[i]);
+                }
+                values.write(')');
+                ++rows;
+                if (values.statementBytes >= INSERT_MAX_BYTES) {
+                    values.endStatement();
+                }
+            }
+            if (values.statementBytes > 0) {
+                values.endStatement();
+            }
+            values.flush();
+            r.close();
+        } finally {
+            st.close();
+        }
+        return rows;
+    }
+
+    private void writeViews(Connection c, List<String> views, Path dumpDir)
+            throws SQLException, MojoExecutionException {
+
+        if (views.isEmpty()) {
+            return;
+        }
+        final StringBuilder content = new StringBuilder(FILE_HEADER);
+        final Statement st = c.createStatement();
+        for (String view : views) {
+            final ResultSet r = st.executeQuery("SHOW CREATE VIEW " + quoteIdentifier(view));
+            r.next();
+            content.append("DROP VIEW IF EXISTS ").append(quoteIdentifier(view)).append(";\n");
+            content.append(r.getString(2)).append(";\n");
+            r.close();
+        }
+        st.close();
+        writeFile(dumpDir.resolve(SqlDumpManifest.VIEWS_FILE_NAME), content.toString());
+    }
+
+    private static void writeFile(Path file, String content) throws MojoExecutionException {
+        try {
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing " + file + ". " + e.getMessage(), e);
+        }
+    }
+
+    private static int getColumnKind(int sqlType) {
+        switch (sqlType) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            return KIND_NUMBER;
+        case Types.BIT:
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+        case Types.BLOB:
+            return KIND_BINARY;
+        default:
+            return KIND_STRING;
+        }
+    }
+
+    /**
+     * Quotes a mysql identifier with backticks.
+     *
+     * @param name
+     * @return String
+     */
+    public static String quoteIdentifier(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
+    static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append((char) HEX[(b >> 4) & 0xf]).append((char) HEX[b & 0xf]);
+        }
+        return hex.toString().toLowerCase();
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * Unsynchronized buffer for sql values, escapes on the byte level so multibyte
+     * utf8 sequences pass through untouched.
+     */
+    private static final class ValueWriter {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int count = 0;
+        private long statementBytes = 0;
+
+        private ValueWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        private void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+            ++statementBytes;
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            for (byte b : bytes) {
+                write(b);
+            }
+        }
+
+        private void writeValue(byte[] value, int kind) throws IOException {
+            if (value == null) {
+                write(NULL);
+            } else if (kind == KIND_NUMBER) {
+                write(value);
+            } else if (kind == KIND_BINARY && value.length > 0) {
+                write('0');
+                write('x');
+                for (byte b : value) {
+                    write(HEX[(b >> 4) & 0xf]);
+                    write(HEX[b & 0xf]);
+                }
+            } else {
+                write('\'');
+                for (byte b : value) {
+                    switch (b) {
+                    case 0:
+                        write('\\');
+                        write('0');
+                        break;
+                    case '\n':
+                        write('\\');
+                        write('n');
+                        break;
+                    case '\r':
+                        write('\\');
+                        write('r');
+                        break;
+                    case 26:
+                        write('\\');
+                        write('Z');
+                        break;
+                    case '\'':
+                    case '\\':
+                        write('\\');
+                        write(b);
+                        break;
+                    default:
+                        write(b);
+                    }
+                }
+                write('\'');
+            }
+        }
+
+        private void endStatement() throws IOException {
+            write(';');
+            write('\n');
+            statementBytes = 0;
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+
+        private static final byte[] NULL = "NULL".getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
+import de.bbe_consulting.mavento.type.MysqlDumpTable;
+
+/**
+ * Imports a per table dump directory written by {@link ParallelSqlDumper}.<br/>
+ * Table schemas are created first, referenced tables before the tables referencing them.
+ * Table data is then loaded over several connections in parallel, largest tables first,
+ * with foreign key and unique checks disabled per session. Each data file is hashed before its
+ * statements are executed and must match the md5 of the manifest. Triggers and views come last.
+ *
+ * @author Erik Dannenberg
+ */
+public class ParallelSqlImporter {
+
+    private final String dbUser;
+    private final String dbPasswd;
+    private final String dbName;
+    private final String jdbcUrl;
+    private final Log logger;
+
+    private int threads = 4;
+
+    private final AtomicBoolean aborted = new AtomicBoolean(false);
+    private final AtomicLong statementCount = new AtomicLong();
+
+    public ParallelSqlImporter(String dbUser, String dbPasswd, String dbHost, String dbPort, String dbName,
+            Log logger) {
+        this.dbUser = dbUser;
+        this.dbPasswd = dbPasswd;
+        this.dbName = dbName;
+        this.jdbcUrl = MagentoSqlUtil.getJdbcUrl(dbHost, dbPort, dbName) + SqlDumpImporter.JDBC_URL_PARAMS;
+        this.logger = logger;
+    }
+
+    /**
+     * Number of parallel connections.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Imports all tables listed in the manifest of dumpDir.
+     *
+     * @param dumpDir
+     * @throws MojoExecutionException
+     */
+    public void importDirectory(final Path dumpDir) throws MojoExecutionException {
+
+        final long startTime = System.currentTimeMillis();
+        final List<MysqlDumpTable> tables = SqlDumpManifest.readManifest(dumpDir);
+        long totalBytes = 0;
+        for (MysqlDumpTable table : tables) {
+            final Path dataFile = dumpDir.resolve(table.getDataFileName());
+            try {
+                if (Files.size(dataFile) != table.getBytes()) {
+                    throw new MojoExecutionException("Size of " + dataFile + " does not match the dump manifest.");
+                }
+            } catch (IOException e) {
+                throw new MojoExecutionException("Error reading " + dataFile + ". " + e.getMessage(), e);
+            }
+            totalBytes += table.getBytes();
+        }
+
+        logger.info("Importing " + tables.size() + " tables from " + dumpDir + " into database " + dbName + "..");
+        final Connection c = JdbcConnectionManager.openConnection(dbUser, dbPasswd, jdbcUrl);
+        try {
+            disableChecks(c);
+            final SqlDumpImporter schemaImporter = new SqlDumpImporter(c, logger);
+            for (MysqlDumpTable table : sortByReferences(tables)) {
+                schemaImporter.importFile(dumpDir.resolve(table.getSchemaFileName()), false);
+            }
+            statementCount.addAndGet(schemaImporter.getStatementCount());
+
+            importData(dumpDir, tables);
+
+            final SqlDumpImporter importer = new SqlDumpImporter(c, logger);
+            for (MysqlDumpTable table : tables) {
+                final Path triggers = dumpDir.resolve(table.getTriggersFileName());
+                if (Files.exists(triggers)) {
+                    importer.importFile(triggers, false);
+                }
+            }
+            final Path views = dumpDir.resolve(SqlDumpManifest.VIEWS_FILE_NAME);
+            if (Files.exists(views)) {
+                importer.importFile(views, false);
+            }
+            statementCount.addAndGet(importer.getStatementCount());
+        } finally {
+            closeQuietly(c);
+        }
+        logger.info(SqlDumpImporter.getThroughput(totalBytes, statementCount.get(),
+                System.currentTimeMillis() - startTime));
+        logger.info("..done.");
+    }
+
+    private void importData(final Path dumpDir, List<MysqlDumpTable> tables) throws MojoExecutionException {
+
+        final List<MysqlDumpTable> queued = new ArrayList<MysqlDumpTable>(tables);
+        Collections.sort(queued, new Comparator<MysqlDumpTable>() {
+            @Override
+            public int compare(MysqlDumpTable a, MysqlDumpTable b) {
+                return Long.compare(b.getBytes(), a.getBytes());
+            }
+        });
+        final ConcurrentLinkedQueue<MysqlDumpTable> queue = new ConcurrentLinkedQueue<MysqlDumpTable>(queued);
+        final int workerCount = Math.max(1, Math.min(threads, queued.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workerCount; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        final Connection worker = JdbcConnectionManager.openConnection(dbUser, dbPasswd, jdbcUrl);
+                        try {
+                            disableChecks(worker);
+                            final SqlDumpImporter importer = new SqlDumpImporter(worker, logger);
+                            MysqlDumpTable table;
+                            while (!aborted.get() && (table = queue.poll()) != null) {
+                                importer.importFile(dumpDir.resolve(table.getDataFileName()), false,
+                                        table.getChecksum().isEmpty() ? null : table.getChecksum());
+                                if (logger.isDebugEnabled()) {
+                                    logger.debug("..imported " + table.getTableName());
+                                }
+                            }
+                            statementCount.addAndGet(importer.getStatementCount());
+                        } finally {
+                            closeQuietly(worker);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            MojoExecutionException error = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    aborted.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted while importing into database " + dbName, e);
+                } catch (ExecutionException e) {
+                    aborted.set(true);
+                    if (error == null) {
+                        final Throwable cause = e.getCause();
+                        error = cause instanceof MojoExecutionException ? (MojoExecutionException) cause
+                                : new MojoExecutionException("Error while importing into database " + dbName
+                                        + ". " + cause.getMessage(), cause);
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Orders tables so that referenced tables come before the tables referencing them.
+     * Reference cycles are broken in manifest order.
+     *
+     * @param tables
+     * @return List<MysqlDumpTable>
+     */
+    public static List<MysqlDumpTable> sortByReferences(List<MysqlDumpTable> tables) {
+
+        final Map<String, MysqlDumpTable> byName = new LinkedHashMap<String, MysqlDumpTable>();
+        for (MysqlDumpTable table : tables) {
+            byName.put(table.getTableName(), table);
+        }
+        final List<MysqlDumpTable> sorted = new ArrayList<MysqlDumpTable>();
+        final Set<String> visited = new HashSet<String>();
+        for (MysqlDumpTable table : tables) {
+            addWithReferences(table, byName, visited, sorted);
+        }
+        return sorted;
+    }
+
+    private static void addWithReferences(MysqlDumpTable table, Map<String, MysqlDumpTable> byName,
+            Set<String> visited, List<MysqlDumpTable> sorted) {
+
+        if (!visited.add(table.getTableName())) {
+            return;
+        }
+        for (String reference : table.getReferences()) {
+            final MysqlDumpTable referenced = byName.get(reference);
+            if (referenced != null) {
+                addWithReferences(referenced, byName, visited, sorted);
+            }
+        }
+        sorted.add(table);
+    }
+
+    private static void disableChecks(Connection c) throws MojoExecutionException {
+        try {
+            final Statement st = c.createStatement();
+            st.execute("SET SESSION foreign_key_checks = 0, unique_checks = 0");
+            st.close();
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+        }
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            // nothing left to do
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Multi row insert/upsert and delete statements, a few hundred rows per round trip.
+ *
+ * @author Erik Dannenberg
+ */
+public final class SqlBulkWriter {
+
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    /**
+     * Private constructor, only static methods in this util class
+     */
+    private SqlBulkWriter() {
+    }
+
+    /**
+     * Inserts rows, rows hitting a unique key update the given update columns instead.
+     *
+     * @param c
+     * @param tableName
+     * @param columns
+     * @param updateColumns
+     * @param rows values in column order
+     * @return int affected rows as reported by mysql, 1 per insert and 2 per changed row
+     * @throws SQLException
+     */
+    public static int upsert(Connection c, String tableName, String[] columns, String[] updateColumns,
+            List<Object[]> rows) throws SQLException {
+
+        final StringBuilder rowPlaceholder = new StringBuilder("(");
+        final StringBuilder prefix = new StringBuilder("INSERT INTO ");
+        prefix.append(ParallelSqlDumper.quoteIdentifier(tableName)).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            prefix.append(i > 0 ? ", " : "").append(ParallelSqlDumper.quoteIdentifier(columns[i]));
+            rowPlaceholder.append(i > 0 ? ",?" : "?");
+        }
+        prefix.append(") VALUES ");
+        rowPlaceholder.append(')');
+        final StringBuilder suffix = new StringBuilder(" ON DUPLICATE KEY UPDATE ");
+        for (int i = 0; i < updateColumns.length; i++) {
+            final String column = ParallelSqlDumper.quoteIdentifier(updateColumns[i]);
+            suffix.append(i > 0 ? ", " : "").append(column).append(" = VALUES(").append(column).append(')');
+        }
+
+        int affected = 0;
+        for (int start = 0; start < rows.size(); start += ROWS_PER_STATEMENT) {
+            final List<Object[]> chunk = rows.subList(start, Math.min(rows.size(), start + ROWS_PER_STATEMENT));
+            final StringBuilder query = new StringBuilder(prefix);
+            for (int i = 0; i < chunk.size(); i++) {
+                query.append(i > 0 ? "," : "").append(rowPlaceholder);
+            }
+            query.append(suffix);
+            final PreparedStatement st = c.prepareStatement(query.toString());
+            try {
+                int index = 1;
+                for (Object[] row : chunk) {
+                    for (Object value : row) {
+                        st.setObject(index++, value);
+                    }
+                }
+                affected += st.executeUpdate();
+            } finally {
+                st.close();
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Deletes all rows matching one of the given key value combinations.
+     *
+     * @param c
+     * @param tableName
+     * @param keyColumns
+     * @param keys values in key column order
+     * @return int deleted rows
+     * @throws SQLException
+     */
+    public static int delete(Connection c, String tableName, String[] keyColumns, List<Object[]> keys)
+            throws SQLException {
+
+        final StringBuilder keyCondition = new StringBuilder("(");
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyCondition.append(i > 0 ? " AND " : "").append(ParallelSqlDumper.quoteIdentifier(keyColumns[i]))
+                    .append(" = ?");
+        }
+        keyCondition.append(')');
+
+        int deleted = 0;
+        for (int start = 0; start < keys.size(); start += ROWS_PER_STATEMENT) {
+            final List<Object[]> chunk = keys.subList(start, Math.min(keys.size(), start + ROWS_PER_STATEMENT));
+            // or'ed conditions instead of a row constructor, older servers only use the index for these
+            final StringBuilder query = new StringBuilder("DELETE FROM ");
+            query.append(ParallelSqlDumper.quoteIdentifier(tableName)).append(" WHERE ");
+            for (int i = 0; i < chunk.size(); i++) {
+                query.append(i > 0 ? " OR " : "").append(keyCondition);
+            }
+            final PreparedStatement st = c.prepareStatement(query.toString());
+            try {
+                int index = 1;
+                for (Object[] key : chunk) {
+                    for (Object value : key) {
+                        st.setObject(index++, value);
+                    }
+                }
+                deleted += st.executeUpdate();
+            } finally {
+                st.close();
+            }
+        }
+        return deleted;
+    }
+
+}
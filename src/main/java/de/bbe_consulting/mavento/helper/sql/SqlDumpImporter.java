@@ -0,0 +1,263 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
+
+/**
+ * Imports mysql dump files over a single jdbc connection.<br/>
+ * The dump is streamed statement by statement and sent in batches, the first
+ * failing statement aborts the import.
+ *
+ * @author Erik Dannenberg
+ */
+public class SqlDumpImporter {
+
+    /**
+     * Jdbc url parameters the import connection needs. The dump is read as latin1 and
+     * sent as latin1, so the bytes reach the server untouched just like with the mysql client.
+     */
+    public static final String JDBC_URL_PARAMS = "?useUnicode=true&characterEncoding=ISO8859_1"
+            + "&rewriteBatchedStatements=true&continueBatchOnError=false";
+
+    private static final int BATCH_MAX_STATEMENTS = 100;
+    private static final int BATCH_MAX_CHARS = 4 * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL = 10000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Connection connection;
+    private final Log logger;
+
+    private long statementCount = 0;
+    private long byteCount = 0;
+
+    public SqlDumpImporter(Connection connection, Log logger) {
+        this.connection = connection;
+        this.logger = logger;
+    }
+
+    /**
+     * Import a dump file, files ending with .gz are decompressed on the fly.
+     *
+     * @param dumpFile
+     * @param logProgress log throughput while importing?
+     * @throws MojoExecutionException
+     */
+    public void importFile(Path dumpFile, boolean logProgress) throws MojoExecutionException {
+        importFile(dumpFile, logProgress, null);
+    }
+
+    /**
+     * Import a dump file, files ending with .gz are decompressed on the fly.<br/>
+     * If expectedMd5 is given the file is hashed before any of its statements are executed,
+     * a mismatch fails the import without touching the database.
+     *
+     * @param dumpFile
+     * @param logProgress log throughput while importing?
+     * @param expectedMd5 md5 hex of the file as stored on disk, null to skip the check
+     * @throws MojoExecutionException
+     */
+    public void importFile(Path dumpFile, boolean logProgress, String expectedMd5) throws MojoExecutionException {
+
+        if (expectedMd5 != null) {
+            verifyChecksum(dumpFile, expectedMd5);
+        }
+        final long startTime = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(dumpFile, StandardOpenOption.READ)) {
+            final long totalBytes = channel.size();
+            final Reader reader;
+            if (MagentoSqlUtil.isGzipFile(dumpFile.toString())) {
+                reader = new InputStreamReader(new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE),
+                        StandardCharsets.ISO_8859_1);
+            } else {
+                reader = Channels.newReader(channel, StandardCharsets.ISO_8859_1.newDecoder(), -1);
+            }
+            try (SqlStatementReader statements = new SqlStatementReader(reader)) {
+                executeStatements(statements, channel, totalBytes, logProgress, startTime);
+            }
+            byteCount += totalBytes;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error while reading sql dump " + dumpFile + ". " + e.getMessage(), e);
+        }
+        if (logProgress) {
+            logger.info(getThroughput(byteCount, statementCount, System.currentTimeMillis() - startTime));
+        }
+    }
+
+    /**
+     * Compares the md5 of a file as stored on disk with expectedMd5.
+     *
+     * @param file
+     * @param expectedMd5 md5 hex
+     * @throws MojoExecutionException if the checksums differ
+     */
+    public static void verifyChecksum(Path file, String expectedMd5) throws MojoExecutionException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
+            }
+            final String checksum = ParallelSqlDumper.toHex(md5.digest());
+            if (!checksum.equalsIgnoreCase(expectedMd5)) {
+                throw new MojoExecutionException("Checksum of " + file + " does not match, expected "
+                        + expectedMd5 + " but got " + checksum + ".");
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error while reading " + file + ". " + e.getMessage(), e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Number of statements executed so far.
+     *
+     * @return long
+     */
+    public long getStatementCount() {
+        return statementCount;
+    }
+
+    /**
+     * Number of dump bytes imported so far, compressed size for gzip files.
+     *
+     * @return long
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    private void executeStatements(SqlStatementReader statements, FileChannel channel, long totalBytes,
+            boolean logProgress, long startTime) throws IOException, MojoExecutionException {
+
+        final List<String> batch = new ArrayList<String>();
+        final List<Long> batchLines = new ArrayList<Long>();
+        long nextProgress = startTime + PROGRESS_INTERVAL;
+        int batchChars = 0;
+        Statement st = null;
+        try {
+            st = connection.createStatement();
+            st.setEscapeProcessing(false);
+            String sql;
+            while ((sql = statements.nextStatement()) != null) {
+                st.addBatch(sql);
+                batch.add(sql);
+                batchLines.add(statements.getStatementLine());
+                batchChars += sql.length();
+                if (batch.size() >= BATCH_MAX_STATEMENTS || batchChars >= BATCH_MAX_CHARS) {
+                    executeBatch(st, batch, batchLines);
+                    batchChars = 0;
+                    if (logProgress && System.currentTimeMillis() >= nextProgress) {
+                        final long position = channel.position();
+                        logger.info(getThroughput(byteCount + position, statementCount,
+                                System.currentTimeMillis() - startTime)
+                                + " (" + (totalBytes > 0 ? position * 100 / totalBytes : 100) + "%)");
+                        nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL;
+                    }
+                }
+            }
+            executeBatch(st, batch, batchLines);
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+        } finally {
+            if (st != null) {
+                try {
+                    st.close();
+                } catch (SQLException e) {
+                    throw new MojoExecutionException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void executeBatch(Statement st, List<String> batch, List<Long> batchLines)
+            throws MojoExecutionException {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            st.executeBatch();
+            statementCount += batch.size();
+        } catch (BatchUpdateException e) {
+            final int[] counts = e.getUpdateCounts();
+            final int failed = counts != null && counts.length < batch.size() ? counts.length : 0;
+            throw new MojoExecutionException("Error in statement #" + (statementCount + failed + 1)
+                    + " at line " + batchLines.get(failed) + ": " + e.getMessage()
+                    + "\n" + getExcerpt(batch.get(failed)), e);
+        } catch (SQLException e) {
+            throw new MojoExecutionException("Error in statement #" + (statementCount + 1)
+                    + " at line " + batchLines.get(0) + ": " + e.getMessage()
+                    + "\n" + getExcerpt(batch.get(0)), e);
+        } finally {
+            batch.clear();
+            batchLines.clear();
+            try {
+                st.clearBatch();
+            } catch (SQLException e) {
+                // ignore, statement is closed on error anyway
+            }
+        }
+    }
+
+    private static String getExcerpt(String sql) {
+        return sql.length() > 200 ? sql.substring(0, 200) + ".." : sql;
+    }
+
+    /**
+     * Formats throughput of an import.
+     *
+     * @param bytes
+     * @param statements
+     * @param millis
+     * @return String
+     */
+    public static String getThroughput(long bytes, long statements, long millis) {
+
+        final double seconds = Math.max(millis, 1) / 1000d;
+        final double megaBytes = bytes / 1024d / 1024d;
+        return String.format("..%,.1f MB, %,d statements in %,.1fs (%,.1f MB/s, %,.0f statements/s)",
+                megaBytes, statements, seconds, megaBytes / seconds, statements / seconds);
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import de.bbe_consulting.mavento.type.MysqlDumpTable;
+
+/**
+ * Reads and writes the manifest of a per table sql dump.<br/>
+ * One tab separated line per table: name, rows, data bytes, data md5, the
+ * comma separated tables referenced by foreign keys and the data file compression.<br/>
+ * Bytes and md5 always describe the data file as written to disk.
+ *
+ * @author Erik Dannenberg
+ */
+public final class SqlDumpManifest {
+
+    public static final String MANIFEST_FILE_NAME = "manifest.tsv";
+    public static final String VIEWS_FILE_NAME = "views.sql";
+    public static final String COMPRESSION_GZIP = "gzip";
+
+    /**
+     * Private constructor, only static methods in this util class
+     */
+    private SqlDumpManifest() {
+    }
+
+    /**
+     * Writes the manifest into dumpDir.
+     *
+     * @param dumpDir
+     * @param dbName
+     * @param tables
+     * @throws MojoExecutionException
+     */
+    public static void writeManifest(Path dumpDir, String dbName, Collection<MysqlDumpTable> tables)
+            throws MojoExecutionException {
+
+        final Path manifest = dumpDir.resolve(MANIFEST_FILE_NAME);
+        try (BufferedWriter out = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            out.write("# mavento sql dump of " + dbName);
+            out.newLine();
+            out.write("# table\trows\tbytes\tmd5\treferences\tcompression");
+            out.newLine();
+            for (MysqlDumpTable table : tables) {
+                final StringBuilder references = new StringBuilder();
+                for (String reference : table.getReferences()) {
+                    if (references.length() > 0) {
+                        references.append(',');
+                    }
+                    references.append(reference);
+                }
+                out.write(table.getTableName() + "\t" + table.getRows() + "\t" + table.getBytes()
+                        + "\t" + table.getChecksum() + "\t" + references
+                        + "\t" + (table.isCompressed() ? COMPRESSION_GZIP : ""));
+                out.newLine();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error writing dump manifest " + manifest + ". " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the manifest from dumpDir.
+     *
+     * @param dumpDir
+     * @return List<MysqlDumpTable>
+     * @throws MojoExecutionException
+     */
+    public static List<MysqlDumpTable> readManifest(Path dumpDir) throws MojoExecutionException {
+
+        final Path manifest = dumpDir.resolve(MANIFEST_FILE_NAME);
+        if (!Files.exists(manifest)) {
+            throw new MojoExecutionException("Could not find dump manifest " + manifest);
+        }
+        final List<MysqlDumpTable> tables = new ArrayList<MysqlDumpTable>();
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t", -1);
+                if (fields.length < 4) {
+                    throw new MojoExecutionException("Invalid manifest line in " + manifest + ": " + line);
+                }
+                final MysqlDumpTable table = new MysqlDumpTable(fields[0]);
+                table.setRows(Long.parseLong(fields[1]));
+                table.setBytes(Long.parseLong(fields[2]));
+                table.setChecksum(fields[3]);
+                if (fields.length > 4 && !fields[4].isEmpty()) {
+                    table.getReferences().addAll(Arrays.asList(fields[4].split(",")));
+                }
+                table.setCompressed(fields.length > 5 && COMPRESSION_GZIP.equals(fields[5]));
+                tables.add(table);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading dump manifest " + manifest + ". " + e.getMessage(), e);
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException("Invalid dump manifest " + manifest + ". " + e.getMessage(), e);
+        }
+        return tables;
+    }
+
+}
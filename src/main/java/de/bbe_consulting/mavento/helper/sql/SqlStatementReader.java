@@ -0,0 +1,274 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming splitter for mysql dump files, returns one statement at a time.<br/>
+ * Understands quoted strings, backtick identifiers, comments and the DELIMITER
+ * command of the mysql client. Plain comments are dropped, version comments (/*! ..)
+ * are kept as the server evaluates them.
+ *
+ * @author Erik Dannenberg
+ */
+public class SqlStatementReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    private String delimiter = ";";
+    private long statementCount = 0;
+    private long lineNumber = 1;
+    private long statementLine = 1;
+
+    public SqlStatementReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Returns the next statement without its delimiter or null if the end of input was reached.
+     *
+     * @return String
+     * @throws IOException
+     */
+    public String nextStatement() throws IOException {
+
+        final StringBuilder statement = new StringBuilder(1024);
+        while (ensure(1)) {
+            final char c = buffer[pos];
+            if (isBlank(statement)) {
+                if (c == '\n') {
+                    ++lineNumber;
+                }
+                if (Character.isWhitespace(c)) {
+                    ++pos;
+                    continue;
+                }
+                statementLine = lineNumber;
+                if ((c == 'D' || c == 'd') && isDelimiterCommand()) {
+                    readDelimiterCommand();
+                    continue;
+                }
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                readQuoted(statement, c);
+            } else if (c == '#' || (c == '-' && isDashComment())) {
+                skipLine();
+            } else if (c == '/' && ensure(2) && buffer[pos + 1] == '*') {
+                readBlockComment(statement);
+            } else if (c == delimiter.charAt(0) && matchesDelimiter()) {
+                pos += delimiter.length();
+                if (!isBlank(statement)) {
+                    ++statementCount;
+                    return statement.toString();
+                }
+            } else {
+                if (c == '\n') {
+                    ++lineNumber;
+                }
+                statement.append(c);
+                ++pos;
+            }
+        }
+        // last statement may miss its delimiter
+        if (!isBlank(statement)) {
+            ++statementCount;
+            return statement.toString().trim();
+        }
+        return null;
+    }
+
+    /**
+     * Number of statements returned so far.
+     *
+     * @return long
+     */
+    public long getStatementCount() {
+        return statementCount;
+    }
+
+    /**
+     * Line number the last returned statement started at.
+     *
+     * @return long
+     */
+    public long getStatementLine() {
+        return statementLine;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // copy a quoted string/identifier including its quotes, handles backslash escapes and doubled quotes
+    private void readQuoted(StringBuilder statement, char quote) throws IOException {
+
+        statement.append(quote);
+        ++pos;
+        while (ensure(1)) {
+            final char c = buffer[pos++];
+            statement.append(c);
+            if (c == '\n') {
+                ++lineNumber;
+            } else if (c == '\\' && quote != '`') {
+                if (ensure(1)) {
+                    statement.append(buffer[pos++]);
+                }
+            } else if (c == quote) {
+                if (ensure(1) && buffer[pos] == quote) {
+                    statement.append(buffer[pos++]);
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    // block comments are dropped unless they are version comments or optimizer hints
+    private void readBlockComment(StringBuilder statement) throws IOException {
+
+        final boolean keep = ensure(3) && (buffer[pos + 2] == '!' || buffer[pos + 2] == '+');
+        char last = 0;
+        if (keep) {
+            statement.append("/*");
+        }
+        pos += 2;
+        while (ensure(1)) {
+            final char c = buffer[pos++];
+            if (c == '\n') {
+                ++lineNumber;
+            }
+            if (keep) {
+                statement.append(c);
+            }
+            if (last == '*' && c == '/') {
+                if (!keep) {
+                    // keep tokens separated
+                    statement.append(' ');
+                }
+                return;
+            }
+            last = c;
+        }
+    }
+
+    private void skipLine() throws IOException {
+
+        while (ensure(1)) {
+            if (buffer[pos++] == '\n') {
+                ++lineNumber;
+                return;
+            }
+        }
+    }
+
+    // mysql only treats -- as comment if followed by whitespace or control char
+    private boolean isDashComment() throws IOException {
+
+        if (!ensure(2) || buffer[pos + 1] != '-') {
+            return false;
+        }
+        return !ensure(3) || buffer[pos + 2] <= ' ';
+    }
+
+    private boolean isDelimiterCommand() throws IOException {
+
+        final String command = "delimiter";
+        if (!ensure(command.length() + 1)) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            if (Character.toLowerCase(buffer[pos + i]) != command.charAt(i)) {
+                return false;
+            }
+        }
+        return buffer[pos + command.length()] == ' ' || buffer[pos + command.length()] == '\t';
+    }
+
+    private void readDelimiterCommand() throws IOException {
+
+        final StringBuilder line = new StringBuilder();
+        while (ensure(1)) {
+            final char c = buffer[pos++];
+            if (c == '\n') {
+                ++lineNumber;
+                break;
+            }
+            line.append(c);
+        }
+        final String newDelimiter = line.substring("delimiter".length()).trim();
+        if (!newDelimiter.isEmpty()) {
+            delimiter = newDelimiter;
+        }
+    }
+
+    private boolean matchesDelimiter() throws IOException {
+
+        if (!ensure(delimiter.length())) {
+            return false;
+        }
+        for (int i = 1; i < delimiter.length(); i++) {
+            if (buffer[pos + i] != delimiter.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(StringBuilder statement) {
+
+        for (int i = 0; i < statement.length(); i++) {
+            if (!Character.isWhitespace(statement.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // make sure at least count chars are buffered, returns false if input ends before that
+    private boolean ensure(int count) throws IOException {
+
+        if (limit - pos >= count) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+        System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < count && !eof) {
+            final int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+        return limit - pos >= count;
+    }
+
+}
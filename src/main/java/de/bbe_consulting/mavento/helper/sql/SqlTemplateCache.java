@@ -0,0 +1,412 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.sql;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import de.bbe_consulting.mavento.helper.MagentoSqlUtil;
+
+/**
+ * Keeps pristine copies of imported databases as template schemas on the mysql server.<br/>
+ * A template is identified by a fingerprint of the magento artifact and the dump content. Once a
+ * template exists, later setups clone it table by table on the server instead of parsing the dump again.
+ * A marker table is written last, incomplete templates are never used. Only the newest template of
+ * an artifact is kept, older ones of the same artifact are dropped once a new one is complete.
+ *
+ * @author Erik Dannenberg
+ */
+public class SqlTemplateCache {
+
+    public static final String TEMPLATE_DB_PREFIX = "mavento_tpl_";
+    public static final String MARKER_TABLE = "mavento_template_info";
+
+    private static final String JDBC_URL_PARAMS = "?useUnicode=true&characterEncoding=UTF-8";
+
+    private final String dbUser;
+    private final String dbPasswd;
+    private final String dbHost;
+    private final String dbPort;
+    private final Log logger;
+
+    private int threads = 4;
+
+    public SqlTemplateCache(String dbUser, String dbPasswd, String dbHost, String dbPort, Log logger) {
+        this.dbUser = dbUser;
+        this.dbPasswd = dbPasswd;
+        this.dbHost = dbHost;
+        this.dbPort = dbPort;
+        this.logger = logger;
+    }
+
+    /**
+     * Number of parallel connections used for cloning.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Fingerprint of an artifact and its dump. For per table dump directories the manifest is hashed,
+     * it already contains the checksums of all data files.
+     *
+     * @param artifactCoordinates
+     * @param sqlDump
+     * @return String md5 hex
+     * @throws MojoExecutionException
+     */
+    public static String getFingerprint(String artifactCoordinates, Path sqlDump) throws MojoExecutionException {
+
+        final Path hashedFile = Files.isDirectory(sqlDump)
+                ? sqlDump.resolve(SqlDumpManifest.MANIFEST_FILE_NAME) : sqlDump;
+        try (FileChannel channel = FileChannel.open(hashedFile, StandardOpenOption.READ)) {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(artifactCoordinates.getBytes(StandardCharsets.UTF_8));
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
+            }
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : md5.digest()) {
+                hex.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+            }
+            return hex.toString();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error reading " + hashedFile + ". " + e.getMessage(), e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Name of the template database for a fingerprint.
+     *
+     * @param fingerprint
+     * @return String
+     */
+    public static String getTemplateDbName(String fingerprint) {
+        return TEMPLATE_DB_PREFIX + fingerprint.substring(0, 16);
+    }
+
+    /**
+     * Returns true if a complete template for fingerprint exists.
+     *
+     * @param templateDb
+     * @param fingerprint
+     * @return boolean
+     * @throws MojoExecutionException
+     */
+    public boolean hasTemplate(String templateDb, String fingerprint) throws MojoExecutionException {
+
+        final Connection c = getConnection("");
+        try {
+            final PreparedStatement st = c.prepareStatement("SELECT COUNT(*) FROM information_schema.TABLES"
+                    + " WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?");
+            st.setString(1, templateDb);
+            st.setString(2, MARKER_TABLE);
+            ResultSet r = st.executeQuery();
+            r.next();
+            final boolean hasMarker = r.getInt(1) > 0;
+            st.close();
+            if (!hasMarker) {
+                return false;
+            }
+            final PreparedStatement fst = c.prepareStatement("SELECT COUNT(*) FROM "
+                    + ParallelSqlDumper.quoteIdentifier(templateDb) + "." + ParallelSqlDumper.quoteIdentifier(MARKER_TABLE)
+                    + " WHERE fingerprint = ?");
+            fst.setString(1, fingerprint);
+            r = fst.executeQuery();
+            r.next();
+            final boolean matches = r.getInt(1) > 0;
+            fst.close();
+            return matches;
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+        } finally {
+            closeQuietly(c);
+        }
+    }
+
+    /**
+     * (Re)creates templateDb as copy of sourceDb and marks it complete. Other templates of
+     * the same artifact are dropped afterwards.
+     *
+     * @param sourceDb
+     * @param templateDb
+     * @param fingerprint
+     * @param artifactCoordinates
+     * @throws MojoExecutionException
+     */
+    public void createTemplate(String sourceDb, String templateDb, String fingerprint, String artifactCoordinates)
+            throws MojoExecutionException {
+
+        logger.info("Creating template database " + templateDb + "..");
+        final String quotedTemplate = ParallelSqlDumper.quoteIdentifier(templateDb);
+        final Connection c = getConnection("");
+        try {
+            final Statement st = c.createStatement();
+            st.execute("DROP DATABASE IF EXISTS " + quotedTemplate);
+            JdbcConnectionManager.invalidate(templateDb);
+            st.execute("CREATE DATABASE " + quotedTemplate);
+            st.close();
+            copyDatabase(sourceDb, templateDb);
+            final Statement mst = c.createStatement();
+            mst.execute("CREATE TABLE " + quotedTemplate + "." + ParallelSqlDumper.quoteIdentifier(MARKER_TABLE)
+                    + " (fingerprint VARCHAR(64) NOT NULL, artifact VARCHAR(255) NOT NULL,"
+                    + " created_at DATETIME NOT NULL)");
+            mst.close();
+            final PreparedStatement pst = c.prepareStatement("INSERT INTO " + quotedTemplate + "."
+                    + ParallelSqlDumper.quoteIdentifier(MARKER_TABLE) + " VALUES (?, ?, NOW())");
+            pst.setString(1, fingerprint);
+            pst.setString(2, artifactCoordinates);
+            pst.executeUpdate();
+            pst.close();
+            dropOtherTemplates(c, templateDb, artifactCoordinates);
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error. " + e.getMessage(), e);
+        } finally {
+            closeQuietly(c);
+        }
+        logger.info("..done.");
+    }
+
+    // templates created before the artifact column existed can't be attributed and are left alone
+    private void dropOtherTemplates(Connection c, String templateDb, String artifactCoordinates)
+            throws SQLException {
+
+        final List<String> templates = new ArrayList<String>();
+        final PreparedStatement st = c.prepareStatement("SELECT TABLE_SCHEMA FROM information_schema.COLUMNS"
+                + " WHERE TABLE_SCHEMA LIKE ? AND TABLE_NAME = ? AND COLUMN_NAME = 'artifact'");
+        st.setString(1, TEMPLATE_DB_PREFIX.replace("_", "\\_") + "%");
+        st.setString(2, MARKER_TABLE);
+        final ResultSet r = st.executeQuery();
+        while (r.next()) {
+            if (!templateDb.equals(r.getString(1))) {
+                templates.add(r.getString(1));
+            }
+        }
+        st.close();
+        for (String template : templates) {
+            final String quotedTemplate = ParallelSqlDumper.quoteIdentifier(template);
+            final PreparedStatement ast = c.prepareStatement("SELECT COUNT(*) FROM " + quotedTemplate + "."
+                    + ParallelSqlDumper.quoteIdentifier(MARKER_TABLE) + " WHERE artifact = ?");
+            ast.setString(1, artifactCoordinates);
+            final ResultSet ar = ast.executeQuery();
+            ar.next();
+            final boolean sameArtifact = ar.getInt(1) > 0;
+            ast.close();
+            if (sameArtifact) {
+                logger.info("..dropping outdated template database " + template);
+                final Statement dst = c.createStatement();
+                dst.execute("DROP DATABASE IF EXISTS " + quotedTemplate);
+                dst.close();
+                JdbcConnectionManager.invalidate(template);
+            }
+        }
+    }
+
+    /**
+     * Clones templateDb into the existing, empty targetDb.
+     *
+     * @param templateDb
+     * @param targetDb
+     * @throws MojoExecutionException
+     */
+    public void cloneTemplate(String templateDb, String targetDb) throws MojoExecutionException {
+
+        final long startTime = System.currentTimeMillis();
+        logger.info("Cloning database " + targetDb + " from template " + templateDb + "..");
+        copyDatabase(templateDb, targetDb);
+        logger.info(String.format("..done in %,.1fs.", (System.currentTimeMillis() - startTime) / 1000d));
+    }
+
+    // copy tables in parallel on the server, then triggers and views
+    private void copyDatabase(final String sourceDb, final String targetDb) throws MojoExecutionException {
+
+        final List<String> tables = new ArrayList<String>();
+        final List<String> views = new ArrayList<String>();
+        final List<String> triggers = new ArrayList<String>();
+        final Connection c = getConnection(targetDb);
+        try {
+            PreparedStatement st = c.prepareStatement("SELECT TABLE_NAME, TABLE_TYPE FROM information_schema.TABLES"
+                    + " WHERE TABLE_SCHEMA = ? ORDER BY DATA_LENGTH + INDEX_LENGTH DESC");
+            st.setString(1, sourceDb);
+            ResultSet r = st.executeQuery();
+            while (r.next()) {
+                if (MARKER_TABLE.equals(r.getString(1))) {
+                    continue;
+                }
+                if ("VIEW".equals(r.getString(2))) {
+                    views.add(r.getString(1));
+                } else {
+                    tables.add(r.getString(1));
+                }
+            }
+            st.close();
+            st = c.prepareStatement("SELECT TRIGGER_NAME FROM information_schema.TRIGGERS"
+                    + " WHERE TRIGGER_SCHEMA = ?");
+            st.setString(1, sourceDb);
+            r = st.executeQuery();
+            while (r.next()) {
+                triggers.add(r.getString(1));
+            }
+            st.close();
+
+            copyTables(sourceDb, targetDb, tables);
+
+            // definitions are unqualified and created in the default database of the connection
+            final Statement dst = c.createStatement();
+            final String quotedSource = ParallelSqlDumper.quoteIdentifier(sourceDb);
+            for (String trigger : triggers) {
+                r = dst.executeQuery("SHOW CREATE TRIGGER " + quotedSource + "."
+                        + ParallelSqlDumper.quoteIdentifier(trigger));
+                r.next();
+                final String createTrigger = r.getString(3);
+                r.close();
+                dst.execute(createTrigger);
+            }
+            // view definitions are stored fully qualified
+            for (String view : views) {
+                r = dst.executeQuery("SHOW CREATE VIEW " + quotedSource + "." + ParallelSqlDumper.quoteIdentifier(view));
+                r.next();
+                final String createView = r.getString(2).replace(quotedSource + ".",
+                        ParallelSqlDumper.quoteIdentifier(targetDb) + ".");
+                r.close();
+                dst.execute(createView);
+            }
+            dst.close();
+        } catch (SQLException e) {
+            throw new MojoExecutionException("SQL error while copying " + sourceDb + " to " + targetDb
+                    + ". " + e.getMessage(), e);
+        } finally {
+            closeQuietly(c);
+        }
+    }
+
+    private void copyTables(final String sourceDb, final String targetDb, List<String> tables)
+            throws MojoExecutionException {
+
+        final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>(tables);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final int workerCount = Math.max(1, Math.min(threads, tables.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workerCount; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        final Connection worker = JdbcConnectionManager.openConnection(dbUser, dbPasswd,
+                                getJdbcUrl(targetDb));
+                        try {
+                            final Statement st = worker.createStatement();
+                            st.execute("SET SESSION foreign_key_checks = 0, unique_checks = 0,"
+                                    + " sql_mode = 'NO_AUTO_VALUE_ON_ZERO'");
+                            String table;
+                            while (!aborted.get() && (table = queue.poll()) != null) {
+                                copyTable(st, sourceDb, targetDb, table);
+                            }
+                            st.close();
+                        } finally {
+                            closeQuietly(worker);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            MojoExecutionException error = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    aborted.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted while copying " + sourceDb, e);
+                } catch (ExecutionException e) {
+                    aborted.set(true);
+                    if (error == null) {
+                        error = new MojoExecutionException("Error while copying " + sourceDb + " to " + targetDb
+                                + ". " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // SHOW CREATE TABLE instead of CREATE TABLE .. LIKE, the latter drops foreign keys
+    private static void copyTable(Statement st, String sourceDb, String targetDb, String table) throws SQLException {
+
+        final String source = ParallelSqlDumper.quoteIdentifier(sourceDb) + "." + ParallelSqlDumper.quoteIdentifier(table);
+        final String target = ParallelSqlDumper.quoteIdentifier(targetDb) + "." + ParallelSqlDumper.quoteIdentifier(table);
+        final ResultSet r = st.executeQuery("SHOW CREATE TABLE " + source);
+        r.next();
+        final String createTable = r.getString(2);
+        r.close();
+        st.execute(createTable);
+        st.execute("INSERT INTO " + target + " SELECT * FROM " + source);
+    }
+
+    private Connection getConnection(String dbName) throws MojoExecutionException {
+        return MagentoSqlUtil.getJdbcConnection(dbUser, dbPasswd, getJdbcUrl(dbName));
+    }
+
+    private String getJdbcUrl(String dbName) {
+        return MagentoSqlUtil.getJdbcUrl(dbHost, dbPort, dbName) + JDBC_URL_PARAMS;
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            // nothing left to do
+        }
+    }
+
+}
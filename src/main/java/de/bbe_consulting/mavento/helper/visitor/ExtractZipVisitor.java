@@ -46,7 +46,7 @@ public class ExtractZipVisitor extends SimpleFileVisitor<Path> {
 
         if (!file.getFileName().toString().startsWith(".")) {
             logger.info("Extracting " + file.getFileName());
-            FileUtil.unzipFile(file.toString(), target.toString());
+            FileUtil.unzipFile(file.toString(), target.toString(), true);
         }
         return CONTINUE;
     }
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.visitor;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import de.bbe_consulting.mavento.helper.FileUtil;
+
+/**
+ * File visitor to set owner, group and permissions of files recursive, symlinks are skipped.<br/>
+ * Attributes already matching the target values are not written again.
+ * 
+ * @author Erik Dannenberg
+ */
+public class FileAttributesVisitor extends SimpleFileVisitor<Path> {
+
+    private final UserPrincipal targetUser;
+    private final GroupPrincipal targetGroup;
+    private final Set<PosixFilePermission> targetFilePermissions;
+    private final Set<PosixFilePermission> targetDirPermissions;
+
+    public FileAttributesVisitor(Path target, String octalFilePerms, String octalDirPerms, String newUser,
+            String newGroup) throws MojoExecutionException, IOException {
+
+        if (newUser != null) {
+            this.targetUser = target.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(newUser);
+        } else {
+            this.targetUser = null;
+        }
+        if (newGroup != null) {
+            this.targetGroup = target.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByGroupName(newGroup);
+        } else {
+            this.targetGroup = null;
+        }
+        if (octalFilePerms != null) {
+            this.targetFilePermissions = PosixFilePermissions.fromString(FileUtil.octalPermissionsToSymbolic(octalFilePerms));
+        } else {
+            this.targetFilePermissions = null;
+        }
+        if (octalDirPerms != null) {
+            this.targetDirPermissions = PosixFilePermissions.fromString(FileUtil.octalPermissionsToSymbolic(octalDirPerms));
+        } else {
+            this.targetDirPermissions = null;
+        }
+    }
+
+    /**
+     * True if there are any attributes to set.
+     * 
+     * @return boolean
+     */
+    public boolean hasAttributes() {
+        return targetUser != null || targetGroup != null || targetFilePermissions != null
+                || targetDirPermissions != null;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+
+        setAttributes(dir, true);
+        return CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+
+        if (!attrs.isSymbolicLink()) {
+            setAttributes(file, false);
+        }
+        return CONTINUE;
+    }
+
+    /**
+     * Set owner, group and file or directory permissions of a single entry.
+     * 
+     * @param file
+     * @param directory
+     * @throws IOException
+     */
+    public void setAttributes(Path file, boolean directory) throws IOException {
+
+        final Set<PosixFilePermission> permissions = directory ? targetDirPermissions : targetFilePermissions;
+        if (targetUser == null && targetGroup == null && permissions == null) {
+            return;
+        }
+        final PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (view == null) {
+            return;
+        }
+        // one stat per entry, then only the syscalls that actually change something
+        final PosixFileAttributes current = view.readAttributes();
+        if (targetUser != null && !targetUser.equals(current.owner())) {
+            view.setOwner(targetUser);
+        }
+        if (targetGroup != null && !targetGroup.equals(current.group())) {
+            view.setGroup(targetGroup);
+        }
+        if (permissions != null && !permissions.equals(current.permissions())) {
+            view.setPermissions(permissions);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper.visitor;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * File visitor to hardlink files recursive. Source and target have to be on the same filesystem.<br/>
+ * Directories are created, symlinks are recreated with the same link target.
+ * 
+ * @author Erik Dannenberg
+ */
+public class LinkFilesVisitor extends SimpleFileVisitor<Path> {
+
+    private final Path source;
+    private final Path target;
+
+    public LinkFilesVisitor(Path source, Path target) {
+
+        this.source = source;
+        this.target = target;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+
+        final Path newdir = target.resolve(source.relativize(dir));
+        try {
+            Files.createDirectories(newdir);
+        } catch (FileAlreadyExistsException e) {
+            // ignore
+        }
+        return CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+
+        final Path link = target.resolve(source.relativize(file));
+        Files.deleteIfExists(link);
+        if (attrs.isSymbolicLink()) {
+            Files.createSymbolicLink(link, Files.readSymbolicLink(file));
+        } else {
+            Files.createLink(link, file);
+        }
+        return CONTINUE;
+    }
+}
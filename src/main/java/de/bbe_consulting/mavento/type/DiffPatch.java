@@ -32,6 +32,8 @@ public class DiffPatch {
     private String patchFileName;
     private List<String> diffContent;
     private String statsLine = "";
+    private long patchOffset = -1;
+    private long patchLength = 0;
     
     public DiffPatch(String fileName, String targetDir, List<String> patch) {
         targetDirectory = targetDir;
@@ -39,6 +41,12 @@ public class DiffPatch {
         diffContent = patch;
     }
 
+    public DiffPatch(String fileName, String targetDir, List<String> patch, long offset, long length) {
+        this(fileName, targetDir, patch);
+        patchOffset = offset;
+        patchLength = length;
+    }
+
     public String getTargetDirectory() {
         return targetDirectory;
     }
@@ -63,6 +71,19 @@ public class DiffPatch {
         this.diffContent = diffContent;
     }
 
+    /**
+     * Byte offset of the diff content in the patch file, -1 if not read by PatchReader.
+     * 
+     * @return long
+     */
+    public long getPatchOffset() {
+        return patchOffset;
+    }
+
+    public long getPatchLength() {
+        return patchLength;
+    }
+
     public String getTargetFileName() {
         if (targetFileName.isEmpty()) {
             targetFileName = Paths.get(targetDirectory).resolve(Paths.get(patchFileName)).toString();
@@ -19,7 +19,10 @@ package de.bbe_consulting.mavento.type;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.w3c.dom.Document;
@@ -38,6 +41,21 @@ public class MagentoModule {
     private String version;
     private String codePool;
     private Boolean active;
+    private String declarationFile;
+    private List<String> depends = new ArrayList<String>();
+    private Map<String, String> rewrites = new TreeMap<String, String>();
+    private List<String> setupResources = new ArrayList<String>();
+
+    /**
+     * Empty module, see MagentoModuleScanner.
+     * 
+     * @param moduleKey i.e. Mage_Core
+     */
+    public MagentoModule(String moduleKey) {
+        final String[] moduleName = moduleKey.split("_", 2);
+        namespace = moduleName[0];
+        name = moduleName.length > 1 ? moduleName[1] : "";
+    }
 
     public MagentoModule(Path modulesConfigXmlPath)
             throws MojoExecutionException {
@@ -102,4 +120,50 @@ public class MagentoModule {
         this.active = active;
     }
 
+    public String getModuleKey() {
+        return namespace + "_" + name;
+    }
+
+    /**
+     * The app/etc/modules file declaring this module, relative to the magento root.
+     * 
+     * @return String
+     */
+    public String getDeclarationFile() {
+        return declarationFile;
+    }
+
+    public void setDeclarationFile(String declarationFile) {
+        this.declarationFile = declarationFile;
+    }
+
+    public List<String> getDepends() {
+        return depends;
+    }
+
+    public void setDepends(List<String> depends) {
+        this.depends = depends;
+    }
+
+    /**
+     * Class rewrites of the module's config.xml.
+     * 
+     * @return Map<String, String> key: type/group/class, i.e. models/catalog/product value: rewrite class
+     */
+    public Map<String, String> getRewrites() {
+        return rewrites;
+    }
+
+    public void setRewrites(Map<String, String> rewrites) {
+        this.rewrites = rewrites;
+    }
+
+    public List<String> getSetupResources() {
+        return setupResources;
+    }
+
+    public void setSetupResources(List<String> setupResources) {
+        this.setupResources = setupResources;
+    }
+
 }
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.type;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Manifest entry of a table in a per table sql dump.
+ *
+ * @author Erik Dannenberg
+ */
+public class MysqlDumpTable {
+
+    /**
+     * The table name.
+     */
+    private String tableName;
+    /**
+     * Number of dumped rows.
+     */
+    private long rows;
+    /**
+     * Size of the data file in bytes.
+     */
+    private long bytes;
+    /**
+     * Md5 checksum of the data file.
+     */
+    private String checksum = "";
+    /**
+     * True if the data file is gzip compressed.
+     */
+    private boolean compressed;
+    /**
+     * Tables referenced by foreign keys of this table.
+     */
+    private Set<String> references = new TreeSet<String>();
+
+    public MysqlDumpTable(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+    public long getRows() {
+        return rows;
+    }
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+    public long getBytes() {
+        return bytes;
+    }
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+    public String getChecksum() {
+        return checksum;
+    }
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+    public boolean isCompressed() {
+        return compressed;
+    }
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+    public Set<String> getReferences() {
+        return references;
+    }
+    public void setReferences(Set<String> references) {
+        this.references = references;
+    }
+
+    public String getSchemaFileName() {
+        return tableName + ".schema.sql";
+    }
+
+    public String getDataFileName() {
+        return tableName + (compressed ? ".data.sql.gz" : ".data.sql");
+    }
+
+    public String getTriggersFileName() {
+        return tableName + ".triggers.sql";
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.type;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tables, columns, indexes and foreign keys of a mysql database.
+ *
+ * @author Erik Dannenberg
+ */
+public class MysqlSchema {
+
+    /**
+     * The database name.
+     */
+    private String dbName;
+    /**
+     * Changes when tables, columns or indexes of the database change.
+     */
+    private String fingerprint;
+    /**
+     * Tables by name.
+     */
+    private Map<String, MysqlTable> tables = new LinkedHashMap<String, MysqlTable>();
+
+    public MysqlSchema(String dbName, String fingerprint) {
+        this.dbName = dbName;
+        this.fingerprint = fingerprint;
+    }
+
+    public String getDbName() {
+        return dbName;
+    }
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void addTable(MysqlTable table) {
+        tables.put(table.getTableName(), table);
+    }
+
+    public boolean hasTable(String tableName) {
+        return tables.containsKey(tableName);
+    }
+
+    public MysqlTable getTable(String tableName) {
+        return tables.get(tableName);
+    }
+
+    public Collection<MysqlTable> getTables() {
+        return tables.values();
+    }
+
+    /**
+     * Tables whose name starts with one of the given prefixes, in schema order.
+     *
+     * @param prefixes
+     * @return List<MysqlTable>
+     */
+    public List<MysqlTable> getTablesByPrefix(String... prefixes) {
+        final List<MysqlTable> result = new ArrayList<MysqlTable>();
+        for (MysqlTable table : tables.values()) {
+            for (String prefix : prefixes) {
+                if (table.getTableName().startsWith(prefix)) {
+                    result.add(table);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    public long getTotalRows() {
+        long rows = 0;
+        for (MysqlTable table : tables.values()) {
+            rows += table.getTableRows();
+        }
+        return rows;
+    }
+
+    public long getTotalSizeInMb() {
+        long bytes = 0;
+        for (MysqlTable table : tables.values()) {
+            bytes += table.getTableLength() + table.getTableIndexLength();
+        }
+        return bytes / 1024 / 1024;
+    }
+}
@@ -16,6 +16,13 @@
 
 package de.bbe_consulting.mavento.type;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
 /**
  * Mysql table details.
  * 
@@ -32,17 +39,29 @@ public class MysqlTable {
      */
     private String tableName;
     /**
-     * Table row count.
+     * Table row count, an estimate for innodb tables.
      */
-    private int tableRows;
+    private long tableRows;
     /**
      * Table data size in bytes.
      */
-    private int tableLength;
+    private long tableLength;
     /**
      * Table index size in bytes.
      */
-    private int tableIndexLength;
+    private long tableIndexLength;
+    /**
+     * Column names in table order.
+     */
+    private List<String> columns = new ArrayList<String>();
+    /**
+     * Index names mapped to their column names.
+     */
+    private Map<String, List<String>> indexes = new LinkedHashMap<String, List<String>>();
+    /**
+     * Tables referenced by foreign keys of this table.
+     */
+    private Set<String> references = new TreeSet<String>();
 
     public String getDbName() {
         return dbName;
@@ -56,26 +75,45 @@ public class MysqlTable {
     public void setTableName(String tableName) {
         this.tableName = tableName;
     }
-    public int getTableRows() {
+    public long getTableRows() {
         return tableRows;
     }
-    public void setTableRows(int tableRows) {
+    public void setTableRows(long tableRows) {
         this.tableRows = tableRows;
     }
-    public int getTableLength() {
+    public long getTableLength() {
         return tableLength;
     }
-    public void setTableLength(int tableLength) {
+    public void setTableLength(long tableLength) {
         this.tableLength = tableLength;
     }
-    public int getTableIndexLength() {
+    public long getTableIndexLength() {
         return tableIndexLength;
     }
-    public void setTableIndexLength(int tableIndexLength) {
+    public void setTableIndexLength(long tableIndexLength) {
         this.tableIndexLength = tableIndexLength;
     }
 
-    public int getTableSizeInMb() {
+    public List<String> getColumns() {
+        return columns;
+    }
+    public void setColumns(List<String> columns) {
+        this.columns = columns;
+    }
+    public Map<String, List<String>> getIndexes() {
+        return indexes;
+    }
+    public void setIndexes(Map<String, List<String>> indexes) {
+        this.indexes = indexes;
+    }
+    public Set<String> getReferences() {
+        return references;
+    }
+    public void setReferences(Set<String> references) {
+        this.references = references;
+    }
+
+    public long getTableSizeInMb() {
         return (getTableLength() + getTableIndexLength())/1024/1024;
     }
 
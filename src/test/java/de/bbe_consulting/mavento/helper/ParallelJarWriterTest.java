@@ -0,0 +1,207 @@
+/**
+ * Copyright 2011-2013 BBe Consulting GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.bbe_consulting.mavento.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes trees with ParallelJarWriter and reads them back with java.util.zip.
+ *
+ * @author Erik Dannenberg
+ */
+public class ParallelJarWriterTest extends TestCase {
+
+    private Path tempDir;
+    private Path source;
+    private Path jar;
+
+    protected void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("mavento-jar-test");
+        source = Files.createDirectory(tempDir.resolve("source"));
+        jar = tempDir.resolve("test.jar");
+    }
+
+    protected void tearDown() throws IOException {
+        new ParallelFileDeleter(tempDir).delete();
+    }
+
+    public void testStoredRoundTrip() throws Exception {
+        assertRoundTrip(0, false);
+    }
+
+    public void testDeflatedRoundTrip() throws Exception {
+        assertRoundTrip(6, false);
+    }
+
+    public void testReproducibleRoundTrip() throws Exception {
+        assertRoundTrip(6, true);
+    }
+
+    public void testSymlinkedDirectoriesAreNotFollowed() throws Exception {
+
+        final Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        expected.put("app/code/local/Foo.php", writeFile("app/code/local/Foo.php", 100));
+        expected.put("lib/Bar.php", writeFile("lib/Bar.php", 200));
+        // a file link is added with the content of its target, a directory link and a cycle are skipped
+        Files.createSymbolicLink(source.resolve("lib/Link.php"), source.resolve("lib/Bar.php"));
+        expected.put("lib/Link.php", expected.get("lib/Bar.php"));
+        Files.createSymbolicLink(source.resolve("app/code/linked"), source.resolve("lib"));
+        Files.createSymbolicLink(source.resolve("lib/loop"), source);
+
+        final ParallelJarWriter writer = new ParallelJarWriter(source, jar);
+        writer.write(null);
+        assertEntries(expected, new HashSet<String>());
+    }
+
+    public void testZip64EntryCount() throws Exception {
+
+        final int count = 70000;
+        for (int i = 0; i < count; i++) {
+            final Path file = source.resolve("d" + (i % 100) + "/f" + i);
+            if (i < 100) {
+                Files.createDirectories(file.getParent());
+            }
+            Files.createFile(file);
+        }
+        final ParallelJarWriter writer = new ParallelJarWriter(source, jar);
+        writer.setThreads(4);
+        writer.write(null);
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            assertEquals(count, zip.size());
+            assertNotNull(zip.getEntry("d42/f69942"));
+        }
+    }
+
+    private void assertRoundTrip(int compressionLevel, boolean reproducible) throws Exception {
+
+        final Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        expected.put("index.php", writeFile("index.php", 1234));
+        expected.put("app/Mage.php", writeFile("app/Mage.php", 50000));
+        expected.put("app/code/core/Mage/Core/Model/App.php", writeFile("app/code/core/Mage/Core/Model/App.php", 0));
+        // larger than the buffered file size, goes through the streamed path
+        expected.put("media/big.bin", writeFile("media/big.bin", 3 * 1024 * 1024 + 17));
+        expected.put("js/text.js", writeText("js/text.js", 2 * 1024 * 1024));
+        expected.put("META-INF/MANIFEST.MF", writeManifest());
+        Files.createDirectories(source.resolve("var/cache"));
+        final Set<String> directories = new HashSet<String>();
+        directories.add("var/cache/");
+
+        final ParallelJarWriter writer = new ParallelJarWriter(source, jar);
+        writer.setThreads(3);
+        writer.setCompressionLevel(compressionLevel);
+        writer.setReproducible(reproducible);
+        writer.write(null);
+
+        assertEntries(expected, directories);
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            assertEquals("META-INF/MANIFEST.MF", zip.entries().nextElement().getName());
+        }
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            assertEquals("test", jarFile.getManifest().getMainAttributes().getValue("Built-By"));
+        }
+        try (JarInputStream in = new JarInputStream(Files.newInputStream(jar))) {
+            assertNotNull(in.getManifest());
+        }
+    }
+
+    private void assertEntries(Map<String, byte[]> expected, Set<String> directories) throws IOException {
+
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            final Set<String> names = new HashSet<String>();
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                names.add(entry.getName());
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final byte[] content = readFully(zip.getInputStream(entry));
+                final byte[] original = expected.get(entry.getName());
+                assertNotNull("unexpected entry " + entry.getName(), original);
+                assertTrue("content of " + entry.getName(), Arrays.equals(original, content));
+                final CRC32 crc = new CRC32();
+                crc.update(original);
+                assertEquals("crc of " + entry.getName(), crc.getValue(), entry.getCrc());
+                assertEquals("size of " + entry.getName(), original.length, entry.getSize());
+            }
+            final Set<String> expectedNames = new HashSet<String>(expected.keySet());
+            expectedNames.addAll(directories);
+            assertEquals(expectedNames, names);
+        }
+    }
+
+    private byte[] writeFile(String name, int size) throws IOException {
+
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return write(name, content);
+    }
+
+    private byte[] writeText(String name, int size) throws IOException {
+
+        final StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append("var mage = function() { return ").append(text.length()).append("; };\n");
+        }
+        return write(name, text.toString().getBytes("UTF-8"));
+    }
+
+    private byte[] writeManifest() throws IOException {
+        return write("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nBuilt-By: test\r\n\r\n".getBytes("UTF-8"));
+    }
+
+    private byte[] write(String name, byte[] content) throws IOException {
+
+        final Path file = source.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        return content;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}